@@ -0,0 +1,95 @@
+package com.nbp.benchmark;
+
+import com.nbp.BoxType;
+import com.nbp.Direction;
+import com.nbp.Environment;
+import com.nbp.Gravity;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Checks that a physics step of a settled pile of boxes allocates nothing once the JIT has warmed up.
+ * The boxes are kept awake so that every step resolves every resting contact, which is where the engine used to
+ * create garbage. Run with 'gradle allocationCheck', which fails if any step allocated.
+ */
+public class AllocationCheck {
+    /**
+     * The number of dynamic boxes in each checked pile.
+     */
+    private static final int BOX_COUNT = 1000;
+    /**
+     * The number of steps taken before measuring, so that the JIT has compiled the step.
+     */
+    private static final int WARMUP_STEPS = 5000;
+    /**
+     * The number of steps measured.
+     */
+    private static final int MEASURED_STEPS = 1000;
+    /**
+     * The thread MXBean, which reports the bytes allocated by a thread.
+     */
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Check each pile, exiting with a non-zero status if any of them allocated while being stepped.
+     * @param args The arguments, which are not used.
+     */
+    public static void main(String[] args) {
+        boolean isAllocationFree = check("resting pile", createRestingPile(), false);
+        isAllocationFree &= check("resting pile with deferred events", createRestingPile(), true);
+        isAllocationFree &= check("stacked pile", createStackedPile(), false);
+        isAllocationFree &= check("stacked pile with deferred events", createStackedPile(), true);
+        if (!isAllocationFree) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Step a pile and report the bytes allocated while it was being stepped.
+     * @param name                      The name of the pile.
+     * @param environment               The environment holding the pile.
+     * @param isDeferredDispatchEnabled Whether collision and sensor events are dispatched at the end of each step.
+     * @return Whether no bytes were allocated.
+     */
+    private static boolean check(String name, Environment environment, boolean isDeferredDispatchEnabled) {
+        environment.setDeferredEventDispatchEnabled(isDeferredDispatchEnabled);
+        for (int i = 0; i < WARMUP_STEPS; i++) {
+            environment.update();
+        }
+        long threadId = Thread.currentThread().getId();
+        // Measure an empty interval first, so that anything the measurement itself allocates is taken off.
+        long start    = THREADS.getThreadAllocatedBytes(threadId);
+        long overhead = THREADS.getThreadAllocatedBytes(threadId) - start;
+        start         = THREADS.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_STEPS; i++) {
+            environment.update();
+        }
+        long allocated = THREADS.getThreadAllocatedBytes(threadId) - start - overhead;
+        System.out.println(name + ": " + allocated + " bytes allocated over " + MEASURED_STEPS + " steps");
+        return allocated <= 0L;
+    }
+
+    /**
+     * Create rows of boxes resting on shelves, with sleeping disabled.
+     * @return The environment.
+     */
+    private static Environment createRestingPile() {
+        Environment environment = Scenario.RESTING_PILE.create(BOX_COUNT, new Random(42));
+        environment.setSleepThreshold(0);
+        return environment;
+    }
+
+    /**
+     * Create columns of boxes stacked on a floor, so that most boxes rest on another dynamic box.
+     * @return The environment.
+     */
+    private static Environment createStackedPile() {
+        Environment environment = new Environment(new Gravity(Direction.DOWN, 0.1f));
+        int columnCount         = BOX_COUNT / 10;
+        environment.addBox(new BenchmarkBox(0f, -10f, columnCount * 20f, 10f, BoxType.STATIC));
+        for (int i = 0; i < BOX_COUNT; i++) {
+            environment.addBox(new BenchmarkBox((i % columnCount) * 20f + 2f, (i / columnCount) * 16f, 16f, 16f, BoxType.DYNAMIC));
+        }
+        return environment;
+    }
+}
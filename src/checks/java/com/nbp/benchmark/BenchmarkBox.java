@@ -0,0 +1,50 @@
+package com.nbp.benchmark;
+
+import com.nbp.Bloom;
+import com.nbp.Box;
+import com.nbp.BoxType;
+import com.nbp.Sensor;
+import com.nbp.point.IntersectionPoint;
+
+/**
+ * A box which does nothing when notified of events, so that benchmarks measure only the engine.
+ */
+public class BenchmarkBox extends Box {
+    /**
+     * Create a new instance of the BenchmarkBox class.
+     * @param x      The X position of the box.
+     * @param y      The Y position of the box.
+     * @param width  The width of the box.
+     * @param height The height of the box.
+     * @param type   The type of the box.
+     */
+    public BenchmarkBox(float x, float y, float width, float height, BoxType type) {
+        super(x, y, width, height, type);
+    }
+
+    @Override
+    protected void onCollisionWithDynamicBox(Box collidingBox, IntersectionPoint dynamicBoxOriginAtCollision) {}
+
+    @Override
+    protected void onCollisionWithStaticBox(Box collidingBox, IntersectionPoint originAtCollision) {}
+
+    @Override
+    protected void onSensorEntry(Sensor sensor, Box enteredBox) {}
+
+    @Override
+    protected void onSensorExit(Sensor sensor, Box exitedBox) {}
+
+    @Override
+    protected boolean onBloomPush(Bloom bloom, float angleOfForce, float force, float distance) {
+        return true;
+    }
+
+    @Override
+    protected void onBeforeUpdate() {}
+
+    @Override
+    protected void onAfterUpdate() {}
+
+    @Override
+    protected void onDeletion() {}
+}
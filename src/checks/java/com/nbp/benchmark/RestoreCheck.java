@@ -0,0 +1,111 @@
+package com.nbp.benchmark;
+
+import com.nbp.Box;
+import com.nbp.BoxType;
+import com.nbp.Direction;
+import com.nbp.Environment;
+import com.nbp.EnvironmentSnapshot;
+import com.nbp.Gravity;
+import com.nbp.RaycastHit;
+import java.util.ArrayList;
+
+/**
+ * Checks that rolling an environment back to a snapshot leaves every box in it exactly once, after boxes have been
+ * added to it and removed from it since the snapshot was taken. Run with 'gradle restoreCheck', which fails if a
+ * query or raycast finds any box more than once, or misses any box, after a restore.
+ */
+public class RestoreCheck {
+    /**
+     * The number of static boxes in a row along the floor of each checked environment.
+     */
+    private static final int STATIC_BOX_COUNT = 8;
+
+    /**
+     * Check each way of changing the box list, exiting with a non-zero status if any restore left the environment inconsistent.
+     * @param args The arguments, which are not used.
+     */
+    public static void main(String[] args) {
+        boolean isConsistent = check("static box added since the snapshot", true, false);
+        isConsistent &= check("static box removed since the snapshot", false, true);
+        isConsistent &= check("static box added and another removed since the snapshot", true, true);
+        if (!isConsistent) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Change the box list of an environment after taking a snapshot of it, then restore the snapshot twice over and
+     * check that every box in the snapshot is found exactly once by a region query and by a raycast.
+     * @param name          The name of the check.
+     * @param isAddingBox   Whether a static box is added after the snapshot is taken.
+     * @param isRemovingBox Whether a static box is removed after the snapshot is taken.
+     * @return Whether the environment was consistent after each restore.
+     */
+    private static boolean check(String name, boolean isAddingBox, boolean isRemovingBox) {
+        Environment environment = new Environment(new Gravity(Direction.DOWN, 0.1f));
+        Box[] staticBoxes       = new Box[STATIC_BOX_COUNT];
+        for (int i = 0; i < STATIC_BOX_COUNT; i++) {
+            staticBoxes[i] = new BenchmarkBox(i * 20f, 0f, 16f, 16f, BoxType.STATIC);
+            environment.addBox(staticBoxes[i]);
+        }
+        environment.addBox(new BenchmarkBox(2f, 40f, 12f, 12f, BoxType.DYNAMIC));
+        environment.update();
+        EnvironmentSnapshot snapshot = new EnvironmentSnapshot();
+        environment.snapshot(snapshot);
+        int expectedCount            = environment.getBoxes().size();
+        boolean isConsistent         = true;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (isAddingBox) {
+                environment.addBox(new BenchmarkBox(STATIC_BOX_COUNT * 20f, 0f, 16f, 16f, BoxType.STATIC));
+            }
+            if (isRemovingBox) {
+                environment.removeBox(staticBoxes[attempt]);
+            }
+            environment.update();
+            environment.restore(snapshot);
+            isConsistent &= checkBoxesFoundOnce(name, environment, expectedCount);
+        }
+        System.out.println(name + ": " + (isConsistent ? "consistent" : "inconsistent") + " after restoring");
+        return isConsistent;
+    }
+
+    /**
+     * Check that a region query over the whole environment finds every box exactly once, and that a raycast along
+     * the row of static boxes crosses each of them exactly once.
+     * @param name          The name of the check.
+     * @param environment   The environment.
+     * @param expectedCount The number of boxes that should be in the environment.
+     * @return Whether every box was found exactly once.
+     */
+    private static boolean checkBoxesFoundOnce(String name, Environment environment, int expectedCount) {
+        ArrayList<Box> results = new ArrayList<Box>();
+        environment.queryRegion(-1000f, -1000f, 1000f, 1000f, results);
+        if (results.size() != expectedCount || hasDuplicates(results)) {
+            System.out.println(name + ": region query found " + results.size() + " boxes, expected " + expectedCount);
+            return false;
+        }
+        RaycastHit[] hits = new RaycastHit[STATIC_BOX_COUNT * 4];
+        int hitCount      = environment.raycastAll(-10f, 8f, STATIC_BOX_COUNT * 20f + 30f, 8f, BoxType.STATIC, null, hits);
+        if (hitCount != STATIC_BOX_COUNT) {
+            System.out.println(name + ": raycast crossed " + hitCount + " static boxes, expected " + STATIC_BOX_COUNT);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get whether a list holds the same box more than once.
+     * @param boxes The boxes.
+     * @return Whether any box is held more than once.
+     */
+    private static boolean hasDuplicates(ArrayList<Box> boxes) {
+        for (int i = 0; i < boxes.size(); i++) {
+            for (int j = i + 1; j < boxes.size(); j++) {
+                if (boxes.get(i) == boxes.get(j)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
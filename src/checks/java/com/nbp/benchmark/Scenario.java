@@ -0,0 +1,223 @@
+package com.nbp.benchmark;
+
+import com.nbp.Bloom;
+import com.nbp.Box;
+import com.nbp.BoxType;
+import com.nbp.Direction;
+import com.nbp.Environment;
+import com.nbp.Gravity;
+import com.nbp.Sensor;
+import com.nbp.zone.CircleZone;
+import com.nbp.zone.SquareZone;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * The reproducible worlds that the engine is benchmarked against. Every scenario is built from a
+ * seeded random, so a given scenario and box count always produces the same world and the same steps.
+ */
+public enum Scenario {
+    /**
+     * Rows of boxes resting on shelves, with sleeping enabled. This is the steady state of most levels.
+     */
+    RESTING_PILE {
+        @Override
+        Environment create(int boxCount, Random random) {
+            Environment environment = createShelves(boxCount);
+            environment.setSleepThreshold(30);
+            return settle(environment);
+        }
+    },
+    /**
+     * Boxes running and jumping around a platformer level built from a grid of static tiles.
+     */
+    TILE_LEVEL {
+        @Override
+        Environment create(int boxCount, Random random) {
+            Environment environment = createEnvironment();
+            int columns = Math.max(64, boxCount / 4);
+            for (int column = 0; column < columns; column++) {
+                // The ground, with the odd gap filled in by a lower tile.
+                float groundY = random.nextInt(10) == 0 ? -TILE_SIZE : 0f;
+                environment.addBox(new BenchmarkBox(column * TILE_SIZE, groundY, TILE_SIZE, TILE_SIZE, BoxType.STATIC));
+                // Scattered platforms.
+                for (int row = 3; row < 12; row += 3) {
+                    if (random.nextInt(4) == 0) {
+                        environment.addBox(new BenchmarkBox(column * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE / 2f, BoxType.STATIC));
+                    }
+                }
+            }
+            addWalls(environment, columns * TILE_SIZE, 20 * TILE_SIZE);
+            for (int i = 0; i < boxCount; i++) {
+                BenchmarkBox box = new BenchmarkBox(random.nextFloat() * (columns - 1) * TILE_SIZE, TILE_SIZE + random.nextFloat() * 15 * TILE_SIZE, 12f, 12f, BoxType.DYNAMIC);
+                box.setVelX(random.nextFloat() * 4f - 2f);
+                environment.addBox(box);
+            }
+            return settle(environment);
+        }
+
+        @Override
+        void beforeStep(Environment environment, Random random) {
+            // A few boxes jump or change direction every step.
+            ArrayList<Box> boxes = environment.getBoxes();
+            for (int i = 0; i < Math.max(1, boxes.size() / 50); i++) {
+                Box box = boxes.get(random.nextInt(boxes.size()));
+                if (box.getType() == BoxType.DYNAMIC) {
+                    box.applyImpulse(random.nextFloat() * 4f - 2f, random.nextInt(4) == 0 ? 4f : 0f);
+                }
+            }
+        }
+    },
+    /**
+     * Boxes resting on shelves while dozens of blooms go off every step.
+     */
+    BLOOM_STORM {
+        @Override
+        Environment create(int boxCount, Random random) {
+            return settle(createShelves(boxCount));
+        }
+
+        @Override
+        void beforeStep(Environment environment, Random random) {
+            float height = (environment.getBoxes().size() / BOXES_PER_ROW) * 40f;
+            for (int i = 0; i < 32; i++) {
+                environment.addBloom(new Bloom(random.nextFloat() * BOXES_PER_ROW * 20f, random.nextFloat() * height, 80f, 3f));
+            }
+        }
+    },
+    /**
+     * Weightless boxes drifting around a closed room filled with overlapping square and circle zones of force.
+     */
+    ZONE_FIELD {
+        @Override
+        Environment create(int boxCount, Random random) {
+            Environment environment = createEnvironment();
+            int columns = (int) Math.ceil(Math.sqrt(boxCount));
+            float size  = columns * 40f;
+            environment.addBox(new BenchmarkBox(0f, -10f, size, 10f, BoxType.STATIC));
+            environment.addBox(new BenchmarkBox(0f, size, size, 10f, BoxType.STATIC));
+            addWalls(environment, size, size);
+            for (int i = 0; i < Math.max(1, boxCount / 10); i++) {
+                if (i % 2 == 0) {
+                    environment.addZone(new SquareZone(random.nextFloat() * size, random.nextFloat() * size, 60f, 60f, 0.05f, Direction.values()[random.nextInt(4)]));
+                } else {
+                    environment.addZone(new CircleZone(random.nextFloat() * size, random.nextFloat() * size, 0.05f, 40f));
+                }
+            }
+            for (int i = 0; i < boxCount; i++) {
+                BenchmarkBox box = new BenchmarkBox((i % columns) * 40f + 14f, (i / columns) * 40f + 14f, 12f, 12f, BoxType.DYNAMIC);
+                box.setAffectedByGravity(false);
+                box.setRestitution(0.5f);
+                environment.addBox(box);
+            }
+            return settle(environment);
+        }
+    },
+    /**
+     * A crowd of boxes milling around a floor, each with a sensor that is larger than the box itself.
+     */
+    SENSOR_CROWD {
+        @Override
+        Environment create(int boxCount, Random random) {
+            Environment environment = createEnvironment();
+            float width = boxCount * 8f;
+            environment.addBox(new BenchmarkBox(0f, 0f, width, 10f, BoxType.STATIC));
+            addWalls(environment, width, 200f);
+            for (int i = 0; i < boxCount; i++) {
+                BenchmarkBox box = new BenchmarkBox(random.nextFloat() * (width - 12f), 10f, 12f, 24f, BoxType.DYNAMIC);
+                box.setVelX(random.nextFloat() * 2f - 1f);
+                box.attachSensor(new Sensor(box.getX() - 12f, box.getY(), box.getWidth() + 24f, box.getHeight()));
+                environment.addBox(box);
+            }
+            return settle(environment);
+        }
+
+        @Override
+        void beforeStep(Environment environment, Random random) {
+            // Keep the crowd moving.
+            ArrayList<Box> boxes = environment.getBoxes();
+            for (int i = 0; i < Math.max(1, boxes.size() / 20); i++) {
+                Box box = boxes.get(random.nextInt(boxes.size()));
+                if (box.getType() == BoxType.DYNAMIC) {
+                    box.setVelX(random.nextFloat() * 2f - 1f);
+                }
+            }
+        }
+    };
+
+    /**
+     * The number of boxes on each shelf of the resting pile and bloom storm scenarios.
+     */
+    private static final int BOXES_PER_ROW = 100;
+    /**
+     * The size of the tiles of the tile level scenario.
+     */
+    private static final float TILE_SIZE = 32f;
+    /**
+     * The number of steps taken when creating a scenario, so that benchmarks start from a settled world.
+     */
+    private static final int SETTLE_STEPS = 120;
+
+    /**
+     * Create the environment for this scenario.
+     * @param boxCount The number of dynamic boxes.
+     * @param random   The random used to lay out the world.
+     * @return The environment.
+     */
+    abstract Environment create(int boxCount, Random random);
+
+    /**
+     * Called before each benchmarked step, to do whatever the game would be doing between steps.
+     * @param environment The environment.
+     * @param random      The random used to drive the scenario.
+     */
+    void beforeStep(Environment environment, Random random) {}
+
+    /**
+     * Create an empty environment with downward gravity.
+     * @return The environment.
+     */
+    private static Environment createEnvironment() {
+        return new Environment(new Gravity(Direction.DOWN, 0.1f));
+    }
+
+    /**
+     * Create an environment with rows of boxes resting on shelves, one row to each shelf.
+     * @param boxCount The number of dynamic boxes.
+     * @return The environment.
+     */
+    private static Environment createShelves(int boxCount) {
+        Environment environment = createEnvironment();
+        int shelfCount          = (boxCount + BOXES_PER_ROW - 1) / BOXES_PER_ROW;
+        for (int shelf = 0; shelf < shelfCount; shelf++) {
+            environment.addBox(new BenchmarkBox(0f, shelf * 40f, BOXES_PER_ROW * 20f, 10f, BoxType.STATIC));
+        }
+        for (int i = 0; i < boxCount; i++) {
+            environment.addBox(new BenchmarkBox((i % BOXES_PER_ROW) * 20f + 2f, (i / BOXES_PER_ROW) * 40f + 10f, 16f, 16f, BoxType.DYNAMIC));
+        }
+        return environment;
+    }
+
+    /**
+     * Add walls to either side of a world, so that boxes cannot leave it.
+     * @param environment The environment.
+     * @param width       The width of the world.
+     * @param height      The height of the world.
+     */
+    private static void addWalls(Environment environment, float width, float height) {
+        environment.addBox(new BenchmarkBox(-10f, 0f, 10f, height, BoxType.STATIC));
+        environment.addBox(new BenchmarkBox(width, 0f, 10f, height, BoxType.STATIC));
+    }
+
+    /**
+     * Step an environment until it has settled.
+     * @param environment The environment.
+     * @return The environment.
+     */
+    private static Environment settle(Environment environment) {
+        for (int i = 0; i < SETTLE_STEPS; i++) {
+            environment.update();
+        }
+        return environment;
+    }
+}
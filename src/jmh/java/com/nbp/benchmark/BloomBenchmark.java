@@ -0,0 +1,67 @@
+package com.nbp.benchmark;
+
+import com.nbp.Bloom;
+import com.nbp.BoxType;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks applying a bloom to a batch of boxes, about a quarter of which are in range of it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BloomBenchmark {
+    /**
+     * The number of boxes.
+     */
+    @Param({"100", "1000", "10000"})
+    public int boxCount;
+    /**
+     * The boxes.
+     */
+    private BenchmarkBox[] boxes;
+    /**
+     * The bloom applied to the boxes, with its force alternating so that the boxes do not drift away.
+     */
+    private Bloom bloom;
+
+    /**
+     * Create the boxes and the bloom.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        boxes         = new BenchmarkBox[boxCount];
+        for (int i = 0; i < boxCount; i++) {
+            boxes[i] = new BenchmarkBox(random.nextFloat() * 1000f, random.nextFloat() * 1000f, 16f, 16f, BoxType.DYNAMIC);
+        }
+        bloom = new Bloom(500f, 500f, 280f, 2f);
+    }
+
+    /**
+     * Apply the bloom to every box.
+     */
+    @Benchmark
+    public void applyBloom() {
+        bloom.setForce(-bloom.getForce());
+        for (int i = 0; i < boxCount; i++) {
+            boxes[i].applyBloom(bloom);
+        }
+    }
+}
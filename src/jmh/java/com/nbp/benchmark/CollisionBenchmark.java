@@ -0,0 +1,90 @@
+package com.nbp.benchmark;
+
+import com.nbp.BoxType;
+import com.nbp.CollisionAxis;
+import com.nbp.NBPMath;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the narrow phase collision test and collision handling for a batch of box pairs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollisionBenchmark {
+    /**
+     * The number of box pairs.
+     */
+    @Param({"100", "1000", "10000"})
+    public int boxCount;
+    /**
+     * The pairs of boxes tested for collisions, about half of which collide.
+     */
+    private BenchmarkBox[] firstBoxes, secondBoxes;
+    /**
+     * The pairs of static and dynamic boxes which collide on the Y axis.
+     */
+    private BenchmarkBox[] staticBoxes, dynamicBoxes;
+
+    /**
+     * Create the box pairs.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        firstBoxes    = new BenchmarkBox[boxCount];
+        secondBoxes   = new BenchmarkBox[boxCount];
+        staticBoxes   = new BenchmarkBox[boxCount];
+        dynamicBoxes  = new BenchmarkBox[boxCount];
+        for (int i = 0; i < boxCount; i++) {
+            float x         = random.nextFloat() * 1000f;
+            float y         = random.nextFloat() * 1000f;
+            firstBoxes[i]   = new BenchmarkBox(x, y, 16f, 16f, BoxType.DYNAMIC);
+            secondBoxes[i]  = new BenchmarkBox(x + random.nextFloat() * 32f - 16f, y + random.nextFloat() * 48f - 24f, 16f, 16f, BoxType.DYNAMIC);
+            staticBoxes[i]  = new BenchmarkBox(x, y, 32f, 32f, BoxType.STATIC);
+            dynamicBoxes[i] = new BenchmarkBox(x, y + 30f, 16f, 16f, BoxType.DYNAMIC);
+        }
+    }
+
+    /**
+     * Test every pair of boxes for a collision.
+     * @param blackhole The blackhole consuming the results.
+     */
+    @Benchmark
+    public void doBoxesCollide(Blackhole blackhole) {
+        for (int i = 0; i < boxCount; i++) {
+            blackhole.consume(NBPMath.doBoxesCollide(firstBoxes[i], secondBoxes[i]));
+        }
+    }
+
+    /**
+     * Handle a landing collision for every pair of static and dynamic boxes, moving each dynamic box back into the static box first.
+     */
+    @Benchmark
+    public void handleCollision() {
+        for (int i = 0; i < boxCount; i++) {
+            BenchmarkBox staticBox  = staticBoxes[i];
+            BenchmarkBox dynamicBox = dynamicBoxes[i];
+            dynamicBox.setY(staticBox.getY() + 30f);
+            dynamicBox.setVelY(-2f);
+            NBPMath.handleCollision(staticBox, dynamicBox, CollisionAxis.Y);
+        }
+    }
+}
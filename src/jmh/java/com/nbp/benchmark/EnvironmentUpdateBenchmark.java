@@ -0,0 +1,65 @@
+package com.nbp.benchmark;
+
+import com.nbp.Environment;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks a whole physics step of each scenario.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnvironmentUpdateBenchmark {
+    /**
+     * The scenario to step.
+     */
+    @Param({"RESTING_PILE", "TILE_LEVEL", "BLOOM_STORM", "ZONE_FIELD", "SENSOR_CROWD"})
+    public Scenario scenario;
+    /**
+     * The number of dynamic boxes in the scenario.
+     */
+    @Param({"100", "1000", "10000"})
+    public int boxCount;
+    /**
+     * The environment being stepped.
+     */
+    private Environment environment;
+    /**
+     * The random driving the scenario between steps.
+     */
+    private Random random;
+
+    /**
+     * Create the scenario.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        environment = scenario.create(boxCount, new Random(42));
+        random      = new Random(43);
+    }
+
+    /**
+     * Take a single physics step.
+     */
+    @Benchmark
+    public void update() {
+        scenario.beforeStep(environment, random);
+        environment.update();
+    }
+}
@@ -0,0 +1,88 @@
+package com.nbp.benchmark;
+
+import com.nbp.Box;
+import com.nbp.BoxType;
+import com.nbp.Sensor;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks sensors reviewing their intersections against a list of boxes which shuffle back and forth,
+ * so that every review sees boxes being both entered and exited.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SensorBenchmark {
+    /**
+     * The number of sensors reviewing their intersections.
+     */
+    private static final int SENSOR_COUNT = 100;
+    /**
+     * The number of boxes reviewed by each sensor.
+     */
+    @Param({"100", "1000", "10000"})
+    public int boxCount;
+    /**
+     * The sensors.
+     */
+    private ArrayList<Sensor> sensors;
+    /**
+     * The boxes reviewed by each sensor.
+     */
+    private ArrayList<Box> boxes;
+    /**
+     * The distance that the boxes are moved before the next review.
+     */
+    private float shift = 4f;
+
+    /**
+     * Create the sensors and boxes.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        sensors       = new ArrayList<Sensor>();
+        boxes         = new ArrayList<Box>();
+        for (int i = 0; i < SENSOR_COUNT; i++) {
+            BenchmarkBox parent = new BenchmarkBox(random.nextFloat() * 1000f, random.nextFloat() * 1000f, 16f, 16f, BoxType.DYNAMIC);
+            Sensor sensor       = new Sensor(parent.getX() - 16f, parent.getY() - 16f, 48f, 48f);
+            parent.attachSensor(sensor);
+            sensors.add(sensor);
+            boxes.add(parent);
+        }
+        while (boxes.size() < boxCount) {
+            boxes.add(new BenchmarkBox(random.nextFloat() * 1000f, random.nextFloat() * 1000f, 8f, 8f, BoxType.DYNAMIC));
+        }
+    }
+
+    /**
+     * Shuffle the boxes and have every sensor review its intersections.
+     */
+    @Benchmark
+    public void reviewIntersections() {
+        for (int i = SENSOR_COUNT; i < boxes.size(); i++) {
+            boxes.get(i).setX(boxes.get(i).getX() + shift);
+        }
+        shift = -shift;
+        for (int i = 0; i < sensors.size(); i++) {
+            sensors.get(i).reviewIntersections(boxes);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.nbp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads values written by a {@link BitWriter} from a byte buffer.
+ */
+class BitReader {
+    /**
+     * The buffer being read from.
+     */
+    private ByteBuffer buffer;
+    /**
+     * The bits read from the buffer but not yet used, held in the low bits.
+     */
+    private long pending = 0L;
+    /**
+     * The number of bits read from the buffer but not yet used.
+     */
+    private int pendingCount = 0;
+
+    /**
+     * Start reading from a buffer, from its current position.
+     * @param buffer The buffer.
+     */
+    void begin(ByteBuffer buffer) {
+        this.buffer  = buffer;
+        pending      = 0L;
+        pendingCount = 0;
+    }
+
+    /**
+     * Read a number of bits.
+     * @param count The number of bits to read, from 0 to 32.
+     * @return The bits, in the low bits of the value.
+     */
+    int readBits(int count) {
+        if (count == 0) {
+            return 0;
+        }
+        while (pendingCount < count) {
+            pending       = (pending << 8) | (buffer.get() & 0xFF);
+            pendingCount += 8;
+        }
+        pendingCount -= count;
+        return (int) ((pending >>> pendingCount) & (0xFFFFFFFFL >>> (32 - count)));
+    }
+
+    /**
+     * Read a single bit as a boolean.
+     * @return The value.
+     */
+    boolean readBoolean() {
+        return this.readBits(1) == 1;
+    }
+
+    /**
+     * Read a value written as unsigned.
+     * @return The value.
+     */
+    int readUnsigned() {
+        return this.readBits(this.readBits(5) + 1);
+    }
+
+    /**
+     * Read a value written as signed.
+     * @return The value.
+     */
+    int readSigned() {
+        int folded = this.readUnsigned();
+        return (folded >>> 1) ^ -(folded & 1);
+    }
+
+    /**
+     * Read a float written with all of its bits.
+     * @return The value.
+     */
+    float readFloat() {
+        return Float.intBitsToFloat(this.readBits(32));
+    }
+
+    /**
+     * Stop reading from the buffer, leaving its position after the last byte that was read from.
+     */
+    void end() {
+        pendingCount = 0;
+        buffer       = null;
+    }
+}
@@ -0,0 +1,93 @@
+package com.nbp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes values to a byte buffer a few bits at a time, packing them together with no regard for byte boundaries.
+ */
+class BitWriter {
+    /**
+     * The buffer being written to.
+     */
+    private ByteBuffer buffer;
+    /**
+     * The bits waiting to be written, held in the low bits.
+     */
+    private long pending = 0L;
+    /**
+     * The number of bits waiting to be written.
+     */
+    private int pendingCount = 0;
+
+    /**
+     * Start writing to a buffer, from its current position.
+     * @param buffer The buffer.
+     */
+    void begin(ByteBuffer buffer) {
+        this.buffer  = buffer;
+        pending      = 0L;
+        pendingCount = 0;
+    }
+
+    /**
+     * Write the low bits of a value.
+     * @param value The value.
+     * @param count The number of bits to write, from 0 to 32.
+     */
+    void writeBits(int value, int count) {
+        if (count == 0) {
+            return;
+        }
+        pending       = (pending << count) | (value & (0xFFFFFFFFL >>> (32 - count)));
+        pendingCount += count;
+        while (pendingCount >= 8) {
+            pendingCount -= 8;
+            buffer.put((byte) (pending >>> pendingCount));
+        }
+    }
+
+    /**
+     * Write a boolean as a single bit.
+     * @param value The value.
+     */
+    void writeBoolean(boolean value) {
+        this.writeBits(value ? 1 : 0, 1);
+    }
+
+    /**
+     * Write a value treated as unsigned, using as few bits as it needs preceded by five bits holding that count less one.
+     * @param value The value.
+     */
+    void writeUnsigned(int value) {
+        int bitCount = Math.max(1, 32 - Integer.numberOfLeadingZeros(value));
+        this.writeBits(bitCount - 1, 5);
+        this.writeBits(value, bitCount);
+    }
+
+    /**
+     * Write a signed value, folding it so that values near zero use few bits whether they are positive or negative.
+     * @param value The value.
+     */
+    void writeSigned(int value) {
+        this.writeUnsigned((value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Write a float with all of its bits.
+     * @param value The value.
+     */
+    void writeFloat(float value) {
+        this.writeBits(Float.floatToIntBits(value), 32);
+    }
+
+    /**
+     * Write out any bits still waiting, padding the last byte with zeros, and stop writing to the buffer.
+     */
+    void end() {
+        if (pendingCount > 0) {
+            buffer.put((byte) (pending << (8 - pendingCount)));
+        }
+        pendingCount = 0;
+        buffer       = null;
+    }
+}
@@ -44,6 +44,18 @@ public abstract class Box {
      * The restitution value of this box.
      */
     private float restitution = 0f;
+    /**
+     * The mass of this box, which decides how far it is pushed when separated from another dynamic box.
+     */
+    private float mass = 1f;
+    /**
+     * The collision categories that this box belongs to, one per bit.
+     */
+    private int collisionCategory = 1;
+    /**
+     * The collision categories of the boxes that this box can collide with, one per bit.
+     */
+    private int collisionMask = -1;
     /**
      * The point of origin.
      */
@@ -64,6 +76,18 @@ public abstract class Box {
      * Defines whether this box is affected by gravity.
      */
     private boolean isAffectedByGravity = true;
+    /**
+     * Defines whether this box is swept against static boxes as it moves, so that it cannot pass through them in a single step.
+     */
+    private boolean isContinuousCollisionEnabled = false;
+    /**
+     * Defines whether this box is sleeping, having been at rest for long enough that it is no longer updated.
+     */
+    private boolean isSleeping = false;
+    /**
+     * The number of consecutive physics steps that this box has been at rest for.
+     */
+    int restingSteps = 0;
     /**
      * The list of sensors that are attached to this box.
      */
@@ -72,6 +96,79 @@ public abstract class Box {
      * The user data.
      */
     private Object userData = null;
+    /**
+     * The index of this box in the box list of its environment.
+     */
+    int index = -1;
+    /**
+     * The entry of this box in the broadphase of its environment, or null if it is not in one.
+     */
+    BroadphaseProxy broadphaseProxy = null;
+    /**
+     * The environment that this box is in, or null if it is not in one.
+     */
+    Environment environment = null;
+    /**
+     * Whether this box is in the awake list of its environment.
+     */
+    boolean isInAwakeList = false;
+    /**
+     * The environment that this box was removed from, whose lists still hold it until they are next compacted, or null if there is none.
+     */
+    Environment detachedFrom = null;
+    /**
+     * The stamp of the last sensor review which found this box to be intersecting the sensor.
+     */
+    int sensorReviewStamp = 0;
+    /**
+     * The stamp of the last bloom pass which found this box to be within reach of a bloom.
+     */
+    int bloomStamp = 0;
+    /**
+     * The impulse accumulated from the blooms applied to this box in a single pass.
+     */
+    private float bloomImpulseX, bloomImpulseY;
+    /**
+     * The position of this box at the start of the last physics step that updated it.
+     */
+    float stepStartX, stepStartY;
+    /**
+     * The number of the physics step that the step start position was recorded by, or -1 if it should not be interpolated from.
+     */
+    int stepStartStamp = -1;
+    /**
+     * The id of this box in replication messages, or -1 if it has not been given one.
+     */
+    int replicationId = -1;
+    /**
+     * The stamps used by a replication encoder to mark this box as changed since the last capture, and as gathered into a message.
+     */
+    int replicationStamp = 0, replicationEncodeStamp = 0;
+    /**
+     * The quantized position and velocity of this box when a replication encoder last captured it.
+     */
+    int replicatedX, replicatedY, replicatedVelX, replicatedVelY;
+    /**
+     * The chunk of a chunked world that holds this box, or null if it is not in a chunked world.
+     */
+    ChunkedWorld.Chunk chunk = null;
+    /**
+     * The position of this box in the box list of its chunk.
+     */
+    int chunkSlot = -1;
+    /**
+     * The id of this box in its chunked world, which it keeps when its chunk is unloaded and loaded again.
+     */
+    int worldId = -1;
+    /**
+     * The number of float and int values that the state of a box takes up in a snapshot.
+     */
+    static final int SNAPSHOT_FLOATS = 13, SNAPSHOT_INTS = 6;
+    /**
+     * The flags packed into the snapshot of a box.
+     */
+    private static final int SLEEPING_FLAG = 1, MARKED_FOR_DELETION_FLAG = 2, DELETED_FLAG = 4, AFFECTED_BY_GRAVITY_FLAG = 8,
+            CONTINUOUS_COLLISION_FLAG = 16;
 
     /**
      * Creates a new instance of the Box class.
@@ -101,6 +198,12 @@ public abstract class Box {
      * @param y The amount of velocity to apply on the Y axis.
      */
     public void applyImpulse(float x, float y) {
+        // Any impulse wakes this box and restarts the count of steps it has been at rest for.
+        this.wake();
+        if (environment != null) {
+            environment.onBoxChanged(this);
+            environment.onBoxMutated(this, ReplayRecorder.IMPULSE, x, y);
+        }
         this.velX += x;
         this.velY += y;
         // Clamp our velocity to our max.
@@ -183,26 +286,64 @@ public abstract class Box {
      * @param bloom The bloom to apply.
      */
     public void applyBloom(Bloom bloom) {
-        // Get the point of the bloom as a Point object.
-        Point bloomPoint = new Point(bloom.getX(), bloom.getY());
-        // Get the distance between the bloom and this box.
-        float distance = NBPMath.getDistanceBetweenPoints(bloomPoint, getCurrentOriginPoint());
-        // Check to see if the box is even in the range of the bloom.
-        if (distance <= bloom.getRadius()) {
-            // Our box was in the bloom, get angle difference between our bloom and the current box.
-            float angleBetweenBloomAndBox = NBPMath.getAngleBetweenPoints(getCurrentOriginPoint(), bloomPoint);
-            // Recalculate force based on the distance between our box and bloom. Avoid a divide by zero.
-            float force;
-            if (distance == 0) {
-                force = bloom.getForce() * 1;
-            } else {
-                force = bloom.getForce() * (1 - (distance / bloom.getRadius()));
-            }
-            // Apply the force of the bloom to this box.
-            if (onBloomPush(bloom, angleBetweenBloomAndBox, force, distance)) {
-                applyVelocityInDirection(angleBetweenBloomAndBox, force);
-            }
+        bloomImpulseX = 0f;
+        bloomImpulseY = 0f;
+        if (this.addBloomImpulse(bloom)) {
+            this.applyImpulse(bloomImpulseX, bloomImpulseY);
+        }
+    }
+
+    /**
+     * Apply a number of blooms to this box, accumulating their pushes into a single impulse.
+     * @param blooms The blooms to apply.
+     */
+    void applyBlooms(ArrayList<Bloom> blooms) {
+        bloomImpulseX    = 0f;
+        bloomImpulseY    = 0f;
+        boolean isPushed = false;
+        for (int i = 0; i < blooms.size(); i++) {
+            isPushed |= this.addBloomImpulse(blooms.get(i));
+        }
+        if (isPushed) {
+            this.applyImpulse(bloomImpulseX, bloomImpulseY);
+        }
+    }
+
+    /**
+     * Add the push of a bloom to the accumulated bloom impulse of this box, if the box is in range of it.
+     * @param bloom The bloom.
+     * @return Whether the bloom pushed this box.
+     */
+    private boolean addBloomImpulse(Bloom bloom) {
+        // Get the difference between the origin of this box and the bloom.
+        float deltaX = bloom.getX() - (this.getX() + (this.getWidth() / 2));
+        float deltaY = bloom.getY() - (this.getY() + (this.getHeight() / 2));
+        // Check to see if the box is even in the range of the bloom, without having to find the distance.
+        float distanceSquared = (deltaX * deltaX) + (deltaY * deltaY);
+        if (distanceSquared > bloom.getRadius() * bloom.getRadius()) {
+            return false;
+        }
+        float distance = (float) Math.sqrt(distanceSquared);
+        // Recalculate force based on the distance between our box and bloom. Avoid a divide by zero.
+        float force;
+        if (distance == 0) {
+            force = bloom.getForce() * 1;
+        } else {
+            force = bloom.getForce() * (1 - (distance / bloom.getRadius()));
+        }
+        // Our box was in the bloom, get angle difference between our bloom and the current box.
+        float angleBetweenBloomAndBox = NBPMath.getAngleOfDelta(deltaX, deltaY);
+        if (!onBloomPush(bloom, angleBetweenBloomAndBox, force, distance)) {
+            return false;
         }
+        // Push along the direction to the bloom, which is the same as pushing at the angle between them.
+        if (distance == 0) {
+            bloomImpulseX += force;
+        } else {
+            bloomImpulseX += (deltaX / distance) * force;
+            bloomImpulseY += (deltaY / distance) * force;
+        }
+        return true;
     }
 
     /**
@@ -241,6 +382,11 @@ public abstract class Box {
             attachedSensors.add(sensor);
             // Set the parent of the sensor to be this box.
             sensor.setParent(this);
+            // A box with sensors never sleeps, as its sensors need to keep reviewing their intersections.
+            this.wake();
+            if (environment != null) {
+                environment.onSensorAttached(this, sensor);
+            }
         }
     }
 
@@ -268,18 +414,35 @@ public abstract class Box {
      * @param newX The nex X position.
      */
     public void setX(float newX) {
+        // Moving a sleeping box wakes it up.
+        if (isSleeping) {
+            this.wake();
+        }
+        float oldX = this.getX();
         // Move attached sensors along with this box.
-        if (newX > this.x) {
-            for (Sensor sensor : this.attachedSensors) {
-                sensor.setX(sensor.getX() + (newX - this.x));
+        if (newX > oldX) {
+            for (int i = 0; i < attachedSensors.size(); i++) {
+                attachedSensors.get(i).setX(attachedSensors.get(i).getX() + (newX - oldX));
             }
-        } else if (newX < this.x) {
-            for (Sensor sensor : this.attachedSensors) {
-                sensor.setX(sensor.getX() - (this.x - newX));
+        } else if (newX < oldX) {
+            for (int i = 0; i < attachedSensors.size(); i++) {
+                attachedSensors.get(i).setX(attachedSensors.get(i).getX() - (oldX - newX));
             }
         }
-        this.lastPosX = x;
-        this.x = newX;
+        this.lastPosX = oldX;
+        this.x        = newX;
+        // A box moved outside of a physics step has been put there, so it jumps straight to its new position.
+        if (environment == null || !environment.isInPhysicsStep()) {
+            stepStartStamp = -1;
+        }
+        // Let the broadphase know that this box has moved.
+        if (broadphaseProxy != null) {
+            broadphaseProxy.broadphase.update(this);
+        }
+        if (environment != null) {
+            environment.onBoxChanged(this);
+            environment.onBoxMutated(this, ReplayRecorder.SET_X, newX, 0f);
+        }
     }
 
     /**
@@ -295,18 +458,35 @@ public abstract class Box {
      * @param newY position
      */
     public void setY(float newY) {
+        // Moving a sleeping box wakes it up.
+        if (isSleeping) {
+            this.wake();
+        }
+        float oldY = this.getY();
         // Move attached sensors along with this box.
-        if (newY > this.y) {
-            for (Sensor sensor : this.attachedSensors) {
-                sensor.setY(sensor.getY() + (newY - this.y));
+        if (newY > oldY) {
+            for (int i = 0; i < attachedSensors.size(); i++) {
+                attachedSensors.get(i).setY(attachedSensors.get(i).getY() + (newY - oldY));
             }
-        } else if (newY < this.y) {
-            for (Sensor sensor : this.attachedSensors) {
-                sensor.setY(sensor.getY() - (this.y - newY));
+        } else if (newY < oldY) {
+            for (int i = 0; i < attachedSensors.size(); i++) {
+                attachedSensors.get(i).setY(attachedSensors.get(i).getY() - (oldY - newY));
             }
         }
-        this.lastPosY = y;
-        this.y = newY;
+        this.lastPosY = oldY;
+        this.y        = newY;
+        // A box moved outside of a physics step has been put there, so it jumps straight to its new position.
+        if (environment == null || !environment.isInPhysicsStep()) {
+            stepStartStamp = -1;
+        }
+        // Let the broadphase know that this box has moved.
+        if (broadphaseProxy != null) {
+            broadphaseProxy.broadphase.update(this);
+        }
+        if (environment != null) {
+            environment.onBoxChanged(this);
+            environment.onBoxMutated(this, ReplayRecorder.SET_Y, newY, 0f);
+        }
     }
 
     /**
@@ -341,6 +521,24 @@ public abstract class Box {
         this.isAffectedByGravity = isAffectedByGravity;
     }
 
+    /**
+     * Gets whether this box is swept against static boxes as it moves.
+     * @return Whether continuous collision is enabled for this box.
+     */
+    public boolean isContinuousCollisionEnabled() {
+        return isContinuousCollisionEnabled;
+    }
+
+    /**
+     * Sets whether this box is swept against static boxes as it moves.
+     * A dynamic box moving faster than the static boxes it meets are thick can pass straight through them between
+     * steps, which enabling continuous collision prevents by stopping it at the first static box in its path.
+     * @param isContinuousCollisionEnabled Whether continuous collision is enabled for this box.
+     */
+    public void setContinuousCollisionEnabled(boolean isContinuousCollisionEnabled) {
+        this.isContinuousCollisionEnabled = isContinuousCollisionEnabled;
+    }
+
     /**
      * Get the current velocity of this box on the X axis.
      * @return The velocity on the X axis.
@@ -354,7 +552,14 @@ public abstract class Box {
      * @param velX The velocity on the X axis.
      */
     public void setVelX(float velX) {
+        if (isSleeping) {
+            this.wake();
+        }
         this.velX = velX;
+        if (environment != null) {
+            environment.onBoxChanged(this);
+            environment.onBoxMutated(this, ReplayRecorder.SET_VEL_X, velX, 0f);
+        }
     }
 
     /**
@@ -370,7 +575,14 @@ public abstract class Box {
      * @param velY The velocity on the Y axis.
      */
     public void setVelY(float velY) {
+        if (isSleeping) {
+            this.wake();
+        }
         this.velY = velY;
+        if (environment != null) {
+            environment.onBoxChanged(this);
+            environment.onBoxMutated(this, ReplayRecorder.SET_VEL_Y, velY, 0f);
+        }
     }
 
     /**
@@ -409,14 +621,158 @@ public abstract class Box {
         return lastPosY;
     }
 
+    /**
+     * Get the X position of this box blended between where it was at the start of the last physics step and where it is now.
+     * @param alpha How far to blend towards the current position, from zero to one.
+     * @return The interpolated X position.
+     */
+    public float getInterpolatedX(float alpha) {
+        float currentX = this.getX();
+        // Boxes that were not moved by the last step are simply where they are.
+        if (environment == null || stepStartStamp != environment.getStepCount()) {
+            return currentX;
+        }
+        return stepStartX + ((currentX - stepStartX) * alpha);
+    }
+
+    /**
+     * Get the Y position of this box blended between where it was at the start of the last physics step and where it is now.
+     * @param alpha How far to blend towards the current position, from zero to one.
+     * @return The interpolated Y position.
+     */
+    public float getInterpolatedY(float alpha) {
+        float currentY = this.getY();
+        // Boxes that were not moved by the last step are simply where they are.
+        if (environment == null || stepStartStamp != environment.getStepCount()) {
+            return currentY;
+        }
+        return stepStartY + ((currentY - stepStartY) * alpha);
+    }
+
+    /**
+     * Get the X position of this box interpolated by the current interpolation alpha of its environment.
+     * @return The interpolated X position.
+     */
+    public float getInterpolatedX() {
+        return environment == null ? this.getX() : this.getInterpolatedX(environment.getInterpolationAlpha());
+    }
+
+    /**
+     * Get the Y position of this box interpolated by the current interpolation alpha of its environment.
+     * @return The interpolated Y position.
+     */
+    public float getInterpolatedY() {
+        return environment == null ? this.getY() : this.getInterpolatedY(environment.getInterpolationAlpha());
+    }
+
     public boolean isMarkedForDeletion() {
         return isMarkedForDeletion;
     }
 
     public void markForDeletion() {
+        if (!isMarkedForDeletion && environment != null) {
+            environment.onBoxMarkedForDeletion(this);
+        }
         this.isMarkedForDeletion = true;
     }
 
+    /**
+     * Gets whether this box is sleeping.
+     * A sleeping box has been at rest for long enough that it is no longer integrated or tested for collisions.
+     * @return Whether this box is sleeping.
+     */
+    public boolean isSleeping() {
+        return isSleeping;
+    }
+
+    /**
+     * Wake this box if it is sleeping, and restart the count of steps it has been at rest for.
+     */
+    public void wake() {
+        restingSteps = 0;
+        if (isSleeping) {
+            isSleeping = false;
+            if (environment != null) {
+                environment.onBoxWoken(this);
+            }
+        }
+    }
+
+    /**
+     * Put this box to sleep.
+     */
+    void sleep() {
+        isSleeping = true;
+        velX       = 0f;
+        velY       = 0f;
+    }
+
+    /**
+     * Write the simulation state of this box into the arrays of a snapshot.
+     * @param floats      The float values of the snapshot.
+     * @param floatOffset The position in the float values to write the first one to.
+     * @param ints        The int values of the snapshot.
+     * @param intOffset   The position in the int values to write the first one to.
+     */
+    void saveState(float[] floats, int floatOffset, int[] ints, int intOffset) {
+        floats[floatOffset]      = this.getX();
+        floats[floatOffset + 1]  = this.getY();
+        floats[floatOffset + 2]  = this.getLastPosX();
+        floats[floatOffset + 3]  = this.getLastPosY();
+        floats[floatOffset + 4]  = this.getVelX();
+        floats[floatOffset + 5]  = this.getVelY();
+        floats[floatOffset + 6]  = this.getMaxVelocityX();
+        floats[floatOffset + 7]  = this.getMaxVelocityY();
+        floats[floatOffset + 8]  = this.getFriction();
+        floats[floatOffset + 9]  = this.getRestitution();
+        floats[floatOffset + 10] = stepStartX;
+        floats[floatOffset + 11] = stepStartY;
+        floats[floatOffset + 12] = mass;
+        ints[intOffset]          = index;
+        ints[intOffset + 1]      = restingSteps;
+        ints[intOffset + 2]      = stepStartStamp;
+        ints[intOffset + 3]      = (isSleeping ? SLEEPING_FLAG : 0) | (isMarkedForDeletion ? MARKED_FOR_DELETION_FLAG : 0)
+                | (isDeleted ? DELETED_FLAG : 0) | (this.isAffectedByGravity() ? AFFECTED_BY_GRAVITY_FLAG : 0)
+                | (isContinuousCollisionEnabled ? CONTINUOUS_COLLISION_FLAG : 0);
+        ints[intOffset + 4]      = collisionCategory;
+        ints[intOffset + 5]      = collisionMask;
+    }
+
+    /**
+     * Overwrite the simulation state of this box with the state held in the arrays of a snapshot.
+     * Nothing is notified, so the caller is left to bring the broadphase and environment lists up to date.
+     * @param floats      The float values of the snapshot.
+     * @param floatOffset The position in the float values of the first one to read.
+     * @param ints        The int values of the snapshot.
+     * @param intOffset   The position in the int values of the first one to read.
+     */
+    void restoreState(float[] floats, int floatOffset, int[] ints, int intOffset) {
+        int flags = ints[intOffset + 3];
+        x                   = floats[floatOffset];
+        y                   = floats[floatOffset + 1];
+        lastPosX            = floats[floatOffset + 2];
+        lastPosY            = floats[floatOffset + 3];
+        velX                = floats[floatOffset + 4];
+        velY                = floats[floatOffset + 5];
+        maxVelX             = floats[floatOffset + 6];
+        maxVelY             = floats[floatOffset + 7];
+        friction            = floats[floatOffset + 8];
+        restitution         = floats[floatOffset + 9];
+        isAffectedByGravity = (flags & AFFECTED_BY_GRAVITY_FLAG) != 0;
+        stepStartX                   = floats[floatOffset + 10];
+        stepStartY                   = floats[floatOffset + 11];
+        mass                         = floats[floatOffset + 12];
+        index                        = ints[intOffset];
+        restingSteps                 = ints[intOffset + 1];
+        stepStartStamp               = ints[intOffset + 2];
+        isSleeping                   = (flags & SLEEPING_FLAG) != 0;
+        isMarkedForDeletion          = (flags & MARKED_FOR_DELETION_FLAG) != 0;
+        isContinuousCollisionEnabled = (flags & CONTINUOUS_COLLISION_FLAG) != 0;
+        isDeleted                    = (flags & DELETED_FLAG) != 0;
+        collisionCategory            = ints[intOffset + 4];
+        collisionMask                = ints[intOffset + 5];
+    }
+
     public boolean isDeleted() {
         return isDeleted;
     }
@@ -471,13 +827,75 @@ public abstract class Box {
         }
     }
 
+    /**
+     * Get the mass of this box.
+     * @return The mass.
+     */
+    public float getMass() {
+        return mass;
+    }
+
+    /**
+     * Set the mass of this box. When two dynamic boxes collide they are pushed apart in inverse proportion
+     * to their masses, so a heavy box barely moves when a light one runs into it.
+     * @param mass The mass, which defaults to one.
+     */
+    public void setMass(float mass) {
+        if (mass <= 0f) {
+            throw new IllegalArgumentException("mass must be greater than zero");
+        }
+        this.mass = mass;
+    }
+
+    /**
+     * Get the collision categories that this box belongs to.
+     * @return The collision categories, one per bit.
+     */
+    public int getCollisionCategory() {
+        return collisionCategory;
+    }
+
+    /**
+     * Set the collision categories that this box belongs to. Two boxes only collide when each belongs to a category
+     * in the mask of the other, and a box belonging to no category collides with nothing.
+     * @param collisionCategory The collision categories, one per bit, which defaults to the first category only.
+     */
+    public void setCollisionCategory(int collisionCategory) {
+        this.collisionCategory = collisionCategory;
+    }
+
+    /**
+     * Get the collision categories of the boxes that this box can collide with.
+     * @return The collision mask, one category per bit.
+     */
+    public int getCollisionMask() {
+        return collisionMask;
+    }
+
+    /**
+     * Set the collision categories of the boxes that this box can collide with.
+     * @param collisionMask The collision mask, one category per bit, which defaults to every category.
+     */
+    public void setCollisionMask(int collisionMask) {
+        this.collisionMask = collisionMask;
+    }
+
+    /**
+     * Get whether this box can collide with another, based on the collision categories and masks of both boxes.
+     * @param otherBox The other box.
+     * @return Whether the boxes can collide.
+     */
+    public boolean canCollideWith(Box otherBox) {
+        return NBPMath.doCollisionFiltersMatch(collisionCategory, collisionMask, otherBox.collisionCategory, otherBox.collisionMask);
+    }
+
     /**
      * Get the current origin point of this box.
      * @return The current origin point of this box.
      */
     public Point getCurrentOriginPoint() {
-        originPoint.setX(this.x + (width / 2));
-        originPoint.setY(this.y + (height / 2));
+        originPoint.setX(this.getX() + (this.getWidth() / 2));
+        originPoint.setY(this.getY() + (this.getHeight() / 2));
         return originPoint;
     }
 
@@ -486,15 +904,42 @@ public abstract class Box {
      * @return The last origin point of this box.
      */
     public Point getLastOriginPoint() {
-        lastOriginPoint.setX(this.lastPosX + (width / 2));
-        lastOriginPoint.setY(this.lastPosY + (height / 2));
+        lastOriginPoint.setX(this.getLastPosX() + (this.getWidth() / 2));
+        lastOriginPoint.setY(this.getLastPosY() + (this.getHeight() / 2));
         return lastOriginPoint;
     }
 
+    /**
+     * Handle a collision between this box and a dynamic box.
+     * The intersection point is reused by the environment and is only valid until this method returns.
+     * @param collidingBox                The colliding box.
+     * @param dynamicBoxOriginAtCollision The point of intersection.
+     */
     protected abstract void onCollisionWithDynamicBox(Box collidingBox, IntersectionPoint dynamicBoxOriginAtCollision);
 
+    /**
+     * Handle a collision between this box and a static box.
+     * The intersection point is reused by the environment and is only valid until this method returns.
+     * @param collidingBox      The colliding box.
+     * @param originAtCollision The point of intersection.
+     */
     protected abstract void onCollisionWithStaticBox(Box collidingBox, IntersectionPoint originAtCollision);
 
+    /**
+     * Handle this dynamic box coming into contact with another dynamic box.
+     * The contact lasts for as long as the boxes keep touching, and any collisions between them in the meantime are
+     * notified at most once per physics step. Does nothing unless overridden.
+     * @param otherBox The other box.
+     */
+    protected void onContactBegin(Box otherBox) {}
+
+    /**
+     * Handle this dynamic box no longer touching a dynamic box that it was in contact with.
+     * Does nothing unless overridden.
+     * @param otherBox The other box.
+     */
+    protected void onContactEnd(Box otherBox) {}
+
     protected abstract void onSensorEntry(Sensor sensor, Box enteredBox);
 
     protected abstract void onSensorExit(Sensor sensor, Box exitedBox);
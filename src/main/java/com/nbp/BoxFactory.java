@@ -0,0 +1,16 @@
+package com.nbp;
+
+/**
+ * Creates the boxes that stand in for the boxes of another environment, such as those being replicated or replayed.
+ */
+public interface BoxFactory {
+    /**
+     * Create a box. The position, velocity and other state of the box are set once it has been created.
+     * @param id     The id of the box in the messages or recording that it was read from.
+     * @param type   The type of the box.
+     * @param width  The width of the box.
+     * @param height The height of the box.
+     * @return The box.
+     */
+    Box createBox(int id, BoxType type, float width, float height);
+}
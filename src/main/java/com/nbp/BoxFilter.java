@@ -0,0 +1,14 @@
+package com.nbp;
+
+/**
+ * Picks which of the boxes found by a spatial query of an environment are included in its results.
+ */
+public interface BoxFilter {
+    /**
+     * Get whether a box found by a query should be included in its results.
+     * This is called in the middle of the query, so it should not query the environment itself.
+     * @param box The box.
+     * @return Whether the box should be included.
+     */
+    boolean accept(Box box);
+}
@@ -0,0 +1,139 @@
+package com.nbp;
+
+import java.util.ArrayList;
+
+/**
+ * Picks the candidate boxes that a box may collide with, so that the physics
+ * step does not have to test every box against every other box in the environment.
+ */
+public abstract class Broadphase {
+    /**
+     * The stamp of the most recent query, used to avoid reporting a candidate box more than once.
+     */
+    private int queryStamp = 0;
+
+    /**
+     * Add a box to this broadphase.
+     * @param box The box to add.
+     */
+    abstract void add(Box box);
+
+    /**
+     * Remove a box from this broadphase.
+     * @param box The box to remove.
+     */
+    abstract void remove(Box box);
+
+    /**
+     * Called whenever a box in this broadphase has changed position.
+     * @param box The box that has moved.
+     */
+    abstract void update(Box box);
+
+    /**
+     * Add every box which may intersect the specified box to the candidates list, leaving out any box that the
+     * collision filters of the specified box rule out. The specified box is never added as a candidate of itself
+     * and each candidate is added only once.
+     * @param box        The box to find candidates for.
+     * @param candidates The list to add the candidate boxes to.
+     */
+    abstract void getCandidates(Box box, ArrayList<Box> candidates);
+
+    /**
+     * Add every box which intersects the specified area to the results list.
+     * @param minX    The minimum X position of the area.
+     * @param minY    The minimum Y position of the area.
+     * @param maxX    The maximum X position of the area.
+     * @param maxY    The maximum Y position of the area.
+     * @param results The list to add the intersecting boxes to.
+     */
+    abstract void query(float minX, float minY, float maxX, float maxY, ArrayList<Box> results);
+
+    /**
+     * Add every box which is crossed by the specified line segment to the results list.
+     * Each box is added only once. This default checks every box which intersects the bounds of the segment.
+     * @param startX  The X position of the start of the segment.
+     * @param startY  The Y position of the start of the segment.
+     * @param endX    The X position of the end of the segment.
+     * @param endY    The Y position of the end of the segment.
+     * @param results The list to add the crossed boxes to.
+     */
+    void queryRay(float startX, float startY, float endX, float endY, ArrayList<Box> results) {
+        int first = results.size();
+        // A segment running along an axis has empty bounds, so the bounds are grown to take in the boxes that it runs through.
+        query(Math.nextDown(Math.min(startX, endX)), Math.nextDown(Math.min(startY, endY)),
+                Math.nextUp(Math.max(startX, endX)), Math.nextUp(Math.max(startY, endY)), results);
+        int retained = first;
+        for (int i = first; i < results.size(); i++) {
+            Box box = results.get(i);
+            if (crosses(startX, startY, endX, endY, box.getX(), box.getY(), box.getX() + box.getWidth(), box.getY() + box.getHeight())) {
+                results.set(retained++, box);
+            }
+        }
+        while (results.size() > retained) {
+            results.remove(results.size() - 1);
+        }
+    }
+
+    /**
+     * Get whether a line segment passes through the inside of the specified area, rather than just touching its edges.
+     * @param startX The X position of the start of the segment.
+     * @param startY The Y position of the start of the segment.
+     * @param endX   The X position of the end of the segment.
+     * @param endY   The Y position of the end of the segment.
+     * @param minX   The minimum X position of the area.
+     * @param minY   The minimum Y position of the area.
+     * @param maxX   The maximum X position of the area.
+     * @param maxY   The maximum Y position of the area.
+     * @return Whether the segment crosses the area.
+     */
+    static boolean crosses(float startX, float startY, float endX, float endY, float minX, float minY, float maxX, float maxY) {
+        float deltaX = endX - startX;
+        float deltaY = endY - startY;
+        float enter  = 0f;
+        float exit   = 1f;
+        // Narrow down the part of the segment within the area on each axis in turn.
+        if (deltaX == 0f) {
+            if (startX <= minX || startX >= maxX) {
+                return false;
+            }
+        } else {
+            float near = (minX - startX) / deltaX;
+            float far  = (maxX - startX) / deltaX;
+            enter      = Math.max(enter, Math.min(near, far));
+            exit       = Math.min(exit, Math.max(near, far));
+        }
+        if (deltaY == 0f) {
+            if (startY <= minY || startY >= maxY) {
+                return false;
+            }
+        } else {
+            float near = (minY - startY) / deltaY;
+            float far  = (maxY - startY) / deltaY;
+            enter      = Math.max(enter, Math.min(near, far));
+            exit       = Math.min(exit, Math.max(near, far));
+        }
+        return enter < exit;
+    }
+
+    /**
+     * Get whether a box intersects the specified area.
+     * @param minX The minimum X position of the area.
+     * @param minY The minimum Y position of the area.
+     * @param maxX The maximum X position of the area.
+     * @param maxY The maximum Y position of the area.
+     * @param box  The box.
+     * @return Whether the box intersects the area.
+     */
+    static boolean intersects(float minX, float minY, float maxX, float maxY, Box box) {
+        return minX < (box.getX() + box.getWidth()) && maxX > box.getX() && minY < (box.getY() + box.getHeight()) && maxY > box.getY();
+    }
+
+    /**
+     * Get a new query stamp.
+     * @return The new query stamp.
+     */
+    int nextQueryStamp() {
+        return ++queryStamp;
+    }
+}
@@ -0,0 +1,29 @@
+package com.nbp;
+
+/**
+ * The entry of a box in a broadphase.
+ */
+class BroadphaseProxy {
+    /**
+     * The box that this proxy represents.
+     */
+    final Box box;
+    /**
+     * The broadphase that this proxy belongs to.
+     */
+    final Broadphase broadphase;
+    /**
+     * The stamp of the last query which reported this box as a candidate.
+     */
+    int queryStamp = 0;
+
+    /**
+     * Create a new instance of the BroadphaseProxy class.
+     * @param box        The box that this proxy represents.
+     * @param broadphase The broadphase that this proxy belongs to.
+     */
+    BroadphaseProxy(Box box, Broadphase broadphase) {
+        this.box        = box;
+        this.broadphase = broadphase;
+    }
+}
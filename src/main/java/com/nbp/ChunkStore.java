@@ -0,0 +1,28 @@
+package com.nbp;
+
+import java.io.IOException;
+
+/**
+ * Holds the encoded boxes of the chunks of a {@link ChunkedWorld} which have been unloaded.
+ * Chunks are saved and loaded from a background thread, which can be doing so at the same time as the thread updating
+ * the world, so a store must be thread safe. A chunk is only ever loaded once it has been saved.
+ */
+public interface ChunkStore {
+    /**
+     * Save the encoded boxes of a chunk, replacing any saved before.
+     * @param chunkX The X position of the chunk, in chunks.
+     * @param chunkY The Y position of the chunk, in chunks.
+     * @param data   The encoded boxes.
+     * @throws IOException If the chunk could not be saved.
+     */
+    void save(int chunkX, int chunkY, byte[] data) throws IOException;
+
+    /**
+     * Load the encoded boxes of a chunk.
+     * @param chunkX The X position of the chunk, in chunks.
+     * @param chunkY The Y position of the chunk, in chunks.
+     * @return The encoded boxes last saved for the chunk.
+     * @throws IOException If the chunk could not be loaded.
+     */
+    byte[] load(int chunkX, int chunkY) throws IOException;
+}
@@ -0,0 +1,979 @@
+package com.nbp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A world too large to simulate all at once, split into square chunks of which only those near an observer are held
+ * in an environment. Every box added to the world is bucketed into the chunk holding its centre, and the cost of each
+ * update follows the number of boxes in the chunks near the observers rather than the size of the world. No box can be
+ * wider or taller than a chunk, so that a box can only reach into the chunks next to its own, and any static box which
+ * reaches into an active chunk is in the environment with it. Larger level geometry should be split into several boxes.
+ * <p>
+ * The chunks within the radius of an observer are active, and every box in them is simulated. The chunks in the ring
+ * just outside of these only have their static boxes put into the environment, so that boxes at the edge of the active
+ * chunks still collide with the level geometry there, and any box which moves into one of these chunks is frozen
+ * where it is until its chunk is next active. Chunks in the ring outside of that are loaded in the background ahead of
+ * an observer reaching them. Any other chunk is dormant, with its boxes held out of the environment, and once it has
+ * been dormant for the unload delay its boxes are encoded into the chunk store and dropped. A box which moves from one
+ * chunk into another is simply moved to the box list of the new chunk.
+ * <p>
+ * The box objects of an unloaded chunk are recreated by the box factory when it is loaded again, and given the same
+ * world id as the boxes that they replace. Boxes should be added to and removed from the world rather than the environment,
+ * and any box added straight to the environment is always simulated.
+ */
+public class ChunkedWorld {
+    /**
+     * The default number of updates that a chunk is dormant for before it is unloaded.
+     */
+    public static final int DEFAULT_UNLOAD_DELAY = 600;
+    /**
+     * The levels that a chunk can be at, with every box of an active chunk being simulated and only the static boxes of a border chunk.
+     */
+    private static final int DORMANT = 0, BORDER = 1, ACTIVE = 2;
+    /**
+     * The number of bytes taken up by an encoded box, not counting its sensors.
+     */
+    private static final int BOX_SIZE = 4 + 1 + 8 + (Box.SNAPSHOT_FLOATS * 4) + (Box.SNAPSHOT_INTS * 4) + 4;
+    /**
+     * The number of bytes taken up by an encoded sensor.
+     */
+    private static final int SENSOR_SIZE = 16;
+    /**
+     * The environment holding the boxes of the chunks near the observers.
+     */
+    private final Environment environment;
+    /**
+     * The width and height of each chunk.
+     */
+    private final float chunkSize;
+    /**
+     * The factory used to create the boxes of a chunk when it is loaded.
+     */
+    private final BoxFactory boxFactory;
+    /**
+     * The store holding the encoded boxes of the unloaded chunks.
+     */
+    private final ChunkStore chunkStore;
+    /**
+     * The executor that loads and saves chunks in the background.
+     */
+    private final Executor loader;
+    /**
+     * Whether the loader was created by this world, and so should be shut down with it.
+     */
+    private final boolean isLoaderOwned;
+    /**
+     * The number of updates that a chunk is dormant for before it is unloaded.
+     */
+    private int unloadDelay = DEFAULT_UNLOAD_DELAY;
+    /**
+     * Every chunk that has held a box, by chunk key.
+     */
+    private final HashMap<Long, Chunk> chunks = new HashMap<Long, Chunk>();
+    /**
+     * The observers.
+     */
+    private final ArrayList<Observer> observers = new ArrayList<Observer>();
+    /**
+     * Whether an observer has been added, removed, or moved into another chunk since the wanted levels were refreshed.
+     */
+    private boolean isObserverChanged = false;
+    /**
+     * The level wanted for each chunk near an observer by chunk key, and the wanted levels before they were last refreshed.
+     * Chunks are loaded ahead of time for the dormant level, and any chunk not held in the wanted levels can be unloaded.
+     */
+    private HashMap<Long, Integer> wantedLevels = new HashMap<Long, Integer>(), lastWantedLevels = new HashMap<Long, Integer>();
+    /**
+     * The chunks that could be unloaded once they have been dormant for long enough, in the order they went dormant.
+     */
+    private final ArrayDeque<Chunk> unloadQueue = new ArrayDeque<Chunk>();
+    /**
+     * The chunk loads and saves finished by the loader, waiting to be taken up by the next update.
+     */
+    private final ConcurrentLinkedQueue<Transfer> finishedTransfers = new ConcurrentLinkedQueue<Transfer>();
+    /**
+     * The reusable lists of the boxes being taken out of the environment together, and of the boxes that have moved into another chunk.
+     */
+    private final ArrayList<Box> removedBoxes = new ArrayList<Box>(), migratingBoxes = new ArrayList<Box>();
+    /**
+     * The world id to give the next box added to the world.
+     */
+    private int nextWorldId = 0;
+    /**
+     * The number of chunks which are loaded, and which are active.
+     */
+    private int loadedChunkCount = 0, activeChunkCount = 0;
+    /**
+     * The number of updates of the world.
+     */
+    private int updateCount = 0;
+
+    /**
+     * Create a new instance of the ChunkedWorld class which keeps unloaded chunks in memory and loads them on its own background thread.
+     * @param environment The environment to hold the boxes of the chunks near the observers.
+     * @param chunkSize   The width and height of each chunk.
+     * @param boxFactory  The factory used to create the boxes of a chunk when it is loaded.
+     */
+    public ChunkedWorld(Environment environment, float chunkSize, BoxFactory boxFactory) {
+        this(environment, chunkSize, boxFactory, new MemoryChunkStore(), createLoader(), true);
+    }
+
+    /**
+     * Create a new instance of the ChunkedWorld class.
+     * @param environment The environment to hold the boxes of the chunks near the observers.
+     * @param chunkSize   The width and height of each chunk, which must be at least as large as every box and should be larger than the distance a box can move in one update.
+     * @param boxFactory  The factory used to create the boxes of a chunk when it is loaded.
+     * @param chunkStore  The store to hold the encoded boxes of the unloaded chunks.
+     * @param loader      The executor that loads and saves chunks in the background, which is left running when the world is closed.
+     */
+    public ChunkedWorld(Environment environment, float chunkSize, BoxFactory boxFactory, ChunkStore chunkStore, Executor loader) {
+        this(environment, chunkSize, boxFactory, chunkStore, loader, false);
+    }
+
+    /**
+     * Create a new instance of the ChunkedWorld class.
+     * @param environment   The environment to hold the boxes of the chunks near the observers.
+     * @param chunkSize     The width and height of each chunk.
+     * @param boxFactory    The factory used to create the boxes of a chunk when it is loaded.
+     * @param chunkStore    The store to hold the encoded boxes of the unloaded chunks.
+     * @param loader        The executor that loads and saves chunks in the background.
+     * @param isLoaderOwned Whether the loader should be shut down with the world.
+     */
+    private ChunkedWorld(Environment environment, float chunkSize, BoxFactory boxFactory, ChunkStore chunkStore, Executor loader, boolean isLoaderOwned) {
+        if (!(chunkSize > 0)) {
+            throw new IllegalArgumentException("chunk size must be greater than zero");
+        }
+        this.environment   = environment;
+        this.chunkSize     = chunkSize;
+        this.boxFactory    = boxFactory;
+        this.chunkStore    = chunkStore;
+        this.loader        = loader;
+        this.isLoaderOwned = isLoaderOwned;
+    }
+
+    /**
+     * Create the single daemon thread used to load and save chunks when no loader is given.
+     * @return The loader.
+     */
+    private static ExecutorService createLoader() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "nbp-chunk-loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Update the world, bringing the chunks near the observers into the environment and taking those that are no longer
+     * near one out of it, then updating the environment and moving any box which has left its chunk into its new one.
+     * @throws UncheckedIOException If a chunk could not be loaded from the chunk store.
+     */
+    public void update() {
+        this.takeFinishedTransfers();
+        if (isObserverChanged) {
+            this.refreshWantedLevels();
+            isObserverChanged = false;
+        }
+        environment.update();
+        updateCount++;
+        this.migrateBoxes();
+        this.unloadDormantChunks();
+    }
+
+    /**
+     * Add a box to the world, putting it into the environment if its chunk is near enough to an observer.
+     * @param box The box to add, which cannot be wider or taller than a chunk.
+     * @throws IllegalArgumentException If the box is wider or taller than a chunk.
+     * @throws UncheckedIOException     If the chunk of the box was unloaded and could not be loaded from the chunk store.
+     */
+    public void addBox(Box box) {
+        if (box.chunk != null) {
+            return;
+        }
+        // A larger box could reach past the border chunks into the chunks which are not in the environment.
+        if (box.getWidth() > chunkSize || box.getHeight() > chunkSize) {
+            throw new IllegalArgumentException("box is larger than a chunk");
+        }
+        if (box.worldId == -1) {
+            box.worldId = nextWorldId++;
+        }
+        Chunk chunk = this.getLoadedChunk(this.getChunkX(box), this.getChunkY(box));
+        chunk.add(box);
+        if (isSimulated(chunk.level, box)) {
+            environment.addBox(box);
+        }
+    }
+
+    /**
+     * Remove a box from the world, taking it out of the environment if it is in it.
+     * @param box The box to remove.
+     */
+    public void removeBox(Box box) {
+        if (box.chunk != null) {
+            box.chunk.remove(box);
+            environment.removeBox(box);
+        }
+    }
+
+    /**
+     * Get the id of a box in this world, which is passed to the box factory when the box is recreated after its chunk has been unloaded.
+     * @param box The box.
+     * @return The world id, or -1 if the box has never been added to the world.
+     */
+    public int getBoxId(Box box) {
+        return box.worldId;
+    }
+
+    /**
+     * Add an observer, around which the chunks of the world are simulated.
+     * @param x      The X position of the observer.
+     * @param y      The Y position of the observer.
+     * @param radius The number of chunks around the chunk of the observer that are active.
+     * @return The observer.
+     */
+    public Observer addObserver(float x, float y, int radius) {
+        Observer observer = new Observer();
+        observer.setRadius(radius);
+        observer.setPosition(x, y);
+        observers.add(observer);
+        isObserverChanged = true;
+        return observer;
+    }
+
+    /**
+     * Remove an observer.
+     * @param observer The observer to remove.
+     */
+    public void removeObserver(Observer observer) {
+        if (observers.remove(observer)) {
+            isObserverChanged = true;
+        }
+    }
+
+    /**
+     * Refresh the level wanted for each chunk near an observer, then bring every chunk up or down to its wanted level.
+     */
+    private void refreshWantedLevels() {
+        HashMap<Long, Integer> levels = lastWantedLevels;
+        levels.clear();
+        for (int i = 0; i < observers.size(); i++) {
+            Observer observer = observers.get(i);
+            int reach         = observer.radius + 2;
+            for (int offsetX = -reach; offsetX <= reach; offsetX++) {
+                for (int offsetY = -reach; offsetY <= reach; offsetY++) {
+                    int ring     = Math.max(Math.abs(offsetX), Math.abs(offsetY));
+                    int level    = ring <= observer.radius ? ACTIVE : (ring == observer.radius + 1 ? BORDER : DORMANT);
+                    Long key     = getChunkKey(observer.chunkX + offsetX, observer.chunkY + offsetY);
+                    Integer last = levels.get(key);
+                    if (last == null || last < level) {
+                        levels.put(key, level);
+                    }
+                }
+            }
+        }
+        lastWantedLevels = wantedLevels;
+        wantedLevels     = levels;
+        // Take the boxes of every chunk which is wanted at a lower level, or no longer wanted, out of the environment together.
+        for (Map.Entry<Long, Integer> entry : lastWantedLevels.entrySet()) {
+            Chunk chunk    = chunks.get(entry.getKey());
+            Integer wanted = wantedLevels.get(entry.getKey());
+            if (chunk == null || chunk.boxes == null) {
+                continue;
+            }
+            if (wanted == null) {
+                this.queueUnload(chunk);
+            }
+            if (chunk.level > (wanted == null ? DORMANT : wanted)) {
+                this.applyLevel(chunk, wanted == null ? DORMANT : wanted);
+            }
+        }
+        environment.removeBoxes(removedBoxes);
+        removedBoxes.clear();
+        // Then bring up the chunks which are wanted at a higher level, loading any which are unloaded.
+        for (Map.Entry<Long, Integer> entry : wantedLevels.entrySet()) {
+            Chunk chunk = chunks.get(entry.getKey());
+            int wanted  = entry.getValue();
+            if (chunk == null) {
+                continue;
+            }
+            if (wanted == DORMANT) {
+                this.requestLoad(chunk);
+            } else {
+                if (chunk.boxes == null) {
+                    this.loadChunk(chunk, null);
+                }
+                if (chunk.level < wanted) {
+                    this.applyLevel(chunk, wanted);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bring a loaded chunk to a level, putting any box which should now be simulated into the environment and
+     * adding any box which should no longer be simulated to the removed boxes. Deleted boxes are dropped from the chunk.
+     * @param chunk The chunk.
+     * @param level The level.
+     */
+    private void applyLevel(Chunk chunk, int level) {
+        ArrayList<Box> boxes = chunk.boxes;
+        // Work back through the boxes, as removing a box moves the last box into its place.
+        for (int i = boxes.size() - 1; i >= 0; i--) {
+            Box box = boxes.get(i);
+            if (box.isDeleted()) {
+                chunk.remove(box);
+            } else if (isSimulated(level, box)) {
+                if (box.environment != environment) {
+                    environment.addBox(box);
+                }
+            } else if (box.environment == environment) {
+                removedBoxes.add(box);
+            }
+        }
+        if (chunk.level == ACTIVE) {
+            activeChunkCount--;
+        }
+        if (level == ACTIVE) {
+            activeChunkCount++;
+        }
+        chunk.level = level;
+    }
+
+    /**
+     * Move every awake box which has left its chunk into the chunk that it is now in, freezing any which have moved into a chunk that is not active.
+     */
+    private void migrateBoxes() {
+        ArrayList<Box> awakeBoxes = environment.getAwakeBoxes();
+        for (int i = 0; i < awakeBoxes.size(); i++) {
+            Box box     = awakeBoxes.get(i);
+            Chunk chunk = box.chunk;
+            if (chunk != null && (this.getChunkX(box) != chunk.chunkX || this.getChunkY(box) != chunk.chunkY)) {
+                migratingBoxes.add(box);
+            }
+        }
+        for (int i = 0; i < migratingBoxes.size(); i++) {
+            Box box     = migratingBoxes.get(i);
+            Chunk chunk = this.getLoadedChunk(this.getChunkX(box), this.getChunkY(box));
+            box.chunk.remove(box);
+            chunk.add(box);
+            if (!isSimulated(chunk.level, box)) {
+                removedBoxes.add(box);
+            }
+        }
+        migratingBoxes.clear();
+        environment.removeBoxes(removedBoxes);
+        removedBoxes.clear();
+    }
+
+    /**
+     * Unload every chunk which has been dormant for the unload delay and is not wanted.
+     */
+    private void unloadDormantChunks() {
+        while (!unloadQueue.isEmpty()) {
+            Chunk chunk = unloadQueue.peek();
+            if (chunk.boxes != null && !wantedLevels.containsKey(chunk.key) && updateCount - chunk.dormantSince < unloadDelay) {
+                // A chunk queued more than once is only unloaded from its latest place in the queue.
+                if (chunk.unloadQueueCount == 1) {
+                    break;
+                }
+                unloadQueue.poll();
+                chunk.unloadQueueCount--;
+                continue;
+            }
+            unloadQueue.poll();
+            chunk.unloadQueueCount--;
+            if (chunk.boxes != null && !wantedLevels.containsKey(chunk.key)) {
+                this.unloadChunk(chunk);
+            }
+        }
+    }
+
+    /**
+     * Queue a loaded chunk which is no longer wanted to be unloaded once it has been dormant for the unload delay.
+     * @param chunk The chunk.
+     */
+    private void queueUnload(Chunk chunk) {
+        chunk.dormantSince = updateCount;
+        chunk.unloadQueueCount++;
+        unloadQueue.add(chunk);
+    }
+
+    /**
+     * Unload a dormant chunk, encoding its boxes and handing them to the loader to be saved into the chunk store.
+     * @param chunk The chunk.
+     */
+    private void unloadChunk(Chunk chunk) {
+        ArrayList<Box> boxes = chunk.boxes;
+        for (int i = boxes.size() - 1; i >= 0; i--) {
+            if (boxes.get(i).isDeleted()) {
+                chunk.remove(boxes.get(i));
+            }
+        }
+        loadedChunkCount--;
+        // A chunk which has never held a box that was saved can simply be forgotten once it is empty.
+        if (boxes.isEmpty() && !chunk.isSaved) {
+            chunks.remove(chunk.key);
+            chunk.boxes = null;
+            return;
+        }
+        chunk.data = this.encode(boxes);
+        for (int i = 0; i < boxes.size(); i++) {
+            boxes.get(i).chunk = null;
+        }
+        chunk.boxes   = null;
+        chunk.isSaved = true;
+        if (!chunk.isSaving) {
+            this.saveChunk(chunk);
+        }
+    }
+
+    /**
+     * Hand the encoded boxes of an unloaded chunk to the loader to be saved into the chunk store.
+     * @param chunk The chunk.
+     */
+    private void saveChunk(final Chunk chunk) {
+        final byte[] data = chunk.data;
+        chunk.isSaving    = true;
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                Transfer transfer = new Transfer(chunk, true, 0);
+                transfer.data     = data;
+                try {
+                    chunkStore.save(chunk.chunkX, chunk.chunkY, data);
+                } catch (IOException exception) {
+                    transfer.failure = exception;
+                }
+                finishedTransfers.add(transfer);
+            }
+        });
+    }
+
+    /**
+     * Hand an unloaded chunk to the loader to be loaded from the chunk store, unless it is already being loaded.
+     * @param chunk The chunk.
+     */
+    private void requestLoad(final Chunk chunk) {
+        if (chunk.boxes != null || chunk.isLoading) {
+            return;
+        }
+        // A chunk still waiting to be saved has its boxes at hand.
+        if (chunk.data != null) {
+            this.loadChunk(chunk, chunk.data);
+            return;
+        }
+        final int stamp = ++chunk.loadStamp;
+        chunk.isLoading = true;
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                Transfer transfer = new Transfer(chunk, false, stamp);
+                try {
+                    transfer.data = chunkStore.load(chunk.chunkX, chunk.chunkY);
+                } catch (IOException exception) {
+                    transfer.failure = exception;
+                }
+                finishedTransfers.add(transfer);
+            }
+        });
+    }
+
+    /**
+     * Take up the chunk loads and saves finished by the loader since the last update.
+     * @throws UncheckedIOException If a chunk could not be loaded or saved.
+     */
+    private void takeFinishedTransfers() {
+        IOException failure = null;
+        Transfer transfer;
+        while ((transfer = finishedTransfers.poll()) != null) {
+            Chunk chunk = transfer.chunk;
+            if (transfer.isSave) {
+                chunk.isSaving = false;
+                // The boxes are kept in memory if they could not be saved.
+                if (transfer.failure != null) {
+                    failure = transfer.failure;
+                } else if (chunk.data == transfer.data) {
+                    chunk.data = null;
+                } else if (chunk.data != null) {
+                    // The chunk was loaded and unloaded again while it was being saved.
+                    this.saveChunk(chunk);
+                }
+            } else if (chunk.isLoading && chunk.loadStamp == transfer.stamp) {
+                // Only the latest load counts, as the chunk could have been needed and loaded before this one finished.
+                chunk.isLoading = false;
+                if (transfer.failure != null) {
+                    failure = transfer.failure;
+                } else {
+                    this.loadChunk(chunk, transfer.data);
+                }
+            }
+        }
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+    }
+
+    /**
+     * Get the loaded chunk at a position, creating it if it does not exist and loading it straight away if it is unloaded.
+     * @param chunkX The X position of the chunk, in chunks.
+     * @param chunkY The Y position of the chunk, in chunks.
+     * @return The chunk.
+     */
+    private Chunk getLoadedChunk(int chunkX, int chunkY) {
+        Long key    = getChunkKey(chunkX, chunkY);
+        Chunk chunk = chunks.get(key);
+        if (chunk == null) {
+            Integer wanted = wantedLevels.get(key);
+            chunk          = new Chunk(chunkX, chunkY, key);
+            chunk.boxes    = new ArrayList<Box>();
+            chunk.level    = wanted == null ? DORMANT : wanted;
+            chunks.put(key, chunk);
+            loadedChunkCount++;
+            if (chunk.level == ACTIVE) {
+                activeChunkCount++;
+            }
+            if (wanted == null) {
+                this.queueUnload(chunk);
+            }
+        } else if (chunk.boxes == null) {
+            this.loadChunk(chunk, null);
+        }
+        return chunk;
+    }
+
+    /**
+     * Load an unloaded chunk, recreating its boxes with the box factory. The chunk is left dormant.
+     * @param chunk The chunk.
+     * @param data  The encoded boxes of the chunk, or null if they should be loaded from the chunk store straight away.
+     * @throws UncheckedIOException If the chunk could not be loaded from the chunk store.
+     */
+    private void loadChunk(Chunk chunk, byte[] data) {
+        if (data == null) {
+            data = chunk.data;
+        }
+        if (data == null) {
+            try {
+                data = chunkStore.load(chunk.chunkX, chunk.chunkY);
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+            if (data == null) {
+                throw new UncheckedIOException(new IOException("nothing saved for chunk " + chunk.chunkX + ", " + chunk.chunkY));
+            }
+        }
+        // Any load still running for the chunk is no longer needed.
+        chunk.loadStamp++;
+        chunk.isLoading = false;
+        chunk.boxes     = new ArrayList<Box>();
+        chunk.level     = DORMANT;
+        // The boxes are dropped from memory once they have been saved, which is no longer needed.
+        if (!chunk.isSaving) {
+            chunk.data = null;
+        }
+        this.decode(chunk, data);
+        loadedChunkCount++;
+        if (!wantedLevels.containsKey(chunk.key)) {
+            this.queueUnload(chunk);
+        }
+    }
+
+    /**
+     * Encode a list of boxes.
+     * @param boxes The boxes.
+     * @return The encoded boxes.
+     */
+    private byte[] encode(ArrayList<Box> boxes) {
+        int size = 4;
+        for (int i = 0; i < boxes.size(); i++) {
+            size += BOX_SIZE + (boxes.get(i).getAttachedSensors().size() * SENSOR_SIZE);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        float[] floats    = new float[Box.SNAPSHOT_FLOATS];
+        int[] ints        = new int[Box.SNAPSHOT_INTS];
+        buffer.putInt(boxes.size());
+        for (int i = 0; i < boxes.size(); i++) {
+            Box box = boxes.get(i);
+            box.saveState(floats, 0, ints, 0);
+            buffer.putInt(box.worldId);
+            buffer.put((byte) box.getType().ordinal());
+            buffer.putFloat(box.getWidth());
+            buffer.putFloat(box.getHeight());
+            for (int j = 0; j < Box.SNAPSHOT_FLOATS; j++) {
+                buffer.putFloat(floats[j]);
+            }
+            for (int j = 0; j < Box.SNAPSHOT_INTS; j++) {
+                buffer.putInt(ints[j]);
+            }
+            ArrayList<Sensor> sensors = box.getAttachedSensors();
+            buffer.putInt(sensors.size());
+            for (int j = 0; j < sensors.size(); j++) {
+                Sensor sensor = sensors.get(j);
+                buffer.putFloat(sensor.getX());
+                buffer.putFloat(sensor.getY());
+                buffer.putFloat(sensor.getWidth());
+                buffer.putFloat(sensor.getHeight());
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decode the boxes of a chunk, recreating each with the box factory and adding it to the chunk.
+     * @param chunk The chunk.
+     * @param data  The encoded boxes.
+     */
+    private void decode(Chunk chunk, byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        float[] floats    = new float[Box.SNAPSHOT_FLOATS];
+        int[] ints        = new int[Box.SNAPSHOT_INTS];
+        int count         = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            int id       = buffer.getInt();
+            BoxType type = BoxType.values()[buffer.get()];
+            float width  = buffer.getFloat();
+            float height = buffer.getFloat();
+            for (int j = 0; j < Box.SNAPSHOT_FLOATS; j++) {
+                floats[j] = buffer.getFloat();
+            }
+            for (int j = 0; j < Box.SNAPSHOT_INTS; j++) {
+                ints[j] = buffer.getInt();
+            }
+            Box box = boxFactory.createBox(id, type, width, height);
+            // Attaching a sensor wakes a box, so the sensors go on before the state is restored.
+            int sensorCount = buffer.getInt();
+            for (int j = 0; j < sensorCount; j++) {
+                box.attachSensor(new Sensor(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat()));
+            }
+            box.restoreState(floats, 0, ints, 0);
+            box.index   = -1;
+            box.worldId = id;
+            chunk.add(box);
+        }
+    }
+
+    /**
+     * Stop the loader, if it was created by this world. Any chunks still being saved are left to finish.
+     */
+    public void close() {
+        if (isLoaderOwned) {
+            ((ExecutorService) loader).shutdown();
+        }
+    }
+
+    /**
+     * Get the environment holding the boxes of the chunks near the observers.
+     * @return The environment.
+     */
+    public Environment getEnvironment() {
+        return this.environment;
+    }
+
+    /**
+     * Get the width and height of each chunk.
+     * @return The chunk size.
+     */
+    public float getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * Get the number of updates that a chunk is dormant for before it is unloaded.
+     * @return The unload delay.
+     */
+    public int getUnloadDelay() {
+        return this.unloadDelay;
+    }
+
+    /**
+     * Set the number of updates that a chunk is dormant for before it is unloaded.
+     * @param unloadDelay The unload delay, or zero to unload chunks as soon as they are dormant.
+     */
+    public void setUnloadDelay(int unloadDelay) {
+        this.unloadDelay = Math.max(0, unloadDelay);
+    }
+
+    /**
+     * Get the number of chunks that have held a box, whether they are loaded or not.
+     * @return The chunk count.
+     */
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * Get the number of chunks which are loaded.
+     * @return The loaded chunk count.
+     */
+    public int getLoadedChunkCount() {
+        return this.loadedChunkCount;
+    }
+
+    /**
+     * Get the number of chunks which are active, with every box in them being simulated.
+     * @return The active chunk count.
+     */
+    public int getActiveChunkCount() {
+        return this.activeChunkCount;
+    }
+
+    /**
+     * Get the X position, in chunks, of the chunk holding the centre of a box.
+     * @param box The box.
+     * @return The chunk X position.
+     */
+    private int getChunkX(Box box) {
+        return (int) Math.floor((box.getX() + (box.getWidth() / 2)) / chunkSize);
+    }
+
+    /**
+     * Get the Y position, in chunks, of the chunk holding the centre of a box.
+     * @param box The box.
+     * @return The chunk Y position.
+     */
+    private int getChunkY(Box box) {
+        return (int) Math.floor((box.getY() + (box.getHeight() / 2)) / chunkSize);
+    }
+
+    /**
+     * Get the key of a chunk, which packs its position into a single value.
+     * @param chunkX The X position of the chunk, in chunks.
+     * @param chunkY The Y position of the chunk, in chunks.
+     * @return The chunk key.
+     */
+    private static Long getChunkKey(int chunkX, int chunkY) {
+        return ((long) chunkX << 32) | (chunkY & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get whether a box in a chunk at the specified level should be in the environment.
+     * @param level The level of the chunk.
+     * @param box   The box.
+     * @return Whether the box should be simulated.
+     */
+    private static boolean isSimulated(int level, Box box) {
+        return level == ACTIVE || (level == BORDER && box.getType() == BoxType.STATIC);
+    }
+
+    /**
+     * A point in the world around which chunks are simulated, such as a player.
+     */
+    public class Observer {
+        /**
+         * The position of the observer.
+         */
+        private float x, y;
+        /**
+         * The position, in chunks, of the chunk holding the observer.
+         */
+        private int chunkX, chunkY;
+        /**
+         * The number of chunks around the chunk of the observer that are active.
+         */
+        private int radius;
+
+        /**
+         * Create a new instance of the Observer class.
+         */
+        private Observer() {}
+
+        /**
+         * Get the X position of the observer.
+         * @return The x position.
+         */
+        public float getX() {
+            return this.x;
+        }
+
+        /**
+         * Get the Y position of the observer.
+         * @return The y position.
+         */
+        public float getY() {
+            return this.y;
+        }
+
+        /**
+         * Set the position of the observer. The chunks around it are brought up to date by the next update of the world.
+         * @param x The X position.
+         * @param y The Y position.
+         */
+        public void setPosition(float x, float y) {
+            int newChunkX = (int) Math.floor(x / chunkSize);
+            int newChunkY = (int) Math.floor(y / chunkSize);
+            if (newChunkX != chunkX || newChunkY != chunkY) {
+                isObserverChanged = true;
+            }
+            this.x      = x;
+            this.y      = y;
+            this.chunkX = newChunkX;
+            this.chunkY = newChunkY;
+        }
+
+        /**
+         * Get the number of chunks around the chunk of the observer that are active.
+         * @return The radius.
+         */
+        public int getRadius() {
+            return this.radius;
+        }
+
+        /**
+         * Set the number of chunks around the chunk of the observer that are active.
+         * @param radius The radius, where zero makes just the chunk of the observer active.
+         */
+        public void setRadius(int radius) {
+            if (radius < 0) {
+                throw new IllegalArgumentException("radius must not be negative");
+            }
+            this.radius       = radius;
+            isObserverChanged = true;
+        }
+    }
+
+    /**
+     * A square area of the world and the boxes whose centres are within it.
+     */
+    static class Chunk {
+        /**
+         * The position of the chunk, in chunks.
+         */
+        final int chunkX, chunkY;
+        /**
+         * The key of the chunk.
+         */
+        final Long key;
+        /**
+         * The boxes in the chunk, or null if it is unloaded.
+         */
+        ArrayList<Box> boxes = null;
+        /**
+         * The encoded boxes of the chunk while they are held in memory, before they have been saved or because they could not be.
+         */
+        byte[] data = null;
+        /**
+         * The level of the chunk.
+         */
+        int level = DORMANT;
+        /**
+         * Whether the chunk is being loaded by the loader, whether it is being saved, and whether it has ever been saved.
+         */
+        boolean isLoading = false, isSaving = false, isSaved = false;
+        /**
+         * The stamp of the latest load of the chunk.
+         */
+        int loadStamp = 0;
+        /**
+         * The world update at which the chunk was last queued to be unloaded, and the number of times it is in the unload queue.
+         */
+        int dormantSince = 0, unloadQueueCount = 0;
+
+        /**
+         * Create a new instance of the Chunk class.
+         * @param chunkX The X position of the chunk, in chunks.
+         * @param chunkY The Y position of the chunk, in chunks.
+         * @param key    The key of the chunk.
+         */
+        Chunk(int chunkX, int chunkY, Long key) {
+            this.chunkX = chunkX;
+            this.chunkY = chunkY;
+            this.key    = key;
+        }
+
+        /**
+         * Add a box to the chunk.
+         * @param box The box.
+         */
+        void add(Box box) {
+            box.chunk     = this;
+            box.chunkSlot = boxes.size();
+            boxes.add(box);
+        }
+
+        /**
+         * Remove a box from the chunk, moving the last box of the chunk into its place.
+         * @param box The box.
+         */
+        void remove(Box box) {
+            Box last = boxes.remove(boxes.size() - 1);
+            if (last != box) {
+                boxes.set(box.chunkSlot, last);
+                last.chunkSlot = box.chunkSlot;
+            }
+            box.chunk     = null;
+            box.chunkSlot = -1;
+        }
+    }
+
+    /**
+     * A load or save of a chunk finished by the loader.
+     */
+    private static class Transfer {
+        /**
+         * The chunk.
+         */
+        final Chunk chunk;
+        /**
+         * Whether the chunk was saved rather than loaded.
+         */
+        final boolean isSave;
+        /**
+         * The stamp of the load.
+         */
+        final int stamp;
+        /**
+         * The encoded boxes that were loaded or saved.
+         */
+        byte[] data = null;
+        /**
+         * The exception thrown by the chunk store, or null if none was thrown.
+         */
+        IOException failure = null;
+
+        /**
+         * Create a new instance of the Transfer class.
+         * @param chunk  The chunk.
+         * @param isSave Whether the chunk was saved rather than loaded.
+         * @param stamp  The stamp of the load.
+         */
+        Transfer(Chunk chunk, boolean isSave, int stamp) {
+            this.chunk  = chunk;
+            this.isSave = isSave;
+            this.stamp  = stamp;
+        }
+    }
+
+    /**
+     * The chunk store used when none is given, which keeps the encoded boxes of each chunk in memory.
+     */
+    private static class MemoryChunkStore implements ChunkStore {
+        /**
+         * The encoded boxes of each chunk, by chunk key.
+         */
+        private final ConcurrentHashMap<Long, byte[]> chunks = new ConcurrentHashMap<Long, byte[]>();
+
+        @Override
+        public void save(int chunkX, int chunkY, byte[] data) {
+            chunks.put(getChunkKey(chunkX, chunkY), data);
+        }
+
+        @Override
+        public byte[] load(int chunkX, int chunkY) {
+            return chunks.get(getChunkKey(chunkX, chunkY));
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.nbp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Holds the pairs of dynamic boxes in an environment which are in contact, so that each pair is told once when
+ * its contact begins and once when it ends, and is notified of at most one collision per physics step in between.
+ * A contact persists for as long as its boxes are still touching, even in the steps where they do not collide.
+ */
+class ContactCache {
+    /**
+     * The initial capacity of the contact table, must be a power of two.
+     */
+    private static final int INITIAL_TABLE_CAPACITY = 64;
+    /**
+     * The keys of the contacts in the contact table.
+     */
+    private long[] contactKeys = new long[INITIAL_TABLE_CAPACITY];
+    /**
+     * The open addressed contact table, an empty slot is null.
+     */
+    private Contact[] table = new Contact[INITIAL_TABLE_CAPACITY];
+    /**
+     * The contacts, in the order that they began.
+     */
+    private ArrayList<Contact> contacts = new ArrayList<Contact>();
+    /**
+     * The contacts which have ended, ready to be reused.
+     */
+    private ArrayList<Contact> freeContacts = new ArrayList<Contact>();
+
+    /**
+     * Get the number of contacts.
+     * @return The number of contacts.
+     */
+    int size() {
+        return contacts.size();
+    }
+
+    /**
+     * Find the contact between two boxes.
+     * @param firstBox  The first box.
+     * @param secondBox The second box.
+     * @return The contact, or null if the boxes are not in contact.
+     */
+    Contact find(Box firstBox, Box secondBox) {
+        long key = toKey(firstBox, secondBox);
+        int mask = table.length - 1;
+        for (int slot = hash(key) & mask; table[slot] != null; slot = (slot + 1) & mask) {
+            if (contactKeys[slot] == key) {
+                return table[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add a contact between two boxes, which must not already be in contact.
+     * @param firstBox  The first box.
+     * @param secondBox The second box.
+     * @return The new contact.
+     */
+    Contact add(Box firstBox, Box secondBox) {
+        // Keep the table at most half full.
+        if ((contacts.size() + 1) * 2 > table.length) {
+            this.rehash(table.length * 2);
+        }
+        Contact contact = freeContacts.isEmpty() ? new Contact() : freeContacts.remove(freeContacts.size() - 1);
+        // The box earliest in the box list is always the first box of a contact.
+        if (firstBox.index > secondBox.index) {
+            Box box   = firstBox;
+            firstBox  = secondBox;
+            secondBox = box;
+        }
+        contact.firstBox     = firstBox;
+        contact.secondBox    = secondBox;
+        contact.key          = toKey(firstBox, secondBox);
+        contact.touchStamp   = -1;
+        contact.collideStamp = -1;
+        contacts.add(contact);
+        this.put(contact);
+        return contact;
+    }
+
+    /**
+     * End every contact whose boxes were not found colliding in a physics step and are no longer touching, or can
+     * no longer collide, and notify both boxes. A contact with a box that has since left the environment is dropped without notification.
+     * @param environment The environment.
+     * @param stamp       The stamp of the physics step.
+     * @param events      The event buffer to record the notifications in, or null if the boxes should be notified straight away.
+     * @return The number of notifications.
+     */
+    int endSeparatedContacts(Environment environment, int stamp, EventBuffer events) {
+        int retained          = 0;
+        int notificationCount = 0;
+        for (int i = 0; i < contacts.size(); i++) {
+            Contact contact = contacts.get(i);
+            Box firstBox    = contact.firstBox;
+            Box secondBox   = contact.secondBox;
+            boolean isKept  = firstBox.environment == environment && secondBox.environment == environment && contact.key == toKey(firstBox, secondBox);
+            if (isKept && contact.touchStamp != stamp) {
+                isKept = areTouching(firstBox, secondBox) && firstBox.canCollideWith(secondBox);
+                if (!isKept) {
+                    notifyContact(firstBox, secondBox, false, events);
+                    notifyContact(secondBox, firstBox, false, events);
+                    notificationCount += 2;
+                }
+            }
+            if (isKept) {
+                contact.touchStamp = stamp;
+                contacts.set(retained++, contact);
+            } else {
+                contact.firstBox  = null;
+                contact.secondBox = null;
+                freeContacts.add(contact);
+            }
+        }
+        if (retained < contacts.size()) {
+            while (contacts.size() > retained) {
+                contacts.remove(contacts.size() - 1);
+            }
+            this.rehash(table.length);
+        }
+        return notificationCount;
+    }
+
+    /**
+     * Write the indices of the boxes and the stamps of every contact whose boxes are both still in an environment,
+     * in the order that the contacts began.
+     * @param environment The environment.
+     * @param boxIndices  The array to write the indices of the first and second box of each contact to.
+     * @param stamps      The array to write the touch and collide stamps of each contact to.
+     * @return The number of contacts written.
+     */
+    int save(Environment environment, int[] boxIndices, int[] stamps) {
+        int count = 0;
+        for (int i = 0; i < contacts.size(); i++) {
+            Contact contact = contacts.get(i);
+            Box firstBox    = contact.firstBox;
+            Box secondBox   = contact.secondBox;
+            // Skip any contact that the next physics step would drop anyway.
+            if (firstBox.environment != environment || secondBox.environment != environment || contact.key != toKey(firstBox, secondBox)) {
+                continue;
+            }
+            boxIndices[count * 2]       = firstBox.index;
+            boxIndices[(count * 2) + 1] = secondBox.index;
+            stamps[count * 2]           = contact.touchStamp;
+            stamps[(count * 2) + 1]     = contact.collideStamp;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Replace every contact with those written by {@link #save(Environment, int[], int[])}, without notifying any box.
+     * A contact with a box that is not in the environment is left out.
+     * @param environment The environment, which must already hold the boxes of the contacts.
+     * @param boxIndices  The indices of the first and second box of each contact.
+     * @param stamps      The touch and collide stamps of each contact.
+     * @param count       The number of contacts.
+     */
+    void restore(Environment environment, int[] boxIndices, int[] stamps, int count) {
+        this.clear();
+        for (int i = 0; i < count; i++) {
+            Box firstBox  = environment.getBoxByIndex(boxIndices[i * 2]);
+            Box secondBox = environment.getBoxByIndex(boxIndices[(i * 2) + 1]);
+            if (firstBox == null || secondBox == null || this.find(firstBox, secondBox) != null) {
+                continue;
+            }
+            Contact contact      = this.add(firstBox, secondBox);
+            contact.touchStamp   = stamps[i * 2];
+            contact.collideStamp = stamps[(i * 2) + 1];
+        }
+    }
+
+    /**
+     * Drop every contact without notifying any box.
+     */
+    void clear() {
+        for (int i = 0; i < contacts.size(); i++) {
+            Contact contact   = contacts.get(i);
+            contact.firstBox  = null;
+            contact.secondBox = null;
+            freeContacts.add(contact);
+        }
+        contacts.clear();
+        this.rehash(INITIAL_TABLE_CAPACITY);
+    }
+
+    /**
+     * Notify a box that its contact with another box has begun or ended, or record the notification in an event buffer.
+     * @param box      The box to notify.
+     * @param otherBox The other box in contact.
+     * @param isBegin  Whether the contact has begun, rather than ended.
+     * @param events   The event buffer, or null if the box should be notified straight away.
+     */
+    static void notifyContact(Box box, Box otherBox, boolean isBegin, EventBuffer events) {
+        if (events != null) {
+            events.addContactEvent(box, otherBox, isBegin);
+        } else if (isBegin) {
+            box.onContactBegin(otherBox);
+        } else {
+            box.onContactEnd(otherBox);
+        }
+    }
+
+    /**
+     * Get whether two boxes are touching, allowing for the rounding error left by separating them.
+     * @param firstBox  The first box.
+     * @param secondBox The second box.
+     * @return Whether the boxes are touching.
+     */
+    private static boolean areTouching(Box firstBox, Box secondBox) {
+        float firstX  = firstBox.getX();
+        float firstY  = firstBox.getY();
+        float secondX = secondBox.getX();
+        float secondY = secondBox.getY();
+        float extent  = Math.max(Math.max(Math.abs(firstX) + firstBox.getWidth(), Math.abs(firstY) + firstBox.getHeight()),
+                Math.max(Math.abs(secondX) + secondBox.getWidth(), Math.abs(secondY) + secondBox.getHeight()));
+        float slop    = Math.ulp(extent) * 2f;
+        return firstX <= secondX + secondBox.getWidth() + slop && firstX + firstBox.getWidth() + slop >= secondX
+                && firstY <= secondY + secondBox.getHeight() + slop && firstY + firstBox.getHeight() + slop >= secondY;
+    }
+
+    /**
+     * Rebuild the contact table from the contacts.
+     * @param capacity The capacity of the new table, which must be a power of two.
+     */
+    private void rehash(int capacity) {
+        while (capacity > INITIAL_TABLE_CAPACITY && contacts.size() * 4 < capacity) {
+            capacity >>= 1;
+        }
+        if (capacity == table.length) {
+            Arrays.fill(table, null);
+        } else {
+            contactKeys = new long[capacity];
+            table       = new Contact[capacity];
+        }
+        for (int i = 0; i < contacts.size(); i++) {
+            this.put(contacts.get(i));
+        }
+    }
+
+    /**
+     * Put a contact into the contact table.
+     * @param contact The contact.
+     */
+    private void put(Contact contact) {
+        int mask = table.length - 1;
+        int slot = hash(contact.key) & mask;
+        while (table[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        contactKeys[slot] = contact.key;
+        table[slot]       = contact;
+    }
+
+    /**
+     * Get the key for a pair of boxes, which is the same whichever way around the boxes are given.
+     * @param firstBox  The first box.
+     * @param secondBox The second box.
+     * @return The key.
+     */
+    private static long toKey(Box firstBox, Box secondBox) {
+        int firstIndex  = Math.min(firstBox.index, secondBox.index);
+        int secondIndex = Math.max(firstBox.index, secondBox.index);
+        return (((long) firstIndex) << 32) | (secondIndex & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Hash a contact key.
+     * @param key The contact key.
+     * @return The hash.
+     */
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * A pair of dynamic boxes in contact.
+     */
+    static class Contact {
+        /**
+         * The boxes in contact, the first being the one earliest in the box list.
+         */
+        Box firstBox, secondBox;
+        /**
+         * The key of the pair of boxes, which is kept so that a box given a new index drops its contacts.
+         */
+        long key;
+        /**
+         * The stamp of the last physics step in which the boxes were touching.
+         */
+        int touchStamp;
+        /**
+         * The stamp of the last physics step in which the boxes were notified of a collision with each other.
+         */
+        int collideStamp;
+    }
+}
@@ -1,8 +1,12 @@
 package com.nbp;
 
+import com.nbp.point.IntersectionPoint;
 import com.nbp.zone.Zone;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Represents a physics environment.
@@ -16,6 +20,22 @@ public class Environment {
      * The box entities that are in this environment.
      */
     private ArrayList<Box> boxEntities;
+    /**
+     * The dynamic and ghost box entities that are in this environment, in the same order as the box entities list.
+     */
+    private ArrayList<Box> movableBoxEntities = new ArrayList<Box>();
+    /**
+     * The movable box entities that are awake, in the same order as the box entities list.
+     */
+    private ArrayList<Box> awakeBoxEntities = new ArrayList<Box>();
+    /**
+     * The box entities that have been woken since they were removed from the awake list, waiting to rejoin it.
+     */
+    private ArrayList<Box> wokenBoxEntities = new ArrayList<Box>();
+    /**
+     * The static box entities that have sensors attached.
+     */
+    private ArrayList<Box> sensorStaticBoxEntities = new ArrayList<Box>();
     /**
      * The box entities waiting to be added to this environment (added during physics update).
      */
@@ -32,6 +52,215 @@ public class Environment {
      * Are we currently processing a physics step.
      */
     private boolean inPhysicsStep = false;
+    /**
+     * The order of boxes in the box list.
+     */
+    private static final Comparator<Box> INDEX_ORDER = new Comparator<Box>() {
+        @Override
+        public int compare(Box first, Box second) {
+            return first.index < second.index ? -1 : (first.index == second.index ? 0 : 1);
+        }
+    };
+    /**
+     * The distance within which a box is considered to be touching another when deciding which sleeping boxes to wake.
+     */
+    private static final float CONTACT_MARGIN = 0.01f;
+    /**
+     * The default number of boxes in each chunk of work handed to the parallel executor.
+     */
+    private static final int DEFAULT_PARALLEL_CHUNK_SIZE = 1024;
+    /**
+     * The initial capacity of the event buffer.
+     */
+    private static final int DEFAULT_EVENT_BUFFER_CAPACITY = 1024;
+    /**
+     * The default length in seconds of the fixed tick taken by each physics step when stepping by elapsed time.
+     */
+    private static final double DEFAULT_FIXED_TIMESTEP = 1.0 / 60.0;
+    /**
+     * The default maximum number of physics steps taken by a single call to step.
+     */
+    private static final int DEFAULT_MAX_SUBSTEPS = 5;
+    /**
+     * The broadphase used to find the boxes that a box may collide with.
+     */
+    private Broadphase broadphase = new SpatialHashBroadphase();
+    /**
+     * The tree holding the static boxes, which are kept out of the broadphase.
+     */
+    private StaticBoxTree staticBoxTree = new StaticBoxTree();
+    /**
+     * The reusable list of boxes that the box currently being processed may collide with.
+     */
+    private ArrayList<Box> collisionCandidates = new ArrayList<Box>();
+    /**
+     * The reusable list of boxes found by an area query.
+     */
+    private ArrayList<Box> queryResults = new ArrayList<Box>();
+    /**
+     * The reusable list of the boxes crossed by the ray currently being cast.
+     */
+    private ArrayList<Box> rayCandidates = new ArrayList<Box>();
+    /**
+     * The reusable hit that each box crossed by the ray currently being cast is checked with.
+     */
+    private final RaycastHit castHit = new RaycastHit();
+    /**
+     * The reusable list of the static boxes in the path of a box being swept.
+     */
+    private ArrayList<Box> sweepCandidates = new ArrayList<Box>();
+    /**
+     * The pairs of dynamic boxes which are in contact.
+     */
+    private final ContactCache contactCache = new ContactCache();
+    /**
+     * The reusable list of the boxes being removed together.
+     */
+    private ArrayList<Box> removedBoxes = new ArrayList<Box>();
+    /**
+     * The boxes which have been removed but are still held by the box lists, until the lists are next compacted.
+     */
+    private ArrayList<Box> detachedBoxes = new ArrayList<Box>();
+    /**
+     * Whether the box list still holds any removed boxes.
+     */
+    private boolean isBoxListDirty = false;
+    /**
+     * The number of removed boxes still held by the list of boxes that can move.
+     */
+    private int detachedMovableCount = 0;
+    /**
+     * The intersection point passed to every collision notification, which is only valid until the notification returns.
+     */
+    private final IntersectionPoint contactPoint = new IntersectionPoint(0f, 0f, BoxEdge.NONE);
+    /**
+     * The stats gathered during the current or most recent physics step, or null if step stats are disabled.
+     */
+    private StepStats stepStats = null;
+    /**
+     * The listeners notified of the stats of each physics step.
+     */
+    private ArrayList<StepStatsListener> stepStatsListeners = new ArrayList<StepStatsListener>();
+    /**
+     * The buffer recording collision and sensor events for dispatch at the end of a physics step, or null if they are dispatched straight away.
+     */
+    private EventBuffer eventBuffer = null;
+    /**
+     * The reusable lists of the boxes intersecting, entered and exited by the sensor currently being reviewed.
+     */
+    private ArrayList<Box> sensorCandidates = new ArrayList<Box>(), enteredBoxes = new ArrayList<Box>(), exitedBoxes = new ArrayList<Box>();
+    /**
+     * The stamp of the most recent sensor review.
+     */
+    private int sensorReviewStamp = 0;
+    /**
+     * The runner used to apply blooms and zones to boxes in parallel, or null if they are applied on the calling thread.
+     */
+    private ParallelBoxRunner parallelBoxRunner = null;
+    /**
+     * The task which applies every pending bloom to a box.
+     */
+    private final ParallelBoxRunner.BoxTask bloomTask = new ParallelBoxRunner.BoxTask() {
+        @Override
+        public void run(Box box) {
+            if (box.getType() == BoxType.DYNAMIC) {
+                box.applyBlooms(bloomList);
+            }
+        }
+    };
+    /**
+     * The task which applies every zone of force to a box.
+     */
+    private final ParallelBoxRunner.BoxTask zoneTask = new ParallelBoxRunner.BoxTask() {
+        @Override
+        public void run(Box box) {
+            if (box.getType() == BoxType.DYNAMIC && box.environment == Environment.this) {
+                for (int i = 0; i < zoneList.size(); i++) {
+                    Zone zone = zoneList.get(i);
+                    // Check the bounds of the zone before the more costly intersection test.
+                    int bounds = i * 4;
+                    if (Broadphase.intersects(zoneBounds[bounds], zoneBounds[bounds + 1], zoneBounds[bounds + 2], zoneBounds[bounds + 3], box) && zone.intersects(box)) {
+                        zone.influence(box);
+                    }
+                }
+            }
+        }
+    };
+    /**
+     * The reusable list of the boxes within reach of at least one pending bloom.
+     */
+    private ArrayList<Box> bloomTargets = new ArrayList<Box>();
+    /**
+     * The stamp of the most recent bloom pass.
+     */
+    private int bloomStamp = 0;
+    /**
+     * The bounds of each zone of force, refreshed every step and grown slightly so that boxes which are only touching them are included.
+     */
+    private float[] zoneBounds = new float[0];
+    /**
+     * The reusable list of the boxes near the zone of force currently being applied.
+     */
+    private ArrayList<Box> zoneCandidates = new ArrayList<Box>();
+    /**
+     * The number of consecutive steps that a dynamic box must be at rest for before it is put to sleep.
+     * Boxes never sleep if this is zero.
+     */
+    private int sleepThreshold = 0;
+    /**
+     * The number of boxes that are currently sleeping.
+     */
+    private int sleepingBoxCount = 0;
+    /**
+     * The number of boxes put to sleep and woken since the last physics step finished.
+     */
+    private int sleepCount = 0, wakeCount = 0;
+    /**
+     * The number of boxes put to sleep and woken by the last physics step.
+     */
+    private int lastStepSleepCount = 0, lastStepWakeCount = 0;
+    /**
+     * The boxes that have been marked for deletion since the last deletion sweep.
+     */
+    private ArrayList<Box> deletionQueue = new ArrayList<Box>();
+    /**
+     * The index to give the next box added to the box list. Indices only ever increase along the
+     * box list, but are not renumbered when a box is removed, so there can be gaps between them.
+     */
+    private int nextBoxIndex = 0;
+    /**
+     * The gravity force and direction at the last physics step, used to spot any change that should wake sleeping boxes.
+     */
+    private float lastGravityForce;
+    private Direction lastGravityDirection;
+    /**
+     * The number of physics steps that have been started in this environment.
+     */
+    private int stepCount = 0;
+    /**
+     * The encoder recording the changes made to boxes for replication, or null if changes are not recorded.
+     */
+    private ReplicationEncoder replicationEncoder = null;
+    /**
+     * The recorder writing everything done to this environment from outside of its physics steps to a replay file, or null if it is not being recorded.
+     */
+    private ReplayRecorder replayRecorder = null;
+    /**
+     * The length in seconds of the fixed tick taken by each physics step when stepping by elapsed time.
+     */
+    private double fixedTimestep = DEFAULT_FIXED_TIMESTEP;
+    /**
+     * The maximum number of physics steps taken by a single call to step.
+     */
+    private int maxSubsteps = DEFAULT_MAX_SUBSTEPS;
+    /**
+     * The elapsed time in seconds that has not yet been consumed by a physics step.
+     */
+    private double accumulator = 0.0;
+    /**
+     * How far the accumulated time is through the next fixed tick, from zero to one.
+     */
+    private float interpolationAlpha = 1f;
 
     /**
      * Create a new instance of the Environment class with gravity.
@@ -55,89 +284,422 @@ public class Environment {
      */
     public void update() {
         this.onBeforeUpdate();
+        if (replayRecorder != null) {
+            replayRecorder.onStepStarting(stepCount + 1);
+        }
         // Mark the start of the physics step.
-        inPhysicsStep = true;
-        // Remove any boxes which were marked for deletion.
-        Iterator<Box> boxIterator = boxEntities.iterator();
-        while (boxIterator.hasNext()) {
-            Box cbox = boxIterator.next();
-            if (cbox.isMarkedForDeletion()) {
-                cbox.setDeleted();
-                boxIterator.remove();
+        inPhysicsStep   = true;
+        stepCount++;
+        long stepStart  = this.beginStepStats();
+        long phaseStart = stepStart;
+        // Remove any boxes which were marked for deletion, in box list order.
+        if (!deletionQueue.isEmpty()) {
+            int retained = 0;
+            for (int i = 0; i < deletionQueue.size(); i++) {
+                Box box = deletionQueue.get(i);
+                // Skip any box which has been removed since it was marked.
+                if (box.environment == this) {
+                    deletionQueue.set(retained++, box);
+                }
+            }
+            truncate(deletionQueue, retained);
+            Collections.sort(deletionQueue, INDEX_ORDER);
+            for (int i = 0; i < deletionQueue.size(); i++) {
+                Box box = deletionQueue.get(i);
+                // A box could have been queued more than once if it was removed and added again.
+                if (box.environment != this) {
+                    continue;
+                }
+                box.setDeleted();
+                this.detachBox(box);
                 // Call user specified behaviour on deletion.
-                cbox.onDeletion();
+                box.onDeletion();
+                if (stepStats != null) {
+                    stepStats.callbackCount++;
+                }
             }
+            deletionQueue.clear();
         }
-        // Apply any environment blooms.
-        for (Bloom bloom : bloomList) {
-            // Go over all boxes.
-            for (Box box : boxEntities) {
-                // Make sure this is a dynamic box.
-                if (box.getType() == BoxType.DYNAMIC) {
-                    // Apply the bloom to this box
-                    box.applyBloom(bloom);
+        // Take every box removed since the last step out of the box lists in a single pass.
+        this.compactBoxLists();
+        phaseStart = this.endPhase(StepPhase.DELETION, phaseStart);
+        // Any change in gravity has to wake every sleeping box.
+        if (gravity != null && (gravity.getForce() != lastGravityForce || gravity.getDirection() != lastGravityDirection)) {
+            lastGravityForce     = gravity.getForce();
+            lastGravityDirection = gravity.getDirection();
+            this.wakeAllBoxes();
+        }
+        // Apply any environment blooms to the boxes within reach of them.
+        if (!bloomList.isEmpty()) {
+            this.findBloomTargets();
+            if (parallelBoxRunner != null) {
+                // Each box takes every bloom in turn, split across the parallel executor.
+                parallelBoxRunner.run(bloomTargets, bloomTask);
+            } else {
+                for (int i = 0; i < bloomTargets.size(); i++) {
+                    bloomTask.run(bloomTargets.get(i));
                 }
             }
+            bloomTargets.clear();
         }
         // Remove processed environment blooms.
         bloomList.clear();
+        phaseStart = this.endPhase(StepPhase.BLOOMS, phaseStart);
         // Apply zone forces to any intersecting boxes.
-        for (Zone zone : zoneList) {
-            // Go over all boxes.
-            for (Box box : boxEntities) {
-                // Make sure this is a dynamic box and that it actually intersects the zone.
-                if ((box.getType() == BoxType.DYNAMIC) && zone.intersects(box)) {
-                    // Allow the zone of force to influence the intersecting box.
-                    zone.influence(box);
+        if (parallelBoxRunner != null && !zoneList.isEmpty()) {
+            // Each box takes every zone in turn, split across the parallel executor.
+            this.refreshZoneBounds();
+            parallelBoxRunner.run(movableBoxEntities, zoneTask);
+        } else {
+            for (int zoneIndex = 0; zoneIndex < zoneList.size(); zoneIndex++) {
+                Zone zone = zoneList.get(zoneIndex);
+                // Go over the boxes that can move and are near enough to the zone to be influenced by it.
+                ArrayList<Box> nearbyBoxes = this.getBoxesNearZone(zone);
+                for (int i = 0; i < nearbyBoxes.size(); i++) {
+                    Box box = nearbyBoxes.get(i);
+                    // Make sure this is a dynamic box still in the environment and that it actually intersects the zone.
+                    if ((box.getType() == BoxType.DYNAMIC) && box.environment == this && zone.intersects(box)) {
+                        // Allow the zone of force to influence the intersecting box.
+                        zone.influence(box);
+                    }
                 }
             }
         }
-        // Do collision detection and try to handle it.
-        for (Box currentBox : boxEntities) {
+        phaseStart = this.endPhase(StepPhase.ZONES, phaseStart);
+        // Any boxes woken by blooms, zones or user code since the last step should be updated in this one.
+        this.mergeWokenBoxes();
+        if (stepStats != null) {
+            stepStats.awakeBoxCount = awakeBoxEntities.size();
+        }
+        phaseStart = this.endPhase(StepPhase.INTEGRATION, phaseStart);
+        // Do collision detection and try to handle it. Static boxes never move and sleeping boxes are at
+        // rest, so there is nothing to update for either of them.
+        boolean hasBoxFallenAsleep = false;
+        for (int awakeBoxIndex = 0; awakeBoxIndex < awakeBoxEntities.size(); awakeBoxIndex++) {
+            Box currentBox = awakeBoxEntities.get(awakeBoxIndex);
+            // Skip any box removed during this step, which stays in the list until the next one.
+            if (currentBox.environment != this) {
+                continue;
+            }
+            float startX   = currentBox.getX();
+            float startY   = currentBox.getY();
+            // Remember where this box started the step so that its position can be interpolated.
+            currentBox.stepStartX     = startX;
+            currentBox.stepStartY     = startY;
+            currentBox.stepStartStamp = stepCount;
+            // Only one box in every few is timed phase by phase, so that the clock is not read for every box.
+            long sampleStart = this.beginSample(awakeBoxIndex);
             currentBox.onBeforeUpdate();
+            sampleStart = this.endSample(StepPhase.CALLBACKS, sampleStart);
             // Update this box on the X axis.
             currentBox.updateAxisX(this.gravity);
+            sampleStart = this.endSample(StepPhase.INTEGRATION, sampleStart);
             // Resolve collisions on the X axis.
             if (currentBox.getType() == BoxType.DYNAMIC) {
-                // Get colliding boxes
-                for (Box targetBox : boxEntities) {
-                    // Are these boxes different and do they collide?
-                    if ((currentBox != targetBox) && NBPMath.doBoxesCollide(currentBox, targetBox)) {
-                        NBPMath.handleCollision(targetBox, currentBox, CollisionAxis.X);
-                    }
-                }
+                resolveCollisions(currentBox, CollisionAxis.X);
             }
+            sampleStart = this.endSample(StepPhase.COLLISION, sampleStart);
             // Update this box on the Y axis.
             currentBox.updateAxisY(this.gravity);
+            sampleStart = this.endSample(StepPhase.INTEGRATION, sampleStart);
             // Resolve collisions on the Y axis.
             if (currentBox.getType() == BoxType.DYNAMIC) {
-                // Get colliding boxes
-                for (Box targetBox : boxEntities) {
-                    // Are these boxes different and do they collide?
-                    if ((currentBox != targetBox) && NBPMath.doBoxesCollide(currentBox, targetBox)) {
-                        NBPMath.handleCollision(targetBox, currentBox, CollisionAxis.Y);
-                    }
-                }
+                resolveCollisions(currentBox, CollisionAxis.Y);
             }
+            sampleStart = this.endSample(StepPhase.COLLISION, sampleStart);
             // Process the sensors attached to the current box.
-            for (Sensor sensor : currentBox.getAttachedSensors()) {
-                sensor.reviewIntersections(boxEntities);
+            ArrayList<Sensor> sensors = currentBox.getAttachedSensors();
+            for (int i = 0; i < sensors.size(); i++) {
+                this.reviewSensor(sensors.get(i));
             }
+            sampleStart = this.endSample(StepPhase.SENSORS, sampleStart);
             currentBox.onAfterUpdate();
+            if (stepStats != null) {
+                stepStats.callbackCount += 2;
+            }
+            sampleStart = this.endSample(StepPhase.CALLBACKS, sampleStart);
+            // Check whether this box has been at rest for long enough to be put to sleep.
+            if (sleepThreshold > 0 && currentBox.getType() == BoxType.DYNAMIC) {
+                hasBoxFallenAsleep |= this.reviewSleep(currentBox, startX, startY);
+            }
+            this.endSample(StepPhase.INTEGRATION, sampleStart);
+        }
+        phaseStart = this.endSampledPhases(phaseStart);
+        // Take any boxes that fell asleep out of the awake list.
+        if (hasBoxFallenAsleep) {
+            int retained = 0;
+            for (int i = 0; i < awakeBoxEntities.size(); i++) {
+                Box box = awakeBoxEntities.get(i);
+                if (box.isSleeping()) {
+                    box.isInAwakeList = false;
+                } else {
+                    awakeBoxEntities.set(retained++, box);
+                }
+            }
+            truncate(awakeBoxEntities, retained);
+        }
+        phaseStart = this.endPhase(StepPhase.INTEGRATION, phaseStart);
+        // End the contacts between dynamic boxes which have come apart.
+        if (contactCache.size() > 0) {
+            int notificationCount = contactCache.endSeparatedContacts(this, stepCount, eventBuffer);
+            if (stepStats != null) {
+                stepStats.callbackCount += notificationCount;
+            }
+        }
+        phaseStart = this.endPhase(StepPhase.COLLISION, phaseStart);
+        // Process the sensors attached to any static boxes.
+        for (int i = 0; i < sensorStaticBoxEntities.size(); i++) {
+            if (sensorStaticBoxEntities.get(i).environment != this) {
+                continue;
+            }
+            ArrayList<Sensor> sensors = sensorStaticBoxEntities.get(i).getAttachedSensors();
+            for (int j = 0; j < sensors.size(); j++) {
+                this.reviewSensor(sensors.get(j));
+            }
+        }
+        phaseStart = this.endPhase(StepPhase.SENSORS, phaseStart);
+        // Notify boxes of the collision and sensor events recorded during the step, now that every box has been resolved.
+        if (eventBuffer != null && eventBuffer.size() > 0) {
+            eventBuffer.dispatch(contactPoint);
         }
+        phaseStart = this.endPhase(StepPhase.CALLBACKS, phaseStart);
         // Mark the end of the physics step.
         inPhysicsStep = false;
         // Any boxes that were added as part of this physics step should be added to our actual entity list now.
         if (pendingBoxEntities.size() > 0) {
             for (Box pendingBox : pendingBoxEntities) {
-                this.addBox(pendingBox);
+                if (pendingBox.environment != this) {
+                    this.insertBox(pendingBox);
+                }
             }
             // Clear the pending list.
             pendingBoxEntities.clear();
         }
+        this.endPhase(StepPhase.PENDING_ADDS, phaseStart);
+        lastStepSleepCount = sleepCount;
+        lastStepWakeCount  = wakeCount;
+        sleepCount         = 0;
+        wakeCount          = 0;
+        this.endStepStats(stepStart);
+        if (replayRecorder != null) {
+            replayRecorder.onStepCompleted(stepCount);
+        }
         this.onAfterUpdate();
     }
 
+    /**
+     * Advance this environment by an amount of elapsed time, taking as many physics steps of the fixed
+     * timestep as fit into the time accumulated so far. Any time left over is carried into the next call,
+     * and how far it is through the next tick is available as the interpolation alpha. Box velocities are
+     * still applied once per physics step, so they are in units per fixed tick rather than per second.
+     * If more than the max number of substeps are due then the extra time is dropped, so that a slow
+     * step is not followed by ever more steps trying to catch up.
+     * @param dt The elapsed time in seconds.
+     * @return The number of physics steps taken.
+     */
+    public int step(double dt) {
+        if (dt > 0) {
+            accumulator += dt;
+        }
+        int substeps = 0;
+        while (accumulator >= fixedTimestep && substeps < maxSubsteps) {
+            this.update();
+            accumulator -= fixedTimestep;
+            substeps++;
+        }
+        // Drop any whole ticks that we were not allowed to take.
+        if (accumulator >= fixedTimestep) {
+            accumulator %= fixedTimestep;
+        }
+        interpolationAlpha = (float) (accumulator / fixedTimestep);
+        return substeps;
+    }
+
+    /**
+     * Write the simulation state of this environment into a snapshot, reusing the arrays of the snapshot where they are big enough.
+     * @param snapshot The snapshot to write to.
+     */
+    public void snapshot(EnvironmentSnapshot snapshot) {
+        if (inPhysicsStep) {
+            throw new IllegalStateException("cannot take a snapshot during a physics step");
+        }
+        this.compactBoxLists();
+        int sensorCount = 0;
+        for (int i = 0; i < boxEntities.size(); i++) {
+            sensorCount += boxEntities.get(i).getAttachedSensors().size();
+        }
+        snapshot.ensureCapacity(boxEntities.size(), sensorCount, bloomList.size());
+        snapshot.stepCount            = stepCount;
+        snapshot.nextBoxIndex         = nextBoxIndex;
+        snapshot.accumulator          = accumulator;
+        snapshot.interpolationAlpha   = interpolationAlpha;
+        snapshot.gravity              = gravity;
+        snapshot.gravityForce         = gravity == null ? 0f : gravity.getForce();
+        snapshot.gravityDirection     = gravity == null ? null : gravity.getDirection();
+        snapshot.isGravityEnabled     = gravity != null && gravity.isEnabled();
+        snapshot.lastGravityForce     = lastGravityForce;
+        snapshot.lastGravityDirection = lastGravityDirection;
+        snapshot.sleepCount           = sleepCount;
+        snapshot.wakeCount            = wakeCount;
+        snapshot.lastStepSleepCount   = lastStepSleepCount;
+        snapshot.lastStepWakeCount    = lastStepWakeCount;
+        // Write the state of each box, along with that of any sensors attached to it.
+        int sensorIndex       = 0;
+        int intersectionCount = 0;
+        for (int i = 0; i < boxEntities.size(); i++) {
+            Box box           = boxEntities.get(i);
+            snapshot.boxes[i] = box;
+            box.saveState(snapshot.boxFloats, i * Box.SNAPSHOT_FLOATS, snapshot.boxInts, i * Box.SNAPSHOT_INTS);
+            ArrayList<Sensor> sensors = box.getAttachedSensors();
+            for (int j = 0; j < sensors.size(); j++) {
+                Sensor sensor = sensors.get(j);
+                snapshot.ensureIntersectionCapacity(intersectionCount + sensor.getIntersectingBoxes().size());
+                snapshot.sensors[sensorIndex]                   = sensor;
+                snapshot.sensorPositions[sensorIndex * 2]       = sensor.getX();
+                snapshot.sensorPositions[(sensorIndex * 2) + 1] = sensor.getY();
+                snapshot.sensorIntersectionCounts[sensorIndex]  = sensor.saveIntersections(snapshot.sensorIntersections, intersectionCount);
+                intersectionCount += snapshot.sensorIntersectionCounts[sensorIndex++];
+            }
+        }
+        // Let go of any boxes, sensors and blooms left over from a bigger snapshot.
+        clearFrom(snapshot.boxes, boxEntities.size());
+        clearFrom(snapshot.sensors, sensorCount);
+        clearFrom(snapshot.sensorIntersections, intersectionCount);
+        snapshot.boxCount    = boxEntities.size();
+        snapshot.sensorCount = sensorCount;
+        for (int i = 0; i < bloomList.size(); i++) {
+            snapshot.blooms[i] = bloomList.get(i);
+        }
+        clearFrom(snapshot.blooms, bloomList.size());
+        snapshot.bloomCount = bloomList.size();
+        snapshot.ensureContactCapacity(contactCache.size());
+        snapshot.contactCount = contactCache.save(this, snapshot.contactBoxIndices, snapshot.contactStamps);
+    }
+
+    /**
+     * Put this environment back into the state held in a snapshot. Boxes which have been added since the snapshot
+     * was taken are removed, and boxes which have been removed or deleted since are put back. No box is notified.
+     * @param snapshot The snapshot to restore.
+     */
+    public void restore(EnvironmentSnapshot snapshot) {
+        if (inPhysicsStep) {
+            throw new IllegalStateException("cannot restore a snapshot during a physics step");
+        }
+        if (snapshot.stepCount == -1) {
+            throw new IllegalArgumentException("snapshot has not been taken");
+        }
+        this.compactBoxLists();
+        // Check whether the same boxes are in the environment, in the same order, as when the snapshot was taken.
+        boolean isSameBoxList = boxEntities.size() == snapshot.boxCount;
+        for (int i = 0; isSameBoxList && i < snapshot.boxCount; i++) {
+            isSameBoxList = boxEntities.get(i) == snapshot.boxes[i];
+        }
+        if (isSameBoxList) {
+            for (int i = 0; i < snapshot.boxCount; i++) {
+                Box box    = snapshot.boxes[i];
+                float oldX = box.getX();
+                float oldY = box.getY();
+                box.restoreState(snapshot.boxFloats, i * Box.SNAPSHOT_FLOATS, snapshot.boxInts, i * Box.SNAPSHOT_INTS);
+                // Let the broadphase know about any box that has moved.
+                if (box.broadphaseProxy != null && (box.getX() != oldX || box.getY() != oldY)) {
+                    box.broadphaseProxy.broadphase.update(box);
+                }
+                this.onBoxChanged(box);
+            }
+        } else {
+            // Take every box out of the environment and put back the ones held in the snapshot.
+            for (int i = 0; i < boxEntities.size(); i++) {
+                Box box = boxEntities.get(i);
+                if (box.broadphaseProxy != null) {
+                    box.broadphaseProxy.broadphase.remove(box);
+                }
+                box.environment   = null;
+                box.index         = -1;
+                box.isInAwakeList = false;
+                if (replicationEncoder != null) {
+                    replicationEncoder.onBoxRemoved(box);
+                }
+            }
+            boxEntities.clear();
+            movableBoxEntities.clear();
+            sensorStaticBoxEntities.clear();
+            // The static box tree only drops removed boxes when compacted, so do it now, before the boxes held in
+            // the snapshot are added back with new proxies and would otherwise be kept in the tree twice.
+            staticBoxTree.compact();
+            for (int i = 0; i < snapshot.boxCount; i++) {
+                Box box = snapshot.boxes[i];
+                compactDetachedFrom(box);
+                box.restoreState(snapshot.boxFloats, i * Box.SNAPSHOT_FLOATS, snapshot.boxInts, i * Box.SNAPSHOT_INTS);
+                box.environment = this;
+                boxEntities.add(box);
+                if (box.getType() == BoxType.STATIC) {
+                    staticBoxTree.add(box);
+                    if (!box.getAttachedSensors().isEmpty()) {
+                        sensorStaticBoxEntities.add(box);
+                    }
+                } else {
+                    movableBoxEntities.add(box);
+                    broadphase.add(box);
+                }
+                if (replicationEncoder != null) {
+                    replicationEncoder.onBoxAdded(box);
+                }
+            }
+        }
+        // Put back the contacts between boxes, so that boxes which were already in contact are not told that it has begun again.
+        contactCache.restore(this, snapshot.contactBoxIndices, snapshot.contactStamps, snapshot.contactCount);
+        // Every box that is not sleeping belongs in the awake list.
+        awakeBoxEntities.clear();
+        wokenBoxEntities.clear();
+        sleepingBoxCount = 0;
+        for (int i = 0; i < movableBoxEntities.size(); i++) {
+            Box box           = movableBoxEntities.get(i);
+            box.isInAwakeList = !box.isSleeping();
+            if (box.isInAwakeList) {
+                awakeBoxEntities.add(box);
+            } else {
+                sleepingBoxCount++;
+            }
+        }
+        deletionQueue.clear();
+        for (int i = 0; i < boxEntities.size(); i++) {
+            if (boxEntities.get(i).isMarkedForDeletion()) {
+                deletionQueue.add(boxEntities.get(i));
+            }
+        }
+        int intersectionOffset = 0;
+        for (int i = 0; i < snapshot.sensorCount; i++) {
+            Sensor sensor = snapshot.sensors[i];
+            sensor.setX(snapshot.sensorPositions[i * 2]);
+            sensor.setY(snapshot.sensorPositions[(i * 2) + 1]);
+            sensor.restoreIntersections(snapshot.sensorIntersections, intersectionOffset, snapshot.sensorIntersectionCounts[i]);
+            intersectionOffset += snapshot.sensorIntersectionCounts[i];
+        }
+        bloomList.clear();
+        for (int i = 0; i < snapshot.bloomCount; i++) {
+            bloomList.add(snapshot.blooms[i]);
+        }
+        gravity = snapshot.gravity;
+        if (gravity != null) {
+            gravity.setForce(snapshot.gravityForce);
+            gravity.setDirection(snapshot.gravityDirection);
+            gravity.setEnabled(snapshot.isGravityEnabled);
+        }
+        lastGravityForce     = snapshot.lastGravityForce;
+        lastGravityDirection = snapshot.lastGravityDirection;
+        stepCount            = snapshot.stepCount;
+        nextBoxIndex         = snapshot.nextBoxIndex;
+        accumulator          = snapshot.accumulator;
+        interpolationAlpha   = snapshot.interpolationAlpha;
+        sleepCount           = snapshot.sleepCount;
+        wakeCount            = snapshot.wakeCount;
+        lastStepSleepCount   = snapshot.lastStepSleepCount;
+        lastStepWakeCount    = snapshot.lastStepWakeCount;
+        if (replayRecorder != null) {
+            replayRecorder.onRestored();
+        }
+    }
+
     /**
      * Add a Static/Dynamic box to the environment.
      * @param box The box to add.
@@ -146,10 +708,45 @@ public class Environment {
         // If this addition is taking place during a physics update, then it should be queued for later addition.
         if (inPhysicsStep) {
             pendingBoxEntities.add(box);
-        } else {
-            if (!boxEntities.contains(box)) {
-                boxEntities.add(box);
+        } else if (box.environment != this) {
+            this.insertBox(box);
+            // Boxes added by box callbacks during a step are added again when the step is replayed, so only these are recorded.
+            if (replayRecorder != null) {
+                replayRecorder.onBoxAdded(box);
+            }
+        }
+    }
+
+    /**
+     * Put a box which is not in this environment at the end of the box list and into every other list or index that should hold it.
+     * @param box The box to insert.
+     */
+    private void insertBox(Box box) {
+        compactDetachedFrom(box);
+        if (nextBoxIndex == Integer.MAX_VALUE) {
+            this.renumberBoxes();
+        }
+        box.index       = nextBoxIndex++;
+        box.environment = this;
+        boxEntities.add(box);
+        if (box.getType() == BoxType.STATIC) {
+            staticBoxTree.add(box);
+            if (!box.getAttachedSensors().isEmpty()) {
+                sensorStaticBoxEntities.add(box);
             }
+            // Any sleeping boxes touching new static geometry should be woken.
+            this.wakeBoxesAround(box.getX(), box.getY(), box.getX() + box.getWidth(), box.getY() + box.getHeight());
+        } else {
+            movableBoxEntities.add(box);
+            awakeBoxEntities.add(box);
+            box.isInAwakeList = true;
+            broadphase.add(box);
+        }
+        if (box.isMarkedForDeletion()) {
+            deletionQueue.add(box);
+        }
+        if (replicationEncoder != null) {
+            replicationEncoder.onBoxAdded(box);
         }
     }
 
@@ -158,63 +755,1459 @@ public class Environment {
      * @param box The box to remove.
      */
     public void removeBox(Box box) {
-        if (boxEntities.contains(box)) {
-            boxEntities.remove(box);
+        if (box.environment == this) {
+            int index = box.index;
+            this.detachBox(box);
+            if (replayRecorder != null && !inPhysicsStep) {
+                replayRecorder.onBoxRemoved(box, index);
+            }
         }
     }
 
     /**
-     * Get all boxes in the environment.
-     * @return The list of boxes in the environment.
+     * Remove many boxes from the environment at once, in box list order.
+     * @param boxes The boxes to remove, any of which not in this environment are ignored.
      */
-    public ArrayList<Box> getBoxes() {
-        return boxEntities;
+    public void removeBoxes(List<Box> boxes) {
+        removedBoxes.clear();
+        for (int i = 0; i < boxes.size(); i++) {
+            Box box = boxes.get(i);
+            if (box.environment == this) {
+                removedBoxes.add(box);
+            }
+        }
+        Collections.sort(removedBoxes, INDEX_ORDER);
+        for (int i = 0; i < removedBoxes.size(); i++) {
+            // Any box listed more than once has already been removed.
+            this.removeBox(removedBoxes.get(i));
+        }
+        removedBoxes.clear();
     }
 
     /**
-     * Get the environment gravity.
-     * @return gravity The environment gravity.
+     * Get the box in this environment with the specified index.
+     * @param index The index of the box.
+     * @return The box, or null if there is no box with the index.
      */
-    public Gravity getGravity() {
-        return this.gravity;
+    Box getBoxByIndex(int index) {
+        int low  = 0;
+        int high = boxEntities.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Box box    = boxEntities.get(middle);
+            if (box.index < index) {
+                low = middle + 1;
+            } else if (box.index > index) {
+                high = middle - 1;
+            } else {
+                // A removed box keeps its index until the box list is compacted.
+                return box.environment == this ? box : null;
+            }
+        }
+        return null;
     }
 
     /**
-     * Set the environment gravity.
-     * @param gravity The environment gravity.
+     * Take a box out of this environment. The box lists are left holding it until they are next compacted, so that
+     * removing a box never has to shift along the boxes after it, and it keeps its index until then.
+     * @param box The box to detach.
      */
-    public void setGravity(Gravity gravity) {
-        this.gravity = gravity;
+    private void detachBox(Box box) {
+        if (box.getType() == BoxType.STATIC) {
+            staticBoxTree.remove(box);
+        } else {
+            broadphase.remove(box);
+            if (box.isSleeping()) {
+                sleepingBoxCount--;
+            }
+            detachedMovableCount++;
+        }
+        box.isInAwakeList = false;
+        // The box no longer belongs to this environment, so waking it will not notify us.
+        box.environment  = null;
+        box.detachedFrom = this;
+        detachedBoxes.add(box);
+        isBoxListDirty = true;
+        box.wake();
+        // Any sleeping boxes which were resting against the removed box may need to move now.
+        this.wakeBoxesAround(box.getX(), box.getY(), box.getX() + box.getWidth(), box.getY() + box.getHeight());
+        if (replicationEncoder != null) {
+            replicationEncoder.onBoxRemoved(box);
+        }
     }
 
     /**
-     * Add a bloom to this environment.
-     * @param bloom The bloom to add.
+     * Take every box removed since the box lists were last compacted out of them, in a single pass over each list.
+     * This must not be done while a physics step is going over the lists.
      */
-    public void addBloom(Bloom bloom) {
-        this.bloomList.add(bloom);
+    private void compactBoxLists() {
+        if (detachedBoxes.isEmpty()) {
+            return;
+        }
+        this.compactBoxList();
+        this.removeDetached(movableBoxEntities);
+        this.removeDetached(awakeBoxEntities);
+        this.removeDetached(wokenBoxEntities);
+        this.removeDetached(sensorStaticBoxEntities);
+        staticBoxTree.compact();
+        for (int i = 0; i < detachedBoxes.size(); i++) {
+            detachedBoxes.get(i).index        = -1;
+            detachedBoxes.get(i).detachedFrom = null;
+        }
+        detachedBoxes.clear();
+        detachedMovableCount = 0;
     }
 
     /**
-     * Add a zone of force to this environment.
-     * @param zone The zone of force to add.
+     * Take every removed box out of the box list. Nothing else goes over the box list during a physics step, so this can be done at any time.
      */
-    public void addZone(Zone zone) {
-        // Don't add a zone that already exists in this environment.
-        if (!this.zoneList.contains(zone)) {
-            this.zoneList.add(zone);
+    private void compactBoxList() {
+        if (isBoxListDirty) {
+            this.removeDetached(boxEntities);
+            isBoxListDirty = false;
         }
     }
 
     /**
-     * Remove a zone of force from this environment.
-     * @param zone The zone of force to remove.
+     * Take every box which is no longer in this environment out of a list of boxes, keeping the rest in the same order.
+     * @param boxes The boxes.
      */
-    public void removeZone(Zone zone) {
-        // Don't try to remove a zone that doesn't already exist in this environment.
-        if (this.zoneList.contains(zone)) {
-            this.zoneList.remove(zone);
+    private void removeDetached(ArrayList<Box> boxes) {
+        int retained = 0;
+        for (int i = 0; i < boxes.size(); i++) {
+            Box box = boxes.get(i);
+            if (box.environment == this) {
+                boxes.set(retained++, box);
+            }
+        }
+        truncate(boxes, retained);
+    }
+
+    /**
+     * Make sure that a box about to be put into an environment is no longer held by the box lists of one that it was removed from.
+     * @param box The box.
+     */
+    private static void compactDetachedFrom(Box box) {
+        if (box.detachedFrom != null) {
+            box.detachedFrom.compactBoxLists();
+        }
+    }
+
+    /**
+     * Give every box in the box list a new index matching its position, closing any gaps left by removed boxes.
+     */
+    private void renumberBoxes() {
+        this.compactBoxLists();
+        for (int i = 0; i < boxEntities.size(); i++) {
+            boxEntities.get(i).index = i;
+        }
+        nextBoxIndex = boxEntities.size();
+    }
+
+    /**
+     * Review whether a dynamic box that has just been updated should be put to sleep.
+     * @param box    The dynamic box.
+     * @param startX The X position of the box at the start of its update.
+     * @param startY The Y position of the box at the start of its update.
+     * @return Whether the box was put to sleep.
+     */
+    private boolean reviewSleep(Box box, float startX, float startY) {
+        // A box that has moved could have moved up against sleeping boxes which would need waking.
+        if (sleepingBoxCount > 0 && (box.getX() != startX || box.getY() != startY)) {
+            this.wakeBoxesAround(Math.min(startX, box.getX()), Math.min(startY, box.getY()),
+                    Math.max(startX, box.getX()) + box.getWidth(), Math.max(startY, box.getY()) + box.getHeight());
+        }
+        // A box with sensors never sleeps, as its sensors need to keep reviewing their intersections.
+        if (box.getVelX() != 0f || box.getVelY() != 0f || !box.getAttachedSensors().isEmpty()) {
+            box.restingSteps = 0;
+            return false;
+        }
+        if (++box.restingSteps < sleepThreshold) {
+            return false;
         }
+        box.sleep();
+        sleepingBoxCount++;
+        sleepCount++;
+        return true;
+    }
+
+    /**
+     * Wake any sleeping boxes which are touching or intersecting the specified area.
+     * @param minX The minimum X position of the area.
+     * @param minY The minimum Y position of the area.
+     * @param maxX The maximum X position of the area.
+     * @param maxY The maximum Y position of the area.
+     */
+    private void wakeBoxesAround(float minX, float minY, float maxX, float maxY) {
+        if (sleepingBoxCount == 0) {
+            return;
+        }
+        // Grow the area slightly so that boxes which are only touching it are included.
+        queryResults.clear();
+        broadphase.query(minX - CONTACT_MARGIN, minY - CONTACT_MARGIN, maxX + CONTACT_MARGIN, maxY + CONTACT_MARGIN, queryResults);
+        for (int i = 0; i < queryResults.size(); i++) {
+            if (queryResults.get(i).isSleeping()) {
+                queryResults.get(i).wake();
+            }
+        }
+    }
+
+    /**
+     * Find every box that can move and is within reach of at least one of the pending blooms.
+     * Each box is added to the bloom targets only once, however many blooms reach it.
+     */
+    private void findBloomTargets() {
+        int stamp = ++bloomStamp;
+        for (int bloomIndex = 0; bloomIndex < bloomList.size(); bloomIndex++) {
+            Bloom bloom  = bloomList.get(bloomIndex);
+            float radius = bloom.getRadius() + CONTACT_MARGIN;
+            queryResults.clear();
+            broadphase.query(bloom.getX() - radius, bloom.getY() - radius, bloom.getX() + radius, bloom.getY() + radius, queryResults);
+            for (int i = 0; i < queryResults.size(); i++) {
+                Box box = queryResults.get(i);
+                if (box.bloomStamp != stamp) {
+                    box.bloomStamp = stamp;
+                    bloomTargets.add(box);
+                }
+            }
+        }
+        // Keep the targets in box list order so that blooms are applied in the same order whichever broadphase is used.
+        // Sorting a large number of targets would cost more than picking them out of the list of boxes that can move.
+        if (bloomTargets.size() * bloomTargets.size() <= movableBoxEntities.size()) {
+            sortByIndex(bloomTargets);
+        } else {
+            bloomTargets.clear();
+            for (int i = 0; i < movableBoxEntities.size(); i++) {
+                if (movableBoxEntities.get(i).bloomStamp == stamp) {
+                    bloomTargets.add(movableBoxEntities.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the boxes that can move and are near enough to a zone of force to be influenced by it.
+     * The bounds of the zone are read afresh every step, so a zone can be moved or resized at any time.
+     * @param zone The zone of force.
+     * @return The boxes near the zone, or every box that can move if the zone is unbounded.
+     */
+    private ArrayList<Box> getBoxesNearZone(Zone zone) {
+        float minX = zone.getMinX(), minY = zone.getMinY(), maxX = zone.getMaxX(), maxY = zone.getMaxY();
+        if (Float.isInfinite(minX) || Float.isInfinite(minY) || Float.isInfinite(maxX) || Float.isInfinite(maxY)) {
+            return movableBoxEntities;
+        }
+        // Grow the area slightly so that boxes which are only touching it are included.
+        zoneCandidates.clear();
+        broadphase.query(minX - CONTACT_MARGIN, minY - CONTACT_MARGIN, maxX + CONTACT_MARGIN, maxY + CONTACT_MARGIN, zoneCandidates);
+        return zoneCandidates;
+    }
+
+    /**
+     * Refresh the bounds of every zone of force, ready for them to be applied to boxes in parallel.
+     */
+    private void refreshZoneBounds() {
+        if (zoneBounds.length < zoneList.size() * 4) {
+            zoneBounds = new float[zoneList.size() * 8];
+        }
+        for (int i = 0; i < zoneList.size(); i++) {
+            Zone zone             = zoneList.get(i);
+            zoneBounds[i * 4]     = zone.getMinX() - CONTACT_MARGIN;
+            zoneBounds[i * 4 + 1] = zone.getMinY() - CONTACT_MARGIN;
+            zoneBounds[i * 4 + 2] = zone.getMaxX() + CONTACT_MARGIN;
+            zoneBounds[i * 4 + 3] = zone.getMaxY() + CONTACT_MARGIN;
+        }
+    }
+
+    /**
+     * Wake every sleeping box in the environment.
+     */
+    private void wakeAllBoxes() {
+        if (sleepingBoxCount == 0) {
+            return;
+        }
+        for (int i = 0; i < movableBoxEntities.size(); i++) {
+            if (movableBoxEntities.get(i).isSleeping()) {
+                movableBoxEntities.get(i).wake();
+            }
+        }
+    }
+
+    /**
+     * Move any boxes that have been woken back into the awake list, keeping it in box list order.
+     */
+    private void mergeWokenBoxes() {
+        // Drop any box that has been removed since it was woken.
+        this.removeDetached(wokenBoxEntities);
+        if (wokenBoxEntities.isEmpty()) {
+            return;
+        }
+        // A change of gravity can wake every box, which is too many to insertion sort.
+        Collections.sort(wokenBoxEntities, INDEX_ORDER);
+        int awakeIndex = awakeBoxEntities.size() - 1;
+        int wokenIndex = wokenBoxEntities.size() - 1;
+        for (int i = 0; i < wokenBoxEntities.size(); i++) {
+            awakeBoxEntities.add(null);
+        }
+        // Merge the two sorted lists, working back from the end of the awake list.
+        for (int target = awakeBoxEntities.size() - 1; wokenIndex >= 0; target--) {
+            if (awakeIndex >= 0 && awakeBoxEntities.get(awakeIndex).index > wokenBoxEntities.get(wokenIndex).index) {
+                awakeBoxEntities.set(target, awakeBoxEntities.get(awakeIndex--));
+            } else {
+                Box woken = wokenBoxEntities.get(wokenIndex--);
+                woken.isInAwakeList = true;
+                awakeBoxEntities.set(target, woken);
+            }
+        }
+        wokenBoxEntities.clear();
+    }
+
+    /**
+     * Called when a box in this environment is woken.
+     * @param box The woken box.
+     */
+    synchronized void onBoxWoken(Box box) {
+        sleepingBoxCount--;
+        wakeCount++;
+        // A box which fell asleep during the current step may not have left the awake list yet.
+        if (!box.isInAwakeList) {
+            wokenBoxEntities.add(box);
+        }
+    }
+
+    /**
+     * Called when the position or velocity of a box in this environment is set.
+     * @param box The changed box.
+     */
+    void onBoxChanged(Box box) {
+        if (replicationEncoder != null) {
+            replicationEncoder.onBoxChanged(box);
+        }
+    }
+
+    /**
+     * Called when the position or velocity of a box in this environment is set or an impulse is applied to it,
+     * so that it can be recorded if it was done from outside of a physics step.
+     * @param box      The changed box.
+     * @param mutation The type of replay record for the change.
+     * @param first    The first value of the change.
+     * @param second   The second value of the change.
+     */
+    void onBoxMutated(Box box, byte mutation, float first, float second) {
+        if (replayRecorder != null && !inPhysicsStep) {
+            replayRecorder.onBoxMutated(box, mutation, first, second);
+        }
+    }
+
+    /**
+     * Set the recorder writing everything done to this environment from outside of its physics steps to a replay file.
+     * @param replayRecorder The recorder, or null to stop recording.
+     */
+    void setReplayRecorder(ReplayRecorder replayRecorder) {
+        if (replayRecorder != null && this.replayRecorder != null) {
+            throw new IllegalStateException("environment already has a replay recorder");
+        }
+        this.replayRecorder = replayRecorder;
+    }
+
+    /**
+     * Set the encoder recording the changes made to boxes for replication.
+     * @param replicationEncoder The encoder, or null to stop recording changes.
+     */
+    void setReplicationEncoder(ReplicationEncoder replicationEncoder) {
+        if (replicationEncoder != null && this.replicationEncoder != null) {
+            throw new IllegalStateException("environment already has a replication encoder");
+        }
+        this.replicationEncoder = replicationEncoder;
+    }
+
+    /**
+     * Called when a box in this environment is marked for deletion.
+     * @param box The marked box.
+     */
+    synchronized void onBoxMarkedForDeletion(Box box) {
+        deletionQueue.add(box);
+        if (replayRecorder != null && !inPhysicsStep) {
+            replayRecorder.onBoxMutated(box, ReplayRecorder.MARK_FOR_DELETION, 0f, 0f);
+        }
+    }
+
+    /**
+     * Called when a sensor is attached to a box in this environment.
+     * @param box    The box that the sensor was attached to.
+     * @param sensor The attached sensor.
+     */
+    void onSensorAttached(Box box, Sensor sensor) {
+        if (box.getType() == BoxType.STATIC && !sensorStaticBoxEntities.contains(box)) {
+            sensorStaticBoxEntities.add(box);
+        }
+        if (replayRecorder != null && !inPhysicsStep) {
+            replayRecorder.onSensorAttached(box, sensor);
+        }
+    }
+
+    /**
+     * Resolve the collisions between a dynamic box and the boxes it intersects on an axis.
+     * Candidates are checked in the order they appear in the environment box list, exactly as
+     * if every box in the environment were checked in turn.
+     * @param currentBox The dynamic box.
+     * @param axis       The axis on which to resolve collisions.
+     */
+    private void resolveCollisions(Box currentBox, CollisionAxis axis) {
+        // A box with continuous collision is first stopped at the first static box in its path, which it may have passed.
+        if (currentBox.isContinuousCollisionEnabled()) {
+            this.sweepAgainstStaticBoxes(currentBox, axis);
+        }
+        collisionCandidates.clear();
+        this.getCollisionCandidates(currentBox);
+        sortByIndex(collisionCandidates);
+        if (stepStats != null) {
+            stepStats.broadphasePairCount += collisionCandidates.size();
+        }
+        int candidateIndex;
+        while ((candidateIndex = this.findFirstCollision(currentBox)) != -1) {
+            Box targetBox = collisionCandidates.get(candidateIndex);
+            int notificationCount;
+            if (currentBox.getType() == BoxType.DYNAMIC && targetBox.getType() == BoxType.DYNAMIC) {
+                notificationCount = this.resolveDynamicCollision(targetBox, currentBox);
+            } else {
+                notificationCount = NBPMath.handleCollision(targetBox, currentBox, axis, contactPoint, eventBuffer);
+                // Being hit by an awake box wakes a sleeping one.
+                if (targetBox.isSleeping()) {
+                    targetBox.wake();
+                }
+            }
+            if (stepStats != null) {
+                stepStats.narrowphaseHitCount++;
+                stepStats.callbackCount += notificationCount;
+            }
+            // Resolving the collision (or user code reacting to it) may have moved boxes around,
+            // so fetch a fresh set of the candidates that come after the target box in the box list.
+            int lastIndex = targetBox.index;
+            collisionCandidates.clear();
+            this.getCollisionCandidates(currentBox);
+            int retained = 0;
+            for (int i = 0; i < collisionCandidates.size(); i++) {
+                Box candidate = collisionCandidates.get(i);
+                if (candidate.index > lastIndex) {
+                    collisionCandidates.set(retained++, candidate);
+                }
+            }
+            truncate(collisionCandidates, retained);
+            sortByIndex(collisionCandidates);
+        }
+    }
+
+    /**
+     * Separate two overlapping dynamic boxes along the axis that they came together on, pushing each out in inverse
+     * proportion to its mass and exchanging their velocity along that axis. A box that would be pushed into any other
+     * box stays where it is and the other box is pushed the whole way instead, so that boxes resting on one another
+     * settle rather than sinking into each other. The boxes are notified of the collision at most once per physics
+     * step, and of the start of their contact when it is new.
+     * @param targetBox  The box that was hit.
+     * @param currentBox The box being updated.
+     * @return The number of notifications made or recorded.
+     */
+    private int resolveDynamicCollision(Box targetBox, Box currentBox) {
+        float currentX      = currentBox.getX();
+        float currentY      = currentBox.getY();
+        float currentWidth  = currentBox.getWidth();
+        float currentHeight = currentBox.getHeight();
+        float targetX       = targetBox.getX();
+        float targetY       = targetBox.getY();
+        float targetWidth   = targetBox.getWidth();
+        float targetHeight  = targetBox.getHeight();
+        float overlapX      = Math.min(currentX + currentWidth, targetX + targetWidth) - Math.max(currentX, targetX);
+        float overlapY      = Math.min(currentY + currentHeight, targetY + targetHeight) - Math.max(currentY, targetY);
+        // Separate the boxes along the axis that the current box came into the target box on this step, if it was
+        // apart from it on only one axis at the start of the step, and otherwise along the axis they overlap the least on.
+        float startX         = currentBox.stepStartX;
+        float startY         = currentBox.stepStartY;
+        boolean wasApartX    = startX >= targetX + targetWidth || startX + currentWidth <= targetX;
+        boolean wasApartY    = startY >= targetY + targetHeight || startY + currentHeight <= targetY;
+        boolean isEntryKnown = wasApartX != wasApartY;
+        boolean isAxisX      = isEntryKnown ? wasApartX : overlapX < overlapY;
+        // Whether the current box is pushed out towards the positive end of the axis, decided by the side of the
+        // target box that it came from, or otherwise by which side of the target box its centre is on.
+        boolean isCurrentAfter;
+        if (isEntryKnown) {
+            isCurrentAfter = isAxisX ? startX >= targetX + targetWidth : startY >= targetY + targetHeight;
+        } else {
+            isCurrentAfter = isAxisX ? (currentX * 2f) + currentWidth >= (targetX * 2f) + targetWidth
+                    : (currentY * 2f) + currentHeight >= (targetY * 2f) + targetHeight;
+        }
+        float currentStart = isAxisX ? currentX : currentY;
+        float targetStart  = isAxisX ? targetX : targetY;
+        float currentSize  = isAxisX ? currentWidth : currentHeight;
+        float targetSize   = isAxisX ? targetWidth : targetHeight;
+        float penetration  = isAxisX ? overlapX : overlapY;
+        float currentPushedEnd = isCurrentAfter ? targetStart + targetSize : targetStart - currentSize;
+        float targetPushedEnd  = isCurrentAfter ? currentStart - targetSize : currentStart + currentSize;
+        float currentVelocity  = isAxisX ? currentBox.getVelX() : currentBox.getVelY();
+        float targetVelocity   = isAxisX ? targetBox.getVelX() : targetBox.getVelY();
+        float closingVelocity  = isCurrentAfter ? targetVelocity - currentVelocity : currentVelocity - targetVelocity;
+        float currentInverseMass = 1f / currentBox.getMass();
+        float targetInverseMass  = 1f / targetBox.getMass();
+        float targetEnd;
+        float currentEnd;
+        // A sleeping box that is only being leant on, rather than knocked, stays asleep and is treated as though it
+        // were static, so that boxes resting on one another can all fall asleep.
+        float restingVelocity = gravity == null ? 0f : gravity.getForce();
+        if (targetBox.isSleeping() && closingVelocity <= restingVelocity && !this.overlapsOtherBox(currentBox, targetBox, isAxisX, currentPushedEnd)) {
+            targetEnd         = targetStart;
+            currentEnd        = currentPushedEnd;
+            targetInverseMass = 0f;
+        } else {
+            // Being hit by an awake box wakes a sleeping one.
+            if (targetBox.isSleeping()) {
+                targetBox.wake();
+            }
+            // Share the push between the boxes in inverse proportion to their masses.
+            float targetPush = (isCurrentAfter ? -penetration : penetration) * (targetInverseMass / (currentInverseMass + targetInverseMass));
+            targetEnd        = targetStart + targetPush;
+            currentEnd       = isCurrentAfter ? targetEnd + targetSize : targetEnd - currentSize;
+            if (this.overlapsOtherBox(targetBox, currentBox, isAxisX, targetEnd) || this.overlapsOtherBox(currentBox, targetBox, isAxisX, currentEnd)) {
+                // Sharing the push would move a box into another one, so push only one of them the whole way instead.
+                if (!this.overlapsOtherBox(currentBox, targetBox, isAxisX, currentPushedEnd)) {
+                    targetEnd         = targetStart;
+                    currentEnd        = currentPushedEnd;
+                    targetInverseMass = 0f;
+                } else if (!this.overlapsOtherBox(targetBox, currentBox, isAxisX, targetPushedEnd)) {
+                    targetEnd          = targetPushedEnd;
+                    currentEnd         = currentStart;
+                    currentInverseMass = 0f;
+                } else {
+                    // Both boxes are hemmed in, so the best that can be done is to take back the current box's own
+                    // move along the axis this step, putting it back where it was free of both boxes.
+                    float revertedEnd = isAxisX ? currentBox.stepStartX : currentBox.stepStartY;
+                    targetEnd         = targetStart;
+                    targetInverseMass = 0f;
+                    currentEnd        = (isCurrentAfter ? revertedEnd > currentStart : revertedEnd < currentStart) ? revertedEnd : currentStart;
+                }
+            }
+        }
+        if (isAxisX) {
+            if (targetEnd != targetStart) {
+                targetBox.setX(targetEnd);
+            }
+            currentBox.setX(currentEnd);
+        } else {
+            if (targetEnd != targetStart) {
+                targetBox.setY(targetEnd);
+            }
+            currentBox.setY(currentEnd);
+        }
+        // Exchange velocity along the axis if the boxes are moving towards each other.
+        if (closingVelocity > 0f && currentInverseMass + targetInverseMass > 0f) {
+            float restitution        = Math.min(1f, currentBox.getRestitution() + targetBox.getRestitution());
+            float impulse            = closingVelocity * (1f + restitution) / (currentInverseMass + targetInverseMass);
+            float direction          = isCurrentAfter ? 1f : -1f;
+            float currentNewVelocity = settle(currentVelocity + (impulse * currentInverseMass * direction));
+            float targetNewVelocity  = settle(targetVelocity - (impulse * targetInverseMass * direction));
+            if (isAxisX) {
+                currentBox.setVelX(currentNewVelocity);
+                if (targetInverseMass > 0f) {
+                    targetBox.setVelX(targetNewVelocity);
+                }
+            } else {
+                currentBox.setVelY(currentNewVelocity);
+                if (targetInverseMass > 0f) {
+                    targetBox.setVelY(targetNewVelocity);
+                }
+                // Reduce the X velocity of the upper box relative to the lower one based on friction.
+                Box upperBox  = isCurrentAfter ? currentBox : targetBox;
+                Box lowerBox  = isCurrentAfter ? targetBox : currentBox;
+                float sliding = upperBox.getVelX() - lowerBox.getVelX();
+                if (sliding != 0f && (upperBox == currentBox || targetInverseMass > 0f)) {
+                    upperBox.setVelX(settle(lowerBox.getVelX() + (sliding * (upperBox.getFriction() + lowerBox.getFriction()))));
+                }
+            }
+        }
+        // Notify the boxes of the start of their contact and of the collision, at most once per step.
+        int notificationCount        = 0;
+        ContactCache.Contact contact = contactCache.find(targetBox, currentBox);
+        if (contact == null) {
+            contact = contactCache.add(targetBox, currentBox);
+            ContactCache.notifyContact(targetBox, currentBox, true, eventBuffer);
+            ContactCache.notifyContact(currentBox, targetBox, true, eventBuffer);
+            notificationCount += 2;
+        }
+        contact.touchStamp = stepCount;
+        if (contact.collideStamp != stepCount) {
+            contact.collideStamp = stepCount;
+            // Each box is told of the edge of the other box that it hit.
+            BoxEdge currentEdge = isAxisX ? (isCurrentAfter ? BoxEdge.RIGHT : BoxEdge.LEFT) : (isCurrentAfter ? BoxEdge.TOP : BoxEdge.BOTTOM);
+            BoxEdge targetEdge  = isAxisX ? (isCurrentAfter ? BoxEdge.LEFT : BoxEdge.RIGHT) : (isCurrentAfter ? BoxEdge.BOTTOM : BoxEdge.TOP);
+            float midpointX     = (targetBox.getX() + currentBox.getX()) / 2f;
+            float midpointY     = (targetBox.getY() + currentBox.getY()) / 2f;
+            NBPMath.notifyCollision(targetBox, currentBox, false, midpointX, midpointY, targetEdge, contactPoint, eventBuffer);
+            NBPMath.notifyCollision(currentBox, targetBox, false, midpointX, midpointY, currentEdge, contactPoint, eventBuffer);
+            notificationCount += 2;
+        }
+        return notificationCount;
+    }
+
+    /**
+     * Get a velocity left by separating two boxes, or zero if it is small enough that the box should come to rest.
+     * @param velocity The velocity.
+     * @return The velocity, or zero.
+     */
+    private static float settle(float velocity) {
+        return velocity > -0.0005f && velocity < 0.0005f ? 0f : velocity;
+    }
+
+    /**
+     * Get whether moving a box along an axis would push it into any box other than the box it is being separated
+     * from, either one that it does not overlap yet or further into one that it does. Ghost boxes, and boxes that
+     * the box cannot collide with, are ignored.
+     * @param box        The box.
+     * @param ignoredBox The box that it is being separated from.
+     * @param isAxisX    Whether the box would be moved along the X axis, rather than the Y axis.
+     * @param position   The position that the box would be moved to along the axis.
+     * @return Whether the box would be pushed into another box.
+     */
+    private boolean overlapsOtherBox(Box box, Box ignoredBox, boolean isAxisX, float position) {
+        float x      = box.getX();
+        float y      = box.getY();
+        float newX   = isAxisX ? position : x;
+        float newY   = isAxisX ? y : position;
+        float width  = box.getWidth();
+        float height = box.getHeight();
+        float move   = isAxisX ? newX - x : newY - y;
+        sweepCandidates.clear();
+        this.queryArea(newX, newY, newX + width, newY + height, sweepCandidates);
+        boolean isOverlapping = false;
+        for (int i = 0; i < sweepCandidates.size() && !isOverlapping; i++) {
+            Box other         = sweepCandidates.get(i);
+            float otherX      = other.getX();
+            float otherY      = other.getY();
+            float otherWidth  = other.getWidth();
+            float otherHeight = other.getHeight();
+            if (other == box || other == ignoredBox || other.getType() == BoxType.GHOST || !box.canCollideWith(other)
+                    || !NBPMath.doSquaresIntersect(newX, newY, width, height, otherX, otherY, otherWidth, otherHeight)) {
+                continue;
+            }
+            if (NBPMath.doSquaresIntersect(x, y, width, height, otherX, otherY, otherWidth, otherHeight)) {
+                // A box already overlapping the other box can still be moved away from its centre, but not towards it.
+                float offset  = isAxisX ? ((otherX * 2f) + otherWidth) - ((x * 2f) + width) : ((otherY * 2f) + otherHeight) - ((y * 2f) + height);
+                isOverlapping = move * offset > 0f;
+            } else {
+                isOverlapping = true;
+            }
+        }
+        sweepCandidates.clear();
+        return isOverlapping;
+    }
+
+    /**
+     * Sweep a box along an axis from where it was before it last moved to where it is now, and resolve a collision
+     * with the first static box that it touches on the way. Any static box that the box already overlapped before it
+     * moved is left to the discrete collision resolution.
+     * @param box  The box.
+     * @param axis The axis that the box has just moved along.
+     */
+    private void sweepAgainstStaticBoxes(Box box, CollisionAxis axis) {
+        float endX   = box.getX();
+        float endY   = box.getY();
+        float startX = axis == CollisionAxis.X ? box.getLastPosX() : endX;
+        float startY = axis == CollisionAxis.Y ? box.getLastPosY() : endY;
+        float delta  = axis == CollisionAxis.X ? endX - startX : endY - startY;
+        if (delta == 0f) {
+            return;
+        }
+        float width       = box.getWidth();
+        float height      = box.getHeight();
+        float minX        = Math.min(startX, endX);
+        float minY        = Math.min(startY, endY);
+        float sweptWidth  = Math.max(startX, endX) + width - minX;
+        float sweptHeight = Math.max(startY, endY) + height - minY;
+        sweepCandidates.clear();
+        staticBoxTree.query(minX, minY, minX + sweptWidth, minY + sweptHeight, sweepCandidates);
+        if (stepStats != null) {
+            stepStats.broadphasePairCount += sweepCandidates.size();
+        }
+        // Find the static box that the box would have touched first, taking the earliest in the box list on a tie.
+        Box firstBox    = null;
+        float firstTime = 0f;
+        for (int i = 0; i < sweepCandidates.size(); i++) {
+            Box candidate     = sweepCandidates.get(i);
+            float candidateX  = candidate.getX();
+            float candidateY  = candidate.getY();
+            float candidateW  = candidate.getWidth();
+            float candidateH  = candidate.getHeight();
+            if (!box.canCollideWith(candidate) || !NBPMath.doSquaresIntersect(minX, minY, sweptWidth, sweptHeight, candidateX, candidateY, candidateW, candidateH)
+                    || NBPMath.doSquaresIntersect(startX, startY, width, height, candidateX, candidateY, candidateW, candidateH)) {
+                continue;
+            }
+            float time;
+            if (axis == CollisionAxis.X) {
+                time = (delta > 0 ? candidateX - (startX + width) : (candidateX + candidateW) - startX) / delta;
+            } else {
+                time = (delta > 0 ? candidateY - (startY + height) : (candidateY + candidateH) - startY) / delta;
+            }
+            if (firstBox == null || time < firstTime || (time == firstTime && candidate.index < firstBox.index)) {
+                firstBox  = candidate;
+                firstTime = time;
+            }
+        }
+        sweepCandidates.clear();
+        if (firstBox == null) {
+            return;
+        }
+        // Resolving the collision moves the box back to the point at which it first touched the static box.
+        int notificationCount = NBPMath.handleCollision(firstBox, box, axis, contactPoint, eventBuffer);
+        if (stepStats != null) {
+            stepStats.narrowphaseHitCount++;
+            stepStats.callbackCount += notificationCount;
+        }
+    }
+
+    /**
+     * Find the first of the collision candidates that actually collides with a box.
+     * Ghost boxes never take part in collision resolution so they are skipped.
+     * @param box The box.
+     * @return The position of the first colliding candidate, or -1 if there is none.
+     */
+    private int findFirstCollision(Box box) {
+        for (int i = 0; i < collisionCandidates.size(); i++) {
+            Box candidate = collisionCandidates.get(i);
+            if (candidate.getType() != BoxType.GHOST && NBPMath.doBoxesCollide(box, candidate)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reset the step stats ready for a new physics step, if they are enabled.
+     * @return The time that the step started, from System.nanoTime(), or zero if step stats are disabled.
+     */
+    private long beginStepStats() {
+        if (stepStats == null) {
+            return 0L;
+        }
+        stepStats.begin();
+        return System.nanoTime();
+    }
+
+    /**
+     * Add the time since the start of a phase of the physics step to the step stats, if they are enabled.
+     * @param phase The phase.
+     * @param start The time that the phase started, from System.nanoTime().
+     * @return The time that the next phase starts, or zero if step stats are disabled.
+     */
+    private long endPhase(StepPhase phase, long start) {
+        return stepStats == null ? 0L : stepStats.endPhase(phase, start);
+    }
+
+    /**
+     * Get the time that the update of an awake box started, if step stats are enabled and the box is one of those timed phase by phase.
+     * @param awakeBoxIndex The position of the box in the awake list.
+     * @return The time that the update started, from System.nanoTime(), or zero if the box is not sampled.
+     */
+    private long beginSample(int awakeBoxIndex) {
+        // The sampled boxes move along the awake list from one step to the next.
+        if (stepStats == null || ((awakeBoxIndex + stepCount) & (StepStats.SAMPLE_INTERVAL - 1)) != 0) {
+            return 0L;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Add the time since the start of a phase of a sampled box update to the step stats, if the box is sampled.
+     * @param phase The phase.
+     * @param start The time that the phase started, from System.nanoTime(), or zero if the box is not sampled.
+     * @return The time that the next phase starts, or zero if the box is not sampled.
+     */
+    private long endSample(StepPhase phase, long start) {
+        return start == 0L ? 0L : stepStats.endSample(phase, start);
+    }
+
+    /**
+     * Split the time taken to update the awake boxes across the phases of the step stats, if they are enabled.
+     * @param start The time that the box updates started, from System.nanoTime().
+     * @return The time that the next phase starts, or zero if step stats are disabled.
+     */
+    private long endSampledPhases(long start) {
+        return stepStats == null ? 0L : stepStats.endSampledPhases(start);
+    }
+
+    /**
+     * Record the end of the physics step and notify the step stats listeners, if step stats are enabled.
+     * @param start The time that the step started, from System.nanoTime().
+     */
+    private void endStepStats(long start) {
+        if (stepStats == null) {
+            return;
+        }
+        stepStats.end(start);
+        for (int i = 0; i < stepStatsListeners.size(); i++) {
+            stepStatsListeners.get(i).onStepCompleted(this, stepStats);
+        }
+    }
+
+    /**
+     * Review the intersections of a sensor, using only the boxes that it currently intersects.
+     * @param sensor The sensor to review.
+     */
+    private void reviewSensor(Sensor sensor) {
+        sensorCandidates.clear();
+        float minX = sensor.getX();
+        float minY = sensor.getY();
+        float maxX = minX + sensor.getWidth();
+        float maxY = minY + sensor.getHeight();
+        // A sensor that ignores static boxes has no need to search the static box tree.
+        if (sensor.isIgnoringStaticBoxes()) {
+            broadphase.query(minX, minY, maxX, maxY, sensorCandidates);
+        } else {
+            this.queryArea(minX, minY, maxX, maxY, sensorCandidates);
+        }
+        int eventCount = sensor.reviewIntersections(sensorCandidates, ++sensorReviewStamp, enteredBoxes, exitedBoxes, eventBuffer);
+        if (stepStats != null) {
+            stepStats.callbackCount += eventCount;
+        }
+    }
+
+    /**
+     * Add every box in the environment which intersects the specified area to the results list.
+     * @param minX    The minimum X position of the area.
+     * @param minY    The minimum Y position of the area.
+     * @param maxX    The maximum X position of the area.
+     * @param maxY    The maximum Y position of the area.
+     * @param results The list to add the intersecting boxes to.
+     */
+    void queryArea(float minX, float minY, float maxX, float maxY, ArrayList<Box> results) {
+        staticBoxTree.query(minX, minY, maxX, maxY, results);
+        broadphase.query(minX, minY, maxX, maxY, results);
+    }
+
+    /**
+     * Add every box in the environment which intersects the specified region to a list, in no particular order.
+     * @param minX    The minimum X position of the region.
+     * @param minY    The minimum Y position of the region.
+     * @param maxX    The maximum X position of the region.
+     * @param maxY    The maximum Y position of the region.
+     * @param results The list to add the boxes to, which is not cleared first.
+     * @return The number of boxes added.
+     */
+    public int queryRegion(float minX, float minY, float maxX, float maxY, ArrayList<Box> results) {
+        return this.queryRegion(minX, minY, maxX, maxY, null, null, results);
+    }
+
+    /**
+     * Add every box in the environment which intersects the specified region and passes the filters to a list, in no particular order.
+     * Only the static box tree is searched for static boxes, and only the broadphase for dynamic and ghost boxes.
+     * @param minX    The minimum X position of the region.
+     * @param minY    The minimum Y position of the region.
+     * @param maxX    The maximum X position of the region.
+     * @param maxY    The maximum Y position of the region.
+     * @param type    The type of box to include, or null to include every type.
+     * @param filter  The filter that boxes must pass, or null to include every box.
+     * @param results The list to add the boxes to, which is not cleared first.
+     * @return The number of boxes added.
+     */
+    public int queryRegion(float minX, float minY, float maxX, float maxY, BoxType type, BoxFilter filter, ArrayList<Box> results) {
+        int first = results.size();
+        if (type == null || type == BoxType.STATIC) {
+            staticBoxTree.query(minX, minY, maxX, maxY, results);
+        }
+        if (type != BoxType.STATIC) {
+            broadphase.query(minX, minY, maxX, maxY, results);
+        }
+        return filterResults(type, filter, results, first);
+    }
+
+    /**
+     * Add every box in the environment which contains the specified point, including on its edges, to a list.
+     * @param x       The X position of the point.
+     * @param y       The Y position of the point.
+     * @param results The list to add the boxes to, which is not cleared first.
+     * @return The number of boxes added.
+     */
+    public int queryPoint(float x, float y, ArrayList<Box> results) {
+        return this.queryPoint(x, y, null, null, results);
+    }
+
+    /**
+     * Add every box in the environment which contains the specified point, including on its edges, and passes the filters to a list.
+     * @param x       The X position of the point.
+     * @param y       The Y position of the point.
+     * @param type    The type of box to include, or null to include every type.
+     * @param filter  The filter that boxes must pass, or null to include every box.
+     * @param results The list to add the boxes to, which is not cleared first.
+     * @return The number of boxes added.
+     */
+    public int queryPoint(float x, float y, BoxType type, BoxFilter filter, ArrayList<Box> results) {
+        // Boxes only intersect a region that they overlap, so the point is grown by the smallest possible amount.
+        return this.queryRegion(Math.nextDown(x), Math.nextDown(y), Math.nextUp(x), Math.nextUp(y), type, filter, results);
+    }
+
+    /**
+     * Find the first box in the environment crossed by a ray running from one point to another.
+     * @param startX The X position of the start of the ray.
+     * @param startY The Y position of the start of the ray.
+     * @param endX   The X position of the end of the ray.
+     * @param endY   The Y position of the end of the ray.
+     * @param hit    The hit to fill in with the first box crossed by the ray.
+     * @return Whether the ray crossed a box, without which the hit is left as it was.
+     */
+    public boolean raycast(float startX, float startY, float endX, float endY, RaycastHit hit) {
+        return this.raycast(startX, startY, endX, endY, null, null, hit);
+    }
+
+    /**
+     * Find the first box in the environment which passes the filters and is crossed by a ray running from one point to another.
+     * A ray which only runs along the edge of a box, or ends as it touches one, does not cross it.
+     * @param startX The X position of the start of the ray.
+     * @param startY The Y position of the start of the ray.
+     * @param endX   The X position of the end of the ray.
+     * @param endY   The Y position of the end of the ray.
+     * @param type   The type of box to include, or null to include every type.
+     * @param filter The filter that boxes must pass, or null to include every box.
+     * @param hit    The hit to fill in with the first box crossed by the ray.
+     * @return Whether the ray crossed a box, without which the hit is left as it was.
+     */
+    public boolean raycast(float startX, float startY, float endX, float endY, BoxType type, BoxFilter filter, RaycastHit hit) {
+        this.findRayCandidates(startX, startY, endX, endY, type, filter);
+        boolean isHit = false;
+        for (int i = 0; i < rayCandidates.size(); i++) {
+            if (castAgainst(rayCandidates.get(i), startX, startY, endX, endY, castHit) && (!isHit || castHit.getFraction() < hit.getFraction())) {
+                hit.set(castHit);
+                isHit = true;
+            }
+        }
+        rayCandidates.clear();
+        return isHit;
+    }
+
+    /**
+     * Find every box in the environment crossed by a ray running from one point to another.
+     * @param startX The X position of the start of the ray.
+     * @param startY The Y position of the start of the ray.
+     * @param endX   The X position of the end of the ray.
+     * @param endY   The Y position of the end of the ray.
+     * @param hits   The hits to fill in, nearest first, where any null element is given a new hit.
+     * @return The number of hits filled in, which is never more than the length of the hits array.
+     */
+    public int raycastAll(float startX, float startY, float endX, float endY, RaycastHit[] hits) {
+        return this.raycastAll(startX, startY, endX, endY, null, null, hits);
+    }
+
+    /**
+     * Find every box in the environment which passes the filters and is crossed by a ray running from one point to another.
+     * If the ray crosses more boxes than there are hits then only the nearest are filled in.
+     * @param startX The X position of the start of the ray.
+     * @param startY The Y position of the start of the ray.
+     * @param endX   The X position of the end of the ray.
+     * @param endY   The Y position of the end of the ray.
+     * @param type   The type of box to include, or null to include every type.
+     * @param filter The filter that boxes must pass, or null to include every box.
+     * @param hits   The hits to fill in, nearest first, where any null element is given a new hit.
+     * @return The number of hits filled in, which is never more than the length of the hits array.
+     */
+    public int raycastAll(float startX, float startY, float endX, float endY, BoxType type, BoxFilter filter, RaycastHit[] hits) {
+        this.findRayCandidates(startX, startY, endX, endY, type, filter);
+        int count = 0;
+        for (int i = 0; i < rayCandidates.size(); i++) {
+            if (!castAgainst(rayCandidates.get(i), startX, startY, endX, endY, castHit)) {
+                continue;
+            }
+            // Put the hit in place of the furthest one if every hit has been filled in, then move it up past any that are further away.
+            int position;
+            if (count < hits.length) {
+                position = count++;
+            } else if (count > 0 && castHit.getFraction() < hits[count - 1].getFraction()) {
+                position = count - 1;
+            } else {
+                continue;
+            }
+            if (hits[position] == null) {
+                hits[position] = new RaycastHit();
+            }
+            RaycastHit hit = hits[position];
+            hit.set(castHit);
+            while (position > 0 && hits[position - 1].getFraction() > hit.getFraction()) {
+                hits[position]     = hits[position - 1];
+                hits[position - 1] = hit;
+                position--;
+            }
+        }
+        rayCandidates.clear();
+        return count;
+    }
+
+    /**
+     * Fill the ray candidates list with every box which passes the filters and is crossed by a ray.
+     * @param startX The X position of the start of the ray.
+     * @param startY The Y position of the start of the ray.
+     * @param endX   The X position of the end of the ray.
+     * @param endY   The Y position of the end of the ray.
+     * @param type   The type of box to include, or null to include every type.
+     * @param filter The filter that boxes must pass, or null to include every box.
+     */
+    private void findRayCandidates(float startX, float startY, float endX, float endY, BoxType type, BoxFilter filter) {
+        rayCandidates.clear();
+        if (type == null || type == BoxType.STATIC) {
+            staticBoxTree.queryRay(startX, startY, endX, endY, rayCandidates);
+        }
+        if (type != BoxType.STATIC) {
+            broadphase.queryRay(startX, startY, endX, endY, rayCandidates);
+        }
+        filterResults(type, filter, rayCandidates, 0);
+    }
+
+    /**
+     * Drop any boxes which do not pass the filters from the end of a list of query results.
+     * @param type    The type of box to include, or null to include every type.
+     * @param filter  The filter that boxes must pass, or null to include every box.
+     * @param results The query results.
+     * @param first   The position in the results of the first box found by the query.
+     * @return The number of boxes left from the query.
+     */
+    private static int filterResults(BoxType type, BoxFilter filter, ArrayList<Box> results, int first) {
+        if (type == null && filter == null) {
+            return results.size() - first;
+        }
+        int retained = first;
+        for (int i = first; i < results.size(); i++) {
+            Box box = results.get(i);
+            if ((type == null || box.getType() == type) && (filter == null || filter.accept(box))) {
+                results.set(retained++, box);
+            }
+        }
+        truncate(results, retained);
+        return retained - first;
+    }
+
+    /**
+     * Work out where a ray enters a box.
+     * @param box    The box.
+     * @param startX The X position of the start of the ray.
+     * @param startY The Y position of the start of the ray.
+     * @param endX   The X position of the end of the ray.
+     * @param endY   The Y position of the end of the ray.
+     * @param hit    The hit to fill in if the ray crosses the box.
+     * @return Whether the ray crosses the box.
+     */
+    private static boolean castAgainst(Box box, float startX, float startY, float endX, float endY, RaycastHit hit) {
+        float deltaX = endX - startX;
+        float deltaY = endY - startY;
+        // Find how far along the ray it enters and leaves the box on each axis, where an axis that the ray does not move along is always inside.
+        float enterX = Float.NEGATIVE_INFINITY, exitX = Float.POSITIVE_INFINITY;
+        float enterY = Float.NEGATIVE_INFINITY, exitY = Float.POSITIVE_INFINITY;
+        if (deltaX == 0f) {
+            if (startX <= box.getX() || startX >= box.getX() + box.getWidth()) {
+                return false;
+            }
+        } else {
+            float near = (box.getX() - startX) / deltaX;
+            float far  = (box.getX() + box.getWidth() - startX) / deltaX;
+            enterX     = Math.min(near, far);
+            exitX      = Math.max(near, far);
+        }
+        if (deltaY == 0f) {
+            if (startY <= box.getY() || startY >= box.getY() + box.getHeight()) {
+                return false;
+            }
+        } else {
+            float near = (box.getY() - startY) / deltaY;
+            float far  = (box.getY() + box.getHeight() - startY) / deltaY;
+            enterY     = Math.min(near, far);
+            exitY      = Math.max(near, far);
+        }
+        float enter = Math.max(enterX, enterY);
+        float exit  = Math.min(exitX, exitY);
+        if (!(Math.max(enter, 0f) < Math.min(exit, 1f))) {
+            return false;
+        }
+        // The ray enters the box at the edge facing it on whichever axis it reaches the box last, unless it started inside.
+        BoxEdge edge;
+        if (enter < 0f) {
+            edge  = BoxEdge.NONE;
+            enter = 0f;
+        } else if (enterX >= enterY) {
+            edge = deltaX > 0f ? BoxEdge.LEFT : BoxEdge.RIGHT;
+        } else {
+            edge = deltaY > 0f ? BoxEdge.BOTTOM : BoxEdge.TOP;
+        }
+        float length = (float) Math.sqrt((deltaX * deltaX) + (deltaY * deltaY));
+        hit.set(box, startX + (deltaX * enter), startY + (deltaY * enter), length * enter, enter, edge);
+        return true;
+    }
+
+    /**
+     * Add the static and movable boxes that a box may collide with to the collision candidates list.
+     * @param box The box to get collision candidates for.
+     */
+    private void getCollisionCandidates(Box box) {
+        staticBoxTree.getCandidates(box, collisionCandidates);
+        broadphase.getCandidates(box, collisionCandidates);
+    }
+
+    /**
+     * Remove all of the boxes in a list after the specified size.
+     * @param boxes The list of boxes.
+     * @param size  The new size of the list.
+     */
+    static void truncate(ArrayList<Box> boxes, int size) {
+        while (boxes.size() > size) {
+            boxes.remove(boxes.size() - 1);
+        }
+    }
+
+    /**
+     * Sort a list of boxes by their index in the environment box list.
+     * @param boxes The boxes to sort.
+     */
+    static void sortByIndex(ArrayList<Box> boxes) {
+        // Candidate lists are short, so a simple insertion sort is all we need.
+        for (int i = 1; i < boxes.size(); i++) {
+            Box box = boxes.get(i);
+            int j   = i - 1;
+            while (j >= 0 && boxes.get(j).index > box.index) {
+                boxes.set(j + 1, boxes.get(j));
+                j--;
+            }
+            boxes.set(j + 1, box);
+        }
+    }
+
+    /**
+     * Clear the elements of an array from the specified position onwards.
+     * @param array The array.
+     * @param from  The position of the first element to clear.
+     */
+    private static void clearFrom(Object[] array, int from) {
+        for (int i = from; i < array.length && array[i] != null; i++) {
+            array[i] = null;
+        }
+    }
+
+    /**
+     * Get all boxes in the environment.
+     * @return The list of boxes in the environment.
+     */
+    public ArrayList<Box> getBoxes() {
+        this.compactBoxList();
+        return boxEntities;
+    }
+
+    /**
+     * Get the movable boxes in the environment that are awake, in box list order.
+     * @return The awake boxes.
+     */
+    ArrayList<Box> getAwakeBoxes() {
+        if (!inPhysicsStep) {
+            this.compactBoxLists();
+        }
+        return awakeBoxEntities;
+    }
+
+    /**
+     * Get the broadphase used to find the boxes that a box may collide with.
+     * @return The broadphase.
+     */
+    public Broadphase getBroadphase() {
+        return this.broadphase;
+    }
+
+    /**
+     * Set the broadphase used to find the boxes that a box may collide with.
+     * Static boxes are always kept in a separate tree, so only dynamic and ghost boxes are added to it.
+     * This should not be called during a physics update.
+     * @param broadphase The broadphase.
+     */
+    public void setBroadphase(Broadphase broadphase) {
+        this.compactBoxLists();
+        for (Box box : movableBoxEntities) {
+            this.broadphase.remove(box);
+            broadphase.add(box);
+        }
+        this.broadphase = broadphase;
+    }
+
+    /**
+     * Gets whether timings and counts are gathered for each physics step.
+     * @return Whether step stats are enabled.
+     */
+    public boolean isStepStatsEnabled() {
+        return this.stepStats != null;
+    }
+
+    /**
+     * Set whether timings and counts are gathered for each physics step, to be passed to the step stats listeners.
+     * Gathering them reads the clock once for each phase, and for each phase of one box update in every sixteen, which
+     * splits the time taken by all of the box updates across the phases. When disabled nothing is gathered at all.
+     * This should not be called during a physics update.
+     * @param isEnabled Whether step stats are enabled.
+     */
+    public void setStepStatsEnabled(boolean isEnabled) {
+        if (isEnabled && stepStats == null) {
+            stepStats = new StepStats();
+        } else if (!isEnabled) {
+            stepStats = null;
+        }
+    }
+
+    /**
+     * Get the stats of the most recent physics step.
+     * The same instance is updated by every step.
+     * @return The stats of the most recent physics step, or null if step stats are disabled.
+     */
+    public StepStats getLastStepStats() {
+        return this.stepStats;
+    }
+
+    /**
+     * Add a listener to be notified of the stats of each physics step while step stats are enabled.
+     * @param listener The listener to add.
+     */
+    public void addStepStatsListener(StepStatsListener listener) {
+        if (!this.stepStatsListeners.contains(listener)) {
+            this.stepStatsListeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove a step stats listener.
+     * @param listener The listener to remove.
+     */
+    public void removeStepStatsListener(StepStatsListener listener) {
+        this.stepStatsListeners.remove(listener);
+    }
+
+    /**
+     * Gets whether collision and sensor events are dispatched at the end of each physics step rather than as they happen.
+     * @return Whether deferred event dispatch is enabled.
+     */
+    public boolean isDeferredEventDispatchEnabled() {
+        return this.eventBuffer != null;
+    }
+
+    /**
+     * Set whether collision and sensor events are dispatched at the end of each physics step rather than as they happen.
+     * When enabled, the events are recorded during the step and every box is notified once all boxes have been
+     * resolved, with each box being handed all of its events together in the order that they happened. Boxes then
+     * see the world as it is at the end of the step, rather than part way through collision resolution.
+     * Events are dispatched as they happen by default. This should not be called during a physics update.
+     * @param isEnabled Whether deferred event dispatch is enabled.
+     */
+    public void setDeferredEventDispatchEnabled(boolean isEnabled) {
+        if (isEnabled && eventBuffer == null) {
+            eventBuffer = new EventBuffer(DEFAULT_EVENT_BUFFER_CAPACITY);
+        } else if (!isEnabled) {
+            eventBuffer = null;
+        }
+    }
+
+    /**
+     * Set the executor used to apply blooms and zones of force to boxes in parallel.
+     * The boxes are split into chunks of the specified size, and every box still takes each bloom and
+     * zone in the same order as it would on a single thread, so the results are exactly the same.
+     * Box onBloomPush implementations and custom zones must be safe to call from multiple threads.
+     * A ForkJoinPool is a good fit for this. Integration and collision resolution always stay on the
+     * calling thread, as each box is resolved against the positions that the boxes before it moved to.
+     * @param executor  The executor, or null to apply blooms and zones on the calling thread.
+     * @param chunkSize The number of boxes in each chunk of work.
+     */
+    public void setParallelExecutor(Executor executor, int chunkSize) {
+        this.parallelBoxRunner = executor == null ? null : new ParallelBoxRunner(executor, chunkSize);
+    }
+
+    /**
+     * Set the executor used to apply blooms and zones of force to boxes in parallel, with a default chunk size.
+     * @param executor The executor, or null to apply blooms and zones on the calling thread.
+     */
+    public void setParallelExecutor(Executor executor) {
+        this.setParallelExecutor(executor, DEFAULT_PARALLEL_CHUNK_SIZE);
+    }
+
+    /**
+     * Get the executor used to apply blooms and zones of force to boxes in parallel.
+     * @return The executor, or null if blooms and zones are applied on the calling thread.
+     */
+    public Executor getParallelExecutor() {
+        return parallelBoxRunner == null ? null : parallelBoxRunner.getExecutor();
+    }
+
+    /**
+     * Get the environment gravity.
+     * @return gravity The environment gravity.
+     */
+    public Gravity getGravity() {
+        return this.gravity;
+    }
+
+    /**
+     * Set the environment gravity.
+     * @param gravity The environment gravity.
+     */
+    public void setGravity(Gravity gravity) {
+        this.gravity = gravity;
+        this.wakeAllBoxes();
+    }
+
+    /**
+     * Get the length of the fixed tick taken by each physics step when stepping by elapsed time.
+     * @return The fixed timestep in seconds.
+     */
+    public double getFixedTimestep() {
+        return this.fixedTimestep;
+    }
+
+    /**
+     * Set the length of the fixed tick taken by each physics step when stepping by elapsed time.
+     * @param fixedTimestep The fixed timestep in seconds.
+     */
+    public void setFixedTimestep(double fixedTimestep) {
+        if (!(fixedTimestep > 0)) {
+            throw new IllegalArgumentException("fixed timestep must be greater than zero");
+        }
+        this.fixedTimestep = fixedTimestep;
+    }
+
+    /**
+     * Get the maximum number of physics steps taken by a single call to step.
+     * @return The max number of substeps.
+     */
+    public int getMaxSubsteps() {
+        return this.maxSubsteps;
+    }
+
+    /**
+     * Set the maximum number of physics steps taken by a single call to step.
+     * @param maxSubsteps The max number of substeps, which is at least one.
+     */
+    public void setMaxSubsteps(int maxSubsteps) {
+        this.maxSubsteps = Math.max(1, maxSubsteps);
+    }
+
+    /**
+     * Get how far the time accumulated by step is through the next fixed tick, for use when
+     * interpolating the positions of boxes between the last two physics steps.
+     * This is one if the environment has only ever been updated directly.
+     * @return The interpolation alpha, from zero to one.
+     */
+    public float getInterpolationAlpha() {
+        return this.interpolationAlpha;
+    }
+
+    /**
+     * Get the number of physics steps that have been started in this environment.
+     * @return The step count.
+     */
+    public int getStepCount() {
+        return this.stepCount;
+    }
+
+    /**
+     * Get whether a physics step is currently being processed.
+     * @return Whether a physics step is being processed.
+     */
+    boolean isInPhysicsStep() {
+        return this.inPhysicsStep;
+    }
+
+    /**
+     * Get the number of consecutive steps that a dynamic box must be at rest for before it is put to sleep.
+     * @return The sleep threshold, or zero if boxes never sleep.
+     */
+    public int getSleepThreshold() {
+        return this.sleepThreshold;
+    }
+
+    /**
+     * Set the number of consecutive steps that a dynamic box must be at rest for before it is put to sleep.
+     * A sleeping box is not integrated or tested for collisions until it is woken by an impulse, a change
+     * of velocity or position, a bloom or zone, or contact with an awake box.
+     * @param sleepThreshold The sleep threshold, or zero to stop boxes from sleeping.
+     */
+    public void setSleepThreshold(int sleepThreshold) {
+        this.sleepThreshold = Math.max(0, sleepThreshold);
+        if (this.sleepThreshold == 0) {
+            this.wakeAllBoxes();
+        }
+        if (replayRecorder != null && !inPhysicsStep) {
+            replayRecorder.onSleepThresholdSet(this.sleepThreshold);
+        }
+    }
+
+    /**
+     * Get the number of boxes that are currently sleeping.
+     * @return The number of sleeping boxes.
+     */
+    public int getSleepingBoxCount() {
+        return this.sleepingBoxCount;
+    }
+
+    /**
+     * Get the number of movable boxes that are currently awake.
+     * @return The number of awake boxes.
+     */
+    public int getAwakeBoxCount() {
+        return this.movableBoxEntities.size() - this.detachedMovableCount - this.sleepingBoxCount;
+    }
+
+    /**
+     * Get the number of boxes that were put to sleep during the last physics step.
+     * @return The number of boxes put to sleep.
+     */
+    public int getLastStepSleepCount() {
+        return this.lastStepSleepCount;
+    }
+
+    /**
+     * Get the number of boxes that were woken during (or just before) the last physics step.
+     * @return The number of boxes woken.
+     */
+    public int getLastStepWakeCount() {
+        return this.lastStepWakeCount;
+    }
+
+    /**
+     * Add a bloom to this environment.
+     * @param bloom The bloom to add.
+     */
+    public void addBloom(Bloom bloom) {
+        this.bloomList.add(bloom);
+        if (replayRecorder != null && !inPhysicsStep) {
+            replayRecorder.onBloomAdded(bloom);
+        }
+    }
+
+    /**
+     * Add a zone of force to this environment.
+     * @param zone The zone of force to add.
+     */
+    public void addZone(Zone zone) {
+        // Don't add a zone that already exists in this environment.
+        if (!this.zoneList.contains(zone)) {
+            this.zoneList.add(zone);
+            if (replayRecorder != null && !inPhysicsStep) {
+                replayRecorder.onZoneAdded(zone);
+            }
+        }
+    }
+
+    /**
+     * Remove a zone of force from this environment.
+     * @param zone The zone of force to remove.
+     */
+    public void removeZone(Zone zone) {
+        // Don't try to remove a zone that doesn't already exist in this environment.
+        if (this.zoneList.contains(zone)) {
+            this.zoneList.remove(zone);
+            if (replayRecorder != null && !inPhysicsStep) {
+                replayRecorder.onZoneRemoved(zone);
+            }
+        }
+    }
+
+    /**
+     * Get all zones of force in the environment.
+     * @return The list of zones of force in the environment.
+     */
+    public ArrayList<Zone> getZones() {
+        return zoneList;
     }
 
     /**
@@ -0,0 +1,601 @@
+package com.nbp;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ticks many environments, such as one per game room, on a shared executor rather than giving each its own thread and timer.
+ * Each room has its own tick rate, and a single scheduler thread hands every room that is due a tick to the executor,
+ * with each tick being one update of the room environment. A room is never ticked by more than one thread at once.
+ * <p>
+ * Rooms are spread across their tick period as they are scheduled, so that rooms with the same tick rate do not all
+ * come due at the same moment. Only so many ticks are run at once, and when more rooms are due than can be run the
+ * rooms with the highest priority go first. A room which has fallen behind takes a few extra ticks to catch up, and
+ * beyond that the ticks it has missed are dropped. The lag of each room, being how late its ticks start, is reported.
+ * <p>
+ * Anything that a room does before or after each tick, such as applying player input, belongs in the onBeforeUpdate
+ * and onAfterUpdate methods of its environment, which are called on the thread running the tick.
+ */
+public class EnvironmentScheduler {
+    /**
+     * The default maximum number of extra ticks that a room which has fallen behind takes to catch up.
+     */
+    private static final int DEFAULT_MAX_CATCH_UP_TICKS = 4;
+    /**
+     * The fraction of its tick period by which each room is offset from the last one scheduled, which spreads any number of rooms evenly.
+     */
+    private static final double SKEW_STEP = 0.6180339887498949;
+    /**
+     * The order in which rooms that are due a tick are run, highest priority first and then the room that has been due for longest.
+     */
+    private static final Comparator<Room> READY_ORDER = new Comparator<Room>() {
+        @Override
+        public int compare(Room first, Room second) {
+            if (first.priority != second.priority) {
+                return first.priority > second.priority ? -1 : 1;
+            }
+            return Long.signum(first.nextTickTime - second.nextTickTime);
+        }
+    };
+    /**
+     * The order in which rooms come due a tick.
+     */
+    private static final Comparator<Room> DUE_ORDER = new Comparator<Room>() {
+        @Override
+        public int compare(Room first, Room second) {
+            return Long.signum(first.nextTickTime - second.nextTickTime);
+        }
+    };
+    /**
+     * The executor that runs the ticks.
+     */
+    private final Executor executor;
+    /**
+     * Whether the executor was created by this scheduler, and so should be shut down with it.
+     */
+    private final boolean isExecutorOwned;
+    /**
+     * The maximum number of ticks run at once.
+     */
+    private final int maxConcurrentTicks;
+    /**
+     * The maximum number of extra ticks that a room which has fallen behind takes to catch up.
+     */
+    private volatile int maxCatchUpTicks = DEFAULT_MAX_CATCH_UP_TICKS;
+    /**
+     * The lock guarding the room queues.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * The condition signalled when the room that comes due next changes, or the scheduler is shut down.
+     */
+    private final Condition nextRoomChanged = lock.newCondition();
+    /**
+     * The condition signalled when the last running tick finishes after the scheduler is shut down.
+     */
+    private final Condition ticksFinished = lock.newCondition();
+    /**
+     * The rooms waiting to come due a tick, soonest first.
+     */
+    private final PriorityQueue<Room> waitingRooms = new PriorityQueue<Room>(64, DUE_ORDER);
+    /**
+     * The rooms that are due a tick but are waiting for one of the concurrent ticks to finish, in the order they are to be run.
+     */
+    private final PriorityQueue<Room> readyRooms = new PriorityQueue<Room>(64, READY_ORDER);
+    /**
+     * The number of ticks currently being run.
+     */
+    private int runningTickCount = 0;
+    /**
+     * The number of rooms scheduled and not cancelled.
+     */
+    private int roomCount = 0;
+    /**
+     * The number of rooms that have ever been scheduled, used to spread them across their tick periods.
+     */
+    private long scheduledRoomCount = 0;
+    /**
+     * Whether the scheduler is running.
+     */
+    private boolean isRunning = true;
+    /**
+     * The thread which hands rooms to the executor as they come due.
+     */
+    private final Thread schedulerThread;
+
+    /**
+     * Create a new instance of the EnvironmentScheduler class which ticks rooms on a work stealing pool with a thread for each processor.
+     */
+    public EnvironmentScheduler() {
+        this(createWorkStealingPool(Runtime.getRuntime().availableProcessors()), Runtime.getRuntime().availableProcessors(), true);
+    }
+
+    /**
+     * Create a new instance of the EnvironmentScheduler class.
+     * @param executor           The executor that runs the ticks, which is left running when the scheduler is shut down.
+     * @param maxConcurrentTicks The maximum number of ticks run at once, which is usually the number of processors to use.
+     */
+    public EnvironmentScheduler(Executor executor, int maxConcurrentTicks) {
+        this(executor, maxConcurrentTicks, false);
+    }
+
+    /**
+     * Create a new instance of the EnvironmentScheduler class.
+     * @param executor           The executor that runs the ticks.
+     * @param maxConcurrentTicks The maximum number of ticks run at once.
+     * @param isExecutorOwned    Whether the executor should be shut down with the scheduler.
+     */
+    private EnvironmentScheduler(Executor executor, int maxConcurrentTicks, boolean isExecutorOwned) {
+        if (maxConcurrentTicks < 1) {
+            throw new IllegalArgumentException("max concurrent ticks must be at least one");
+        }
+        this.executor           = executor;
+        this.maxConcurrentTicks = maxConcurrentTicks;
+        this.isExecutorOwned    = isExecutorOwned;
+        this.schedulerThread    = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runScheduler();
+            }
+        }, "nbp-environment-scheduler");
+        schedulerThread.setDaemon(true);
+        schedulerThread.start();
+    }
+
+    /**
+     * Create a scheduler which ticks rooms on a work stealing pool.
+     * @param parallelism The number of threads in the pool, which is also the maximum number of ticks run at once.
+     * @return The scheduler.
+     */
+    public static EnvironmentScheduler withWorkStealingPool(int parallelism) {
+        return new EnvironmentScheduler(createWorkStealingPool(parallelism), parallelism, true);
+    }
+
+    /**
+     * Create a scheduler which runs each tick on a new virtual thread, falling back to a work stealing pool
+     * on a Java runtime that does not have virtual threads.
+     * @param maxConcurrentTicks The maximum number of ticks run at once.
+     * @return The scheduler.
+     */
+    public static EnvironmentScheduler withVirtualThreads(int maxConcurrentTicks) {
+        Executor executor;
+        try {
+            // Looked up by name, as virtual threads are newer than the Java version that this library is built for.
+            executor = (Executor) java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException exception) {
+            executor = createWorkStealingPool(maxConcurrentTicks);
+        }
+        return new EnvironmentScheduler(executor, maxConcurrentTicks, true);
+    }
+
+    /**
+     * Create a work stealing pool suited to running independent tasks.
+     * @param parallelism The number of threads in the pool.
+     * @return The pool.
+     */
+    private static ForkJoinPool createWorkStealingPool(int parallelism) {
+        return new ForkJoinPool(Math.max(1, parallelism), ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    /**
+     * Schedule an environment to be ticked at the specified rate with the default priority of zero.
+     * @param environment The environment, which should only be scheduled once.
+     * @param tickRate    The number of ticks per second.
+     * @return The scheduled room.
+     */
+    public Room schedule(Environment environment, double tickRate) {
+        return this.schedule(environment, tickRate, 0);
+    }
+
+    /**
+     * Schedule an environment to be ticked at the specified rate. Its first tick is offset by a fraction of
+     * its tick period so that the rooms scheduled with the same rate come due at different times.
+     * @param environment The environment, which should only be scheduled once.
+     * @param tickRate    The number of ticks per second.
+     * @param priority    The priority of the room, with higher priority rooms being ticked first when the scheduler is overloaded.
+     * @return The scheduled room.
+     */
+    public Room schedule(Environment environment, double tickRate, int priority) {
+        Room room = new Room(environment, tickRate, priority);
+        lock.lock();
+        try {
+            if (!isRunning) {
+                throw new IllegalStateException("scheduler has been shut down");
+            }
+            double skew       = (scheduledRoomCount++ * SKEW_STEP) % 1.0;
+            room.nextTickTime = System.nanoTime() + (long) (skew * room.period);
+            waitingRooms.add(room);
+            roomCount++;
+            if (waitingRooms.peek() == room) {
+                nextRoomChanged.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return room;
+    }
+
+    /**
+     * Get the number of rooms that are scheduled.
+     * @return The number of rooms.
+     */
+    public int getRoomCount() {
+        lock.lock();
+        try {
+            return roomCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the maximum number of ticks run at once.
+     * @return The max number of concurrent ticks.
+     */
+    public int getMaxConcurrentTicks() {
+        return this.maxConcurrentTicks;
+    }
+
+    /**
+     * Get the maximum number of extra ticks that a room which has fallen behind takes to catch up.
+     * @return The max number of catch up ticks.
+     */
+    public int getMaxCatchUpTicks() {
+        return this.maxCatchUpTicks;
+    }
+
+    /**
+     * Set the maximum number of extra ticks that a room which has fallen behind takes to catch up, beyond which the ticks it has missed are dropped.
+     * @param maxCatchUpTicks The max number of catch up ticks, or zero to drop every missed tick.
+     */
+    public void setMaxCatchUpTicks(int maxCatchUpTicks) {
+        this.maxCatchUpTicks = Math.max(0, maxCatchUpTicks);
+    }
+
+    /**
+     * Stop ticking rooms. Any ticks already running are left to finish, and an executor created by the scheduler is shut down.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            isRunning = false;
+            nextRoomChanged.signal();
+            ticksFinished.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (isExecutorOwned && executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    /**
+     * Wait for the ticks still running after a shutdown to finish.
+     * @param timeout The maximum time to wait.
+     * @param unit    The unit of the timeout.
+     * @return Whether every tick finished before the timeout.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (isRunning || runningTickCount > 0) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = ticksFinished.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for rooms to come due, handing them to the executor, until the scheduler is shut down.
+     */
+    private void runScheduler() {
+        lock.lock();
+        try {
+            while (isRunning) {
+                this.dispatch();
+                // Wait for the next room to come due, unless a room is scheduled to come due before it.
+                try {
+                    if (waitingRooms.isEmpty()) {
+                        nextRoomChanged.await();
+                    } else {
+                        nextRoomChanged.awaitNanos(waitingRooms.peek().nextTickTime - System.nanoTime());
+                    }
+                } catch (InterruptedException exception) {
+                    isRunning = false;
+                }
+            }
+            readyRooms.clear();
+            waitingRooms.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Move every room which has come due into the ready rooms, and hand as many ready rooms to the executor
+     * as there are free concurrent ticks, highest priority first. This is called while holding the lock.
+     */
+    private void dispatch() {
+        long now = System.nanoTime();
+        while (!waitingRooms.isEmpty() && waitingRooms.peek().nextTickTime - now <= 0) {
+            readyRooms.add(waitingRooms.poll());
+        }
+        while (!readyRooms.isEmpty() && runningTickCount < maxConcurrentTicks) {
+            this.startTick(readyRooms.poll());
+        }
+    }
+
+    /**
+     * Hand a room to the executor to be ticked. This is called while holding the lock.
+     * @param room The room.
+     */
+    private void startTick(Room room) {
+        runningTickCount++;
+        try {
+            executor.execute(room.tickTask);
+        } catch (RejectedExecutionException exception) {
+            runningTickCount--;
+            room.failure     = exception;
+            room.isCancelled = true;
+            roomCount--;
+        }
+    }
+
+    /**
+     * Called once a room has been ticked, to put it back in the waiting rooms unless it has been cancelled. The thread
+     * which ran the tick then hands out any ready rooms itself, so the scheduler thread only has to wake up for rooms
+     * which come due while every concurrent tick is free.
+     * @param room The room.
+     */
+    private void onTickFinished(Room room) {
+        lock.lock();
+        try {
+            runningTickCount--;
+            if (isRunning) {
+                if (!room.isCancelled) {
+                    waitingRooms.add(room);
+                    if (waitingRooms.peek() == room) {
+                        nextRoomChanged.signal();
+                    }
+                }
+                this.dispatch();
+            } else if (runningTickCount == 0) {
+                ticksFinished.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * An environment scheduled to be ticked at a fixed rate.
+     */
+    public class Room {
+        /**
+         * The environment.
+         */
+        private final Environment environment;
+        /**
+         * The length of the tick period in nanoseconds.
+         */
+        private volatile long period;
+        /**
+         * The priority of the room.
+         */
+        private volatile int priority;
+        /**
+         * The time that the next tick is due, from System.nanoTime(). This is guarded by the scheduler lock while the room is queued.
+         */
+        private long nextTickTime;
+        /**
+         * Whether the room has been cancelled.
+         */
+        private volatile boolean isCancelled = false;
+        /**
+         * The exception thrown by the last tick of the room, which stops it from being ticked, or null if none has been thrown.
+         */
+        private volatile Throwable failure = null;
+        /**
+         * How late the last tick started, and the latest that any tick has started since the max lag was reset, in nanoseconds.
+         */
+        private volatile long lastLag = 0L, maxLag = 0L;
+        /**
+         * The number of ticks that have been run and that have been dropped.
+         */
+        private volatile long tickCount = 0L, droppedTickCount = 0L;
+        /**
+         * The task handed to the executor to tick the room.
+         */
+        private final Runnable tickTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (Throwable throwable) {
+                    failure = throwable;
+                    cancel();
+                } finally {
+                    onTickFinished(Room.this);
+                }
+            }
+        };
+
+        /**
+         * Create a new instance of the Room class.
+         * @param environment The environment.
+         * @param tickRate    The number of ticks per second.
+         * @param priority    The priority of the room.
+         */
+        private Room(Environment environment, double tickRate, int priority) {
+            this.environment = environment;
+            this.priority    = priority;
+            this.setTickRate(tickRate);
+        }
+
+        /**
+         * Run the ticks that the room is due, catching up on any that it has missed up to the max catch up ticks.
+         */
+        private void tick() {
+            long start   = System.nanoTime();
+            long period  = this.period;
+            long lag     = start - nextTickTime;
+            long behind  = lag / period;
+            int ticks    = (int) Math.min(behind, maxCatchUpTicks) + 1;
+            lastLag      = lag;
+            if (lag > maxLag) {
+                maxLag = lag;
+            }
+            for (int i = 0; i < ticks && !isCancelled; i++) {
+                environment.update();
+                tickCount++;
+            }
+            // Drop any ticks that could not be caught up on, keeping the room at the same point in its tick period.
+            long dropped      = Math.max(0L, behind + 1 - ticks);
+            droppedTickCount += dropped;
+            nextTickTime     += (ticks + dropped) * period;
+        }
+
+        /**
+         * Get the environment.
+         * @return The environment.
+         */
+        public Environment getEnvironment() {
+            return this.environment;
+        }
+
+        /**
+         * Get the number of ticks per second.
+         * @return The tick rate.
+         */
+        public double getTickRate() {
+            return TimeUnit.SECONDS.toNanos(1) / (double) period;
+        }
+
+        /**
+         * Set the number of ticks per second, which takes effect from the next tick.
+         * @param tickRate The tick rate.
+         */
+        public void setTickRate(double tickRate) {
+            if (!(tickRate > 0)) {
+                throw new IllegalArgumentException("tick rate must be greater than zero");
+            }
+            this.period = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / tickRate));
+        }
+
+        /**
+         * Get the priority of the room.
+         * @return The priority.
+         */
+        public int getPriority() {
+            return this.priority;
+        }
+
+        /**
+         * Set the priority of the room, with higher priority rooms being ticked first when the scheduler is overloaded.
+         * @param priority The priority.
+         */
+        public void setPriority(int priority) {
+            lock.lock();
+            try {
+                // A ready room is reinserted so that it keeps its place among the other ready rooms.
+                if (readyRooms.remove(this)) {
+                    this.priority = priority;
+                    readyRooms.add(this);
+                } else {
+                    this.priority = priority;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Get how late the last tick of the room started.
+         * @return The lag in nanoseconds.
+         */
+        public long getLastLag() {
+            return this.lastLag;
+        }
+
+        /**
+         * Get the latest that any tick of the room has started since the max lag was last reset.
+         * @return The max lag in nanoseconds.
+         */
+        public long getMaxLag() {
+            return this.maxLag;
+        }
+
+        /**
+         * Reset the max lag of the room.
+         */
+        public void resetMaxLag() {
+            this.maxLag = 0L;
+        }
+
+        /**
+         * Get the number of ticks that have been run.
+         * @return The tick count.
+         */
+        public long getTickCount() {
+            return this.tickCount;
+        }
+
+        /**
+         * Get the number of ticks that have been dropped because the room fell too far behind.
+         * @return The dropped tick count.
+         */
+        public long getDroppedTickCount() {
+            return this.droppedTickCount;
+        }
+
+        /**
+         * Get the exception thrown by a tick of the room, which stopped it from being ticked.
+         * @return The exception, or null if none has been thrown.
+         */
+        public Throwable getFailure() {
+            return this.failure;
+        }
+
+        /**
+         * Get whether the room has been cancelled, or has stopped being ticked because a tick failed.
+         * @return Whether the room has been cancelled.
+         */
+        public boolean isCancelled() {
+            return this.isCancelled;
+        }
+
+        /**
+         * Stop ticking the room. A tick which is already running is left to finish.
+         */
+        public void cancel() {
+            lock.lock();
+            try {
+                if (isCancelled) {
+                    return;
+                }
+                isCancelled = true;
+                roomCount--;
+                // A room that is running a tick is not in either queue, and is not put back once the tick finishes.
+                if (!waitingRooms.remove(this)) {
+                    readyRooms.remove(this);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.nbp;
+
+/**
+ * The simulation state of an environment at the end of a physics step, written by {@link Environment#snapshot(EnvironmentSnapshot)}
+ * and read back by {@link Environment#restore(EnvironmentSnapshot)}. The state is held in flat arrays which are kept and reused
+ * from one snapshot to the next, so that taking a snapshot every step does not create any garbage once the arrays are big enough.
+ * A snapshot holds which boxes are in the environment and in what order, the position, velocity, sleep and deletion state of
+ * each box, the position and intersecting boxes of each attached sensor, the pairs of dynamic boxes in contact, any
+ * pending blooms and the environment gravity.
+ * Zones of force, box sizes and types, attached sensors and user data are not held, and are left as they are on restore.
+ */
+public class EnvironmentSnapshot {
+    /**
+     * The number of the physics step that the snapshot was taken after, or -1 if no snapshot has been taken.
+     */
+    int stepCount = -1;
+    /**
+     * The index to give the next box added to the environment.
+     */
+    int nextBoxIndex;
+    /**
+     * The elapsed time not yet consumed by a physics step, and the interpolation alpha.
+     */
+    double accumulator;
+    float interpolationAlpha;
+    /**
+     * The environment gravity, along with its state.
+     */
+    Gravity gravity;
+    float gravityForce;
+    Direction gravityDirection;
+    boolean isGravityEnabled;
+    /**
+     * The gravity force and direction at the last physics step.
+     */
+    float lastGravityForce;
+    Direction lastGravityDirection;
+    /**
+     * The number of boxes put to sleep and woken since the last step, and by the last step.
+     */
+    int sleepCount, wakeCount, lastStepSleepCount, lastStepWakeCount;
+    /**
+     * The boxes in the environment, in box list order.
+     */
+    Box[] boxes = new Box[0];
+    /**
+     * The number of boxes in the environment.
+     */
+    int boxCount;
+    /**
+     * The float and int values of the state of each box.
+     */
+    float[] boxFloats = new float[0];
+    int[] boxInts = new int[0];
+    /**
+     * The sensors attached to the boxes, in box list order.
+     */
+    Sensor[] sensors = new Sensor[0];
+    /**
+     * The number of sensors.
+     */
+    int sensorCount;
+    /**
+     * The position of each sensor.
+     */
+    float[] sensorPositions = new float[0];
+    /**
+     * The number of boxes intersecting each sensor.
+     */
+    int[] sensorIntersectionCounts = new int[0];
+    /**
+     * The boxes intersecting each sensor, one sensor after another.
+     */
+    Box[] sensorIntersections = new Box[0];
+    /**
+     * The indices of the first and second box of each contact, one contact after another.
+     */
+    int[] contactBoxIndices = new int[0];
+    /**
+     * The touch and collide stamps of each contact, one contact after another.
+     */
+    int[] contactStamps = new int[0];
+    /**
+     * The number of contacts.
+     */
+    int contactCount;
+    /**
+     * The pending blooms.
+     */
+    Bloom[] blooms = new Bloom[0];
+    /**
+     * The number of pending blooms.
+     */
+    int bloomCount;
+
+    /**
+     * Get the number of the physics step that the snapshot was taken after.
+     * @return The step number, or -1 if no snapshot has been taken.
+     */
+    public int getStepNumber() {
+        return this.stepCount;
+    }
+
+    /**
+     * Get the number of boxes held in the snapshot.
+     * @return The number of boxes.
+     */
+    public int getBoxCount() {
+        return this.boxCount;
+    }
+
+    /**
+     * Make sure that there is room for the specified number of boxes, sensors and pending blooms.
+     * @param boxCount    The number of boxes.
+     * @param sensorCount The number of sensors.
+     * @param bloomCount  The number of pending blooms.
+     */
+    void ensureCapacity(int boxCount, int sensorCount, int bloomCount) {
+        if (boxes.length < boxCount) {
+            int capacity = Math.max(boxCount, boxes.length * 2);
+            boxes        = new Box[capacity];
+            boxFloats    = new float[capacity * Box.SNAPSHOT_FLOATS];
+            boxInts      = new int[capacity * Box.SNAPSHOT_INTS];
+        }
+        if (sensors.length < sensorCount) {
+            int capacity             = Math.max(sensorCount, sensors.length * 2);
+            sensors                  = new Sensor[capacity];
+            sensorPositions          = new float[capacity * 2];
+            sensorIntersectionCounts = new int[capacity];
+        }
+        if (blooms.length < bloomCount) {
+            blooms = new Bloom[Math.max(bloomCount, blooms.length * 2)];
+        }
+    }
+
+    /**
+     * Make sure that there is room for the specified number of contacts.
+     * @param count The number of contacts.
+     */
+    void ensureContactCapacity(int count) {
+        if (contactStamps.length < count * 2) {
+            int capacity      = Math.max(count, contactStamps.length) * 2;
+            contactBoxIndices = new int[capacity];
+            contactStamps     = new int[capacity];
+        }
+    }
+
+    /**
+     * Make sure that there is room for the specified number of sensor intersections, keeping those already held.
+     * @param count The number of sensor intersections.
+     */
+    void ensureIntersectionCapacity(int count) {
+        if (sensorIntersections.length < count) {
+            Box[] grown = new Box[Math.max(count, sensorIntersections.length * 2)];
+            System.arraycopy(sensorIntersections, 0, grown, 0, sensorIntersections.length);
+            sensorIntersections = grown;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.nbp;
+
+import com.nbp.point.IntersectionPoint;
+import java.util.Arrays;
+
+/**
+ * A ring buffer of the collision and sensor events raised during a physics step, held in preallocated
+ * parallel arrays. Rather than notifying boxes in the middle of collision resolution, the events are
+ * recorded here and dispatched in a single batch once the step has resolved every box, grouped so that
+ * each box is handed all of its events one after another.
+ */
+class EventBuffer {
+    /**
+     * The kinds of event held in the buffer.
+     */
+    static final byte DYNAMIC_COLLISION = 0, STATIC_COLLISION = 1, SENSOR_ENTRY = 2, SENSOR_EXIT = 3, CONTACT_BEGIN = 4, CONTACT_END = 5;
+    /**
+     * The kind of each event.
+     */
+    private byte[] kinds;
+    /**
+     * The box to notify of each event.
+     */
+    private Box[] boxes;
+    /**
+     * The other box involved in each event.
+     */
+    private Box[] otherBoxes;
+    /**
+     * The sensor involved in each sensor event.
+     */
+    private Sensor[] sensors;
+    /**
+     * The point of intersection of each collision event.
+     */
+    private float[] x, y;
+    /**
+     * The edge of intersection of each collision event.
+     */
+    private BoxEdge[] edges;
+    /**
+     * The dispatch order of the events, each being the index of the box to notify in the upper
+     * half and the position of the event relative to the head of the buffer in the lower half.
+     */
+    private long[] order;
+    /**
+     * The position of the oldest event in the buffer.
+     */
+    private int head = 0;
+    /**
+     * The number of events in the buffer.
+     */
+    private int count = 0;
+
+    /**
+     * Create a new instance of the EventBuffer class.
+     * @param capacity The initial capacity, which is rounded up to a power of two.
+     */
+    EventBuffer(int capacity) {
+        allocate(Integer.highestOneBit(Math.max(16, capacity) - 1) << 1);
+    }
+
+    /**
+     * Get the number of events waiting to be dispatched.
+     * @return The number of events.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Record a collision event.
+     * @param box                  The box to notify.
+     * @param collidingBox         The box that it collided with.
+     * @param isCollidingBoxStatic Whether the colliding box is static.
+     * @param pointX               The X position of the point of intersection.
+     * @param pointY               The Y position of the point of intersection.
+     * @param edge                 The edge of intersection.
+     */
+    void addCollision(Box box, Box collidingBox, boolean isCollidingBoxStatic, float pointX, float pointY, BoxEdge edge) {
+        int slot         = this.nextSlot();
+        kinds[slot]      = isCollidingBoxStatic ? STATIC_COLLISION : DYNAMIC_COLLISION;
+        boxes[slot]      = box;
+        otherBoxes[slot] = collidingBox;
+        x[slot]          = pointX;
+        y[slot]          = pointY;
+        edges[slot]      = edge;
+    }
+
+    /**
+     * Record a sensor event.
+     * @param box      The box to notify, which is the parent of the sensor.
+     * @param sensor   The sensor.
+     * @param otherBox The box that the sensor entered or exited.
+     * @param isEntry  Whether the sensor entered the other box, rather than exited it.
+     */
+    void addSensorEvent(Box box, Sensor sensor, Box otherBox, boolean isEntry) {
+        int slot         = this.nextSlot();
+        kinds[slot]      = isEntry ? SENSOR_ENTRY : SENSOR_EXIT;
+        boxes[slot]      = box;
+        otherBoxes[slot] = otherBox;
+        sensors[slot]    = sensor;
+    }
+
+    /**
+     * Record a contact event.
+     * @param box      The box to notify.
+     * @param otherBox The other box in contact.
+     * @param isBegin  Whether the contact began, rather than ended.
+     */
+    void addContactEvent(Box box, Box otherBox, boolean isBegin) {
+        int slot         = this.nextSlot();
+        kinds[slot]      = isBegin ? CONTACT_BEGIN : CONTACT_END;
+        boxes[slot]      = box;
+        otherBoxes[slot] = otherBox;
+    }
+
+    /**
+     * Dispatch every event in the buffer, grouped by the box to notify in box list order.
+     * The events for each box are dispatched in the order that they were raised.
+     * @param contact The intersection point to pass to collision notifications, which is only valid until the notification returns.
+     */
+    void dispatch(IntersectionPoint contact) {
+        int eventCount = count;
+        int mask       = kinds.length - 1;
+        for (int i = 0; i < eventCount; i++) {
+            order[i] = ((long) boxes[(head + i) & mask].index << 32) | i;
+        }
+        Arrays.sort(order, 0, eventCount);
+        try {
+            for (int i = 0; i < eventCount; i++) {
+                int slot = (head + (int) order[i]) & mask;
+                switch (kinds[slot]) {
+                    case DYNAMIC_COLLISION:
+                    case STATIC_COLLISION:
+                        contact.setX(x[slot]);
+                        contact.setY(y[slot]);
+                        contact.setIntersectionEdge(edges[slot]);
+                        if (kinds[slot] == STATIC_COLLISION) {
+                            boxes[slot].onCollisionWithStaticBox(otherBoxes[slot], contact);
+                        } else {
+                            boxes[slot].onCollisionWithDynamicBox(otherBoxes[slot], contact);
+                        }
+                        break;
+                    case SENSOR_ENTRY:
+                        boxes[slot].onSensorEntry(sensors[slot], otherBoxes[slot]);
+                        break;
+                    case SENSOR_EXIT:
+                        boxes[slot].onSensorExit(sensors[slot], otherBoxes[slot]);
+                        break;
+                    case CONTACT_BEGIN:
+                        boxes[slot].onContactBegin(otherBoxes[slot]);
+                        break;
+                    case CONTACT_END:
+                        boxes[slot].onContactEnd(otherBoxes[slot]);
+                        break;
+                }
+            }
+        } finally {
+            // Let go of the dispatched events, even if a notification threw.
+            for (int i = 0; i < eventCount; i++) {
+                int slot         = (head + i) & mask;
+                boxes[slot]      = null;
+                otherBoxes[slot] = null;
+                sensors[slot]    = null;
+                edges[slot]      = null;
+            }
+            head   = (head + eventCount) & mask;
+            count -= eventCount;
+        }
+    }
+
+    /**
+     * Claim the slot for a new event at the tail of the buffer, growing the buffer if it is full.
+     * @return The slot.
+     */
+    private int nextSlot() {
+        if (count == kinds.length) {
+            this.grow();
+        }
+        return (head + count++) & (kinds.length - 1);
+    }
+
+    /**
+     * Double the capacity of the buffer, moving the events so that the oldest is at the start.
+     */
+    private void grow() {
+        byte[] oldKinds     = kinds;
+        Box[] oldBoxes      = boxes;
+        Box[] oldOtherBoxes = otherBoxes;
+        Sensor[] oldSensors = sensors;
+        float[] oldX        = x;
+        float[] oldY        = y;
+        BoxEdge[] oldEdges  = edges;
+        int mask            = oldKinds.length - 1;
+        allocate(oldKinds.length * 2);
+        for (int i = 0; i < count; i++) {
+            int slot      = (head + i) & mask;
+            kinds[i]      = oldKinds[slot];
+            boxes[i]      = oldBoxes[slot];
+            otherBoxes[i] = oldOtherBoxes[slot];
+            sensors[i]    = oldSensors[slot];
+            x[i]          = oldX[slot];
+            y[i]          = oldY[slot];
+            edges[i]      = oldEdges[slot];
+        }
+        head = 0;
+    }
+
+    /**
+     * Allocate empty arrays for the buffer.
+     * @param capacity The capacity, which must be a power of two.
+     */
+    private void allocate(int capacity) {
+        kinds      = new byte[capacity];
+        boxes      = new Box[capacity];
+        otherBoxes = new Box[capacity];
+        sensors    = new Sensor[capacity];
+        x          = new float[capacity];
+        y          = new float[capacity];
+        edges      = new BoxEdge[capacity];
+        order      = new long[capacity];
+    }
+}
@@ -28,6 +28,18 @@ public class NBPMath {
         return doSquaresIntersect(sensor.getX(), sensor.getY(), sensor.getWidth(), sensor.getHeight(), box.getX(), box.getY(), box.getWidth(), box.getHeight());
     }
 
+    /**
+     * Calculates whether two collision filters allow a collision, which is when each belongs to a category in the mask of the other.
+     * @param aCategory The collision categories of the first filter.
+     * @param aMask     The collision mask of the first filter.
+     * @param bCategory The collision categories of the second filter.
+     * @param bMask     The collision mask of the second filter.
+     * @return Whether the filters allow a collision.
+     */
+    public static boolean doCollisionFiltersMatch(int aCategory, int aMask, int bCategory, int bMask) {
+        return (aCategory & bMask) != 0 && (bCategory & aMask) != 0;
+    }
+
     /**
      * Calculates whether two squares intersect.
      * @param aX      The X position of the first box.
@@ -47,11 +59,39 @@ public class NBPMath {
 
     /**
      * Handles a collision between two boxes on an axis.
+     * A new intersection point is created for every collision notification.
      * @param firstBox  The first box.
      * @param secondBox The second box.
      * @param axis      The axis on which to handle this collision.
      */
     public static void handleCollision(Box firstBox, Box secondBox, CollisionAxis axis) {
+        handleCollision(firstBox, secondBox, axis, null);
+    }
+
+    /**
+     * Handles a collision between two boxes on an axis, reusing a single intersection point for every collision notification.
+     * The point passed to a notification is only valid until that notification returns, so a box
+     * that wants to keep hold of it should take a copy.
+     * @param firstBox  The first box.
+     * @param secondBox The second box.
+     * @param axis      The axis on which to handle this collision.
+     * @param contact   The intersection point to reuse, or null if a new one should be created for each notification.
+     */
+    public static void handleCollision(Box firstBox, Box secondBox, CollisionAxis axis, IntersectionPoint contact) {
+        handleCollision(firstBox, secondBox, axis, contact, null);
+    }
+
+    /**
+     * Handles a collision between two boxes on an axis, either notifying the boxes straight away or
+     * recording the notifications in an event buffer to be dispatched later.
+     * @param firstBox  The first box.
+     * @param secondBox The second box.
+     * @param axis      The axis on which to handle this collision.
+     * @param contact   The intersection point to reuse, or null if a new one should be created for each notification.
+     * @param events    The event buffer to record the notifications in, or null if the boxes should be notified straight away.
+     * @return The number of notifications made or recorded.
+     */
+    static int handleCollision(Box firstBox, Box secondBox, CollisionAxis axis, IntersectionPoint contact, EventBuffer events) {
         // Are we dealing with a Dynamic/Static collision or a Dynamic/Dynamic one?
         if ((firstBox.getType() == BoxType.DYNAMIC && secondBox.getType() == BoxType.STATIC) ||
                 (secondBox.getType() == BoxType.DYNAMIC && firstBox.getType() == BoxType.STATIC)) {
@@ -66,15 +106,17 @@ public class NBPMath {
                         // Flip velocity
                         dynamicBox.setVelX(-dynamicBox.getVelX() * (dynamicBox.getRestitution() + staticBox.getRestitution()));
                         // Notify boxes of collision.
-                        staticBox.onCollisionWithDynamicBox(dynamicBox, new IntersectionPoint(dynamicBox.getCurrentOriginPoint(), BoxEdge.LEFT));
-                        dynamicBox.onCollisionWithStaticBox(staticBox, new IntersectionPoint(dynamicBox.getCurrentOriginPoint(), BoxEdge.LEFT));
+                        notifyCollision(staticBox, dynamicBox, false, dynamicBox.getCurrentOriginPoint().getX(), dynamicBox.getCurrentOriginPoint().getY(), BoxEdge.LEFT, contact, events);
+                        notifyCollision(dynamicBox, staticBox, true, dynamicBox.getCurrentOriginPoint().getX(), dynamicBox.getCurrentOriginPoint().getY(), BoxEdge.LEFT, contact, events);
+                        return 2;
                     } else if (dynamicBox.getVelX() < 0) {
                         dynamicBox.setX(staticBox.getX() + staticBox.getWidth());
                         // Flip velocity
                         dynamicBox.setVelX(-dynamicBox.getVelX() * (dynamicBox.getRestitution() + staticBox.getRestitution()));
                         // Notify boxes of collision.
-                        staticBox.onCollisionWithDynamicBox(dynamicBox, new IntersectionPoint(dynamicBox.getCurrentOriginPoint(), BoxEdge.RIGHT));
-                        dynamicBox.onCollisionWithStaticBox(staticBox, new IntersectionPoint(dynamicBox.getCurrentOriginPoint(), BoxEdge.RIGHT));
+                        notifyCollision(staticBox, dynamicBox, false, dynamicBox.getCurrentOriginPoint().getX(), dynamicBox.getCurrentOriginPoint().getY(), BoxEdge.RIGHT, contact, events);
+                        notifyCollision(dynamicBox, staticBox, true, dynamicBox.getCurrentOriginPoint().getX(), dynamicBox.getCurrentOriginPoint().getY(), BoxEdge.RIGHT, contact, events);
+                        return 2;
                     }
                     break;
                 case Y:
@@ -83,8 +125,9 @@ public class NBPMath {
                         // Flip velocity
                         dynamicBox.setVelY(-dynamicBox.getVelY() * (dynamicBox.getRestitution() + staticBox.getRestitution()));
                         // Notify boxes of collision.
-                        staticBox.onCollisionWithDynamicBox(dynamicBox, new IntersectionPoint(dynamicBox.getCurrentOriginPoint(), BoxEdge.BOTTOM));
-                        dynamicBox.onCollisionWithStaticBox(staticBox, new IntersectionPoint(dynamicBox.getCurrentOriginPoint(), BoxEdge.BOTTOM));
+                        notifyCollision(staticBox, dynamicBox, false, dynamicBox.getCurrentOriginPoint().getX(), dynamicBox.getCurrentOriginPoint().getY(), BoxEdge.BOTTOM, contact, events);
+                        notifyCollision(dynamicBox, staticBox, true, dynamicBox.getCurrentOriginPoint().getX(), dynamicBox.getCurrentOriginPoint().getY(), BoxEdge.BOTTOM, contact, events);
+                        return 2;
                     } else if (dynamicBox.getVelY() < 0) {
                         dynamicBox.setY(staticBox.getY() + staticBox.getHeight());
                         // Flip velocity
@@ -92,8 +135,9 @@ public class NBPMath {
                         // Reduce X velocity based on friction.
                         dynamicBox.setVelX(dynamicBox.getVelX() * (dynamicBox.getFriction() + staticBox.getFriction()));
                         // Notify boxes of collision.
-                        staticBox.onCollisionWithDynamicBox(dynamicBox, new IntersectionPoint(dynamicBox.getCurrentOriginPoint(), BoxEdge.TOP));
-                        dynamicBox.onCollisionWithStaticBox(staticBox, new IntersectionPoint(dynamicBox.getCurrentOriginPoint(), BoxEdge.TOP));
+                        notifyCollision(staticBox, dynamicBox, false, dynamicBox.getCurrentOriginPoint().getX(), dynamicBox.getCurrentOriginPoint().getY(), BoxEdge.TOP, contact, events);
+                        notifyCollision(dynamicBox, staticBox, true, dynamicBox.getCurrentOriginPoint().getX(), dynamicBox.getCurrentOriginPoint().getY(), BoxEdge.TOP, contact, events);
+                        return 2;
                     }
                     break;
             }
@@ -103,9 +147,49 @@ public class NBPMath {
             // we can pass an IntersectionPoint point which points to the mid-point between the entities.
             float midpointX = (secondBox.getX() + firstBox.getX()) / 2f;
             float midpointY = (secondBox.getY() + firstBox.getY()) / 2f;
-            IntersectionPoint point = new IntersectionPoint(midpointX, midpointY, BoxEdge.NONE);
-            firstBox.onCollisionWithDynamicBox(secondBox, point);
-            secondBox.onCollisionWithDynamicBox(firstBox, point);
+            notifyCollision(firstBox, secondBox, false, midpointX, midpointY, BoxEdge.NONE, contact, events);
+            notifyCollision(secondBox, firstBox, false, midpointX, midpointY, BoxEdge.NONE, contact, events);
+            return 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Get the intersection point to pass to a collision notification.
+     * @param contact The reusable intersection point, or null if a new one should be created.
+     * @param x       The X position of the point.
+     * @param y       The Y position of the point.
+     * @param edge    The edge of intersection.
+     * @return The intersection point.
+     */
+    private static IntersectionPoint getContact(IntersectionPoint contact, float x, float y, BoxEdge edge) {
+        if (contact == null) {
+            return new IntersectionPoint(x, y, edge);
+        }
+        contact.setX(x);
+        contact.setY(y);
+        contact.setIntersectionEdge(edge);
+        return contact;
+    }
+
+    /**
+     * Notify a box of a collision, or record the notification in an event buffer to be dispatched later.
+     * @param box                  The box to notify.
+     * @param collidingBox         The box that it collided with.
+     * @param isCollidingBoxStatic Whether the colliding box is static.
+     * @param x                    The X position of the point of intersection.
+     * @param y                    The Y position of the point of intersection.
+     * @param edge                 The edge of intersection.
+     * @param contact              The reusable intersection point, or null if a new one should be created.
+     * @param events               The event buffer, or null if the box should be notified straight away.
+     */
+    static void notifyCollision(Box box, Box collidingBox, boolean isCollidingBoxStatic, float x, float y, BoxEdge edge, IntersectionPoint contact, EventBuffer events) {
+        if (events != null) {
+            events.addCollision(box, collidingBox, isCollidingBoxStatic, x, y, edge);
+        } else if (isCollidingBoxStatic) {
+            box.onCollisionWithStaticBox(collidingBox, getContact(contact, x, y, edge));
+        } else {
+            box.onCollisionWithDynamicBox(collidingBox, getContact(contact, x, y, edge));
         }
     }
 
@@ -128,8 +212,18 @@ public class NBPMath {
      * @return The angle between the two points.
      */
     public static float getAngleBetweenPoints(Point pointA, Point pointB, boolean flipY, boolean flipX) {
-        float deltaY   = flipY ? pointA.getY() - pointB.getY() : pointB.getY() - pointA.getY();
-        float deltaX   = flipX ? pointA.getX() - pointB.getX() : pointB.getX() - pointA.getX();
+        float deltaY = flipY ? pointA.getY() - pointB.getY() : pointB.getY() - pointA.getY();
+        float deltaX = flipX ? pointA.getX() - pointB.getX() : pointB.getX() - pointA.getX();
+        return getAngleOfDelta(deltaX, deltaY);
+    }
+
+    /**
+     * Get the angle of the difference between two points as a 0-360 degree value.
+     * @param deltaX The difference between the points on the X axis.
+     * @param deltaY The difference between the points on the Y axis.
+     * @return The angle of the difference between the two points.
+     */
+    public static float getAngleOfDelta(float deltaX, float deltaY) {
         double degrees = Math.toDegrees(Math.atan2(deltaY, deltaX));
         degrees        = degrees < 0.0d ? degrees + 360.0d : degrees;
         return (float) degrees;
@@ -0,0 +1,123 @@
+package com.nbp;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a task for every box in a list, splitting the list into chunks that are processed in parallel by an executor.
+ * A task must only ever change the state of the box that it is given, which keeps the outcome identical to
+ * running the task for each box in turn on a single thread.
+ */
+class ParallelBoxRunner {
+    /**
+     * A task to run for a single box.
+     */
+    interface BoxTask {
+        /**
+         * Run the task for a box.
+         * @param box The box.
+         */
+        void run(Box box);
+    }
+
+    /**
+     * The executor that runs the chunks.
+     */
+    private final Executor executor;
+    /**
+     * The number of boxes in each chunk.
+     */
+    private final int chunkSize;
+
+    /**
+     * Create a new instance of the ParallelBoxRunner class.
+     * @param executor  The executor that runs the chunks.
+     * @param chunkSize The number of boxes in each chunk.
+     */
+    ParallelBoxRunner(Executor executor, int chunkSize) {
+        this.executor  = executor;
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Get the executor that runs the chunks.
+     * @return The executor.
+     */
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Run a task for every box in a list, returning once it has been run for all of them.
+     * @param boxes The boxes.
+     * @param task  The task to run for each box.
+     */
+    void run(final ArrayList<Box> boxes, final BoxTask task) {
+        final int boxCount   = boxes.size();
+        final int chunkCount = (boxCount + chunkSize - 1) / chunkSize;
+        // Not worth handing anything to the executor if there is only one chunk.
+        if (chunkCount <= 1) {
+            runChunk(boxes, task, 0, boxCount);
+            return;
+        }
+        final CountDownLatch remainingChunks   = new CountDownLatch(chunkCount - 1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        for (int chunk = 1; chunk < chunkCount; chunk++) {
+            final int start = chunk * chunkSize;
+            final int end   = Math.min(boxCount, start + chunkSize);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runChunk(boxes, task, start, end);
+                    } catch (Throwable throwable) {
+                        error.compareAndSet(null, throwable);
+                    } finally {
+                        remainingChunks.countDown();
+                    }
+                }
+            });
+        }
+        // The calling thread takes the first chunk itself rather than sitting idle.
+        try {
+            runChunk(boxes, task, 0, Math.min(boxCount, chunkSize));
+        } catch (Throwable throwable) {
+            error.compareAndSet(null, throwable);
+        }
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                remainingChunks.await();
+                break;
+            } catch (InterruptedException exception) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Throwable throwable = error.get();
+        if (throwable instanceof RuntimeException) {
+            throw (RuntimeException) throwable;
+        } else if (throwable instanceof Error) {
+            throw (Error) throwable;
+        } else if (throwable != null) {
+            throw new RuntimeException(throwable);
+        }
+    }
+
+    /**
+     * Run a task for a range of boxes in a list.
+     * @param boxes The boxes.
+     * @param task  The task.
+     * @param start The position of the first box in the range.
+     * @param end   The position after the last box in the range.
+     */
+    private static void runChunk(ArrayList<Box> boxes, BoxTask task, int start, int end) {
+        for (int i = start; i < end; i++) {
+            task.run(boxes.get(i));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.nbp;
+
+/**
+ * A box hit by a raycast, along with where and at which edge the ray entered it.
+ * Instances are filled in by the raycasts of an environment, so they can be reused for every raycast.
+ */
+public class RaycastHit {
+    /**
+     * The box that was hit.
+     */
+    private Box box = null;
+    /**
+     * The position at which the ray entered the box.
+     */
+    private float x, y;
+    /**
+     * The distance along the ray to the point at which it entered the box.
+     */
+    private float distance;
+    /**
+     * How far along the ray the point at which it entered the box is, from zero at its start to one at its end.
+     */
+    private float fraction;
+    /**
+     * The edge at which the ray entered the box, or NONE if the ray started inside the box.
+     */
+    private BoxEdge edge = BoxEdge.NONE;
+
+    /**
+     * Fill in the hit.
+     * @param box      The box that was hit.
+     * @param x        The X position at which the ray entered the box.
+     * @param y        The Y position at which the ray entered the box.
+     * @param distance The distance along the ray to the point at which it entered the box.
+     * @param fraction How far along the ray the point at which it entered the box is.
+     * @param edge     The edge at which the ray entered the box.
+     */
+    void set(Box box, float x, float y, float distance, float fraction, BoxEdge edge) {
+        this.box      = box;
+        this.x        = x;
+        this.y        = y;
+        this.distance = distance;
+        this.fraction = fraction;
+        this.edge     = edge;
+    }
+
+    /**
+     * Fill in the hit from another.
+     * @param hit The other hit.
+     */
+    void set(RaycastHit hit) {
+        this.set(hit.box, hit.x, hit.y, hit.distance, hit.fraction, hit.edge);
+    }
+
+    /**
+     * Get the box that was hit.
+     * @return The box.
+     */
+    public Box getBox() {
+        return this.box;
+    }
+
+    /**
+     * Get the X position at which the ray entered the box.
+     * @return The x position.
+     */
+    public float getX() {
+        return this.x;
+    }
+
+    /**
+     * Get the Y position at which the ray entered the box.
+     * @return The y position.
+     */
+    public float getY() {
+        return this.y;
+    }
+
+    /**
+     * Get the distance along the ray to the point at which it entered the box.
+     * @return The distance.
+     */
+    public float getDistance() {
+        return this.distance;
+    }
+
+    /**
+     * Get how far along the ray the point at which it entered the box is, from zero at its start to one at its end.
+     * @return The fraction.
+     */
+    public float getFraction() {
+        return this.fraction;
+    }
+
+    /**
+     * Get the edge at which the ray entered the box.
+     * @return The edge, or NONE if the ray started inside the box.
+     */
+    public BoxEdge getEdge() {
+        return this.edge;
+    }
+}
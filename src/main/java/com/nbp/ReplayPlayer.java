@@ -0,0 +1,560 @@
+package com.nbp;
+
+import com.nbp.zone.CircleZone;
+import com.nbp.zone.SquareZone;
+import com.nbp.zone.Zone;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Plays back a replay file written by a {@link ReplayRecorder} into an environment, which can be stepped forward one
+ * physics step at a time or moved to any step of the recording. Moving to a step loads the nearest keyframe at or before
+ * it and then simulates forward, applying the recorded changes before each step just as they were made while recording.
+ * <p>
+ * The boxes are created by a box factory, and should be of the same classes as those that were recorded so that their
+ * callbacks do the same things during each physics step as they did while recording. Sensors are recorded and attached
+ * by the player, so the factory should not attach any. The environment should not be a subclass that changes itself
+ * before or after an update, as those changes are already in the recording.
+ */
+public class ReplayPlayer {
+    /**
+     * The default size in bytes of each memory mapped window of the file.
+     */
+    private static final int DEFAULT_WINDOW_SIZE = 16 * 1024 * 1024;
+    /**
+     * The environment that the recording is played into.
+     */
+    private final Environment environment;
+    /**
+     * The factory used to create boxes.
+     */
+    private final BoxFactory boxFactory;
+    /**
+     * The file being read.
+     */
+    private final FileChannel channel;
+    /**
+     * The length in bytes of the recording.
+     */
+    private long length;
+    /**
+     * The memory mapped window of the file currently being read, and its offset in the file.
+     */
+    private ByteBuffer window;
+    private long windowOffset;
+    /**
+     * The offset in the file of the next record to be played.
+     */
+    private long position;
+    /**
+     * The step number and file offset of each keyframe, in the order they appear in the recording.
+     */
+    private int[] keyframeSteps = new int[16];
+    private long[] keyframeOffsets = new long[16];
+    /**
+     * The number of keyframes.
+     */
+    private int keyframeCount = 0;
+    /**
+     * The number of the last physics step in the recording.
+     */
+    private int lastStep;
+    /**
+     * The zones of force added by the player, by their id in the recording.
+     */
+    private final HashMap<Integer, Zone> zones = new HashMap<Integer, Zone>();
+    /**
+     * The reusable snapshot that keyframes are loaded into.
+     */
+    private final EnvironmentSnapshot snapshot = new EnvironmentSnapshot();
+    /**
+     * The reusable arrays that the state of a box is read into.
+     */
+    private final float[] boxFloats = new float[Box.SNAPSHOT_FLOATS];
+    private final int[] boxInts = new int[Box.SNAPSHOT_INTS];
+
+    /**
+     * Create a new instance of the ReplayPlayer class, loading the first keyframe of the recording into the environment.
+     * @param path        The path of the replay file.
+     * @param environment The environment to play the recording into, which has any boxes already in it replaced.
+     * @param boxFactory  The factory used to create boxes.
+     * @throws IOException If the file cannot be read.
+     */
+    public ReplayPlayer(Path path, Environment environment, BoxFactory boxFactory) throws IOException {
+        this.environment = environment;
+        this.boxFactory  = boxFactory;
+        this.channel     = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.length       = channel.size();
+            ByteBuffer header = this.read(0, ReplayRecorder.HEADER_SIZE);
+            if (header == null || header.getInt() != ReplayRecorder.MAGIC || header.getInt() != ReplayRecorder.VERSION) {
+                throw new IllegalArgumentException("file is not a replay recording");
+            }
+            this.index();
+            if (keyframeCount == 0) {
+                throw new IllegalArgumentException("replay recording holds no keyframe");
+            }
+            this.loadKeyframe(0);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Close the replay file. The environment is left as it is.
+     * @throws IOException If the file cannot be closed.
+     */
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    /**
+     * Get the environment that the recording is played into.
+     * @return The environment.
+     */
+    public Environment getEnvironment() {
+        return this.environment;
+    }
+
+    /**
+     * Get the number of the first physics step that can be moved to, which is that of the first keyframe.
+     * @return The first step number.
+     */
+    public int getFirstStep() {
+        return keyframeSteps[0];
+    }
+
+    /**
+     * Get the number of the last physics step in the recording.
+     * @return The last step number.
+     */
+    public int getLastStep() {
+        return this.lastStep;
+    }
+
+    /**
+     * Get the number of the physics step that the environment is currently at.
+     * @return The current step number.
+     */
+    public int getStep() {
+        return environment.getStepCount();
+    }
+
+    /**
+     * Play the recording forward by one physics step.
+     * @return Whether there was a step left to play.
+     */
+    public boolean step() {
+        while (position < length) {
+            byte type = this.playRecord();
+            if (type == ReplayRecorder.END) {
+                // Nothing follows the end of a recording.
+                position = length;
+            } else if (type == ReplayRecorder.STEP) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move the environment to the state it was in after the specified physics step, loading the nearest keyframe
+     * at or before the step unless the step can be reached by simply playing forward.
+     * @param stepNumber The step number.
+     */
+    public void seek(int stepNumber) {
+        if (stepNumber < keyframeSteps[0] || stepNumber > lastStep) {
+            throw new IllegalArgumentException("step is outside of the recording");
+        }
+        // Find the last keyframe at or before the step, which after any rollback in the recording is the one that leads to it.
+        int keyframe = keyframeCount - 1;
+        while (keyframeSteps[keyframe] > stepNumber) {
+            keyframe--;
+        }
+        if (environment.getStepCount() > stepNumber || position <= keyframeOffsets[keyframe]) {
+            this.loadKeyframe(keyframe);
+        }
+        while (environment.getStepCount() < stepNumber && this.step()) {
+            // Keep playing until the step is reached.
+        }
+    }
+
+    /**
+     * Read through the whole recording, noting the offset of every keyframe and the number of the last physics step.
+     */
+    private void index() {
+        long offset = ReplayRecorder.HEADER_SIZE;
+        while (true) {
+            ByteBuffer record = this.read(offset, ReplayRecorder.RECORD_HEADER_SIZE + 4);
+            if (record == null) {
+                break;
+            }
+            byte type        = record.get();
+            int recordLength = record.getInt();
+            // A record cut short by the end of the file was never finished.
+            if (type == ReplayRecorder.END || offset + ReplayRecorder.RECORD_HEADER_SIZE + recordLength > length) {
+                break;
+            }
+            if (type == ReplayRecorder.KEYFRAME) {
+                if (keyframeCount == keyframeSteps.length) {
+                    keyframeSteps   = Arrays.copyOf(keyframeSteps, keyframeCount * 2);
+                    keyframeOffsets = Arrays.copyOf(keyframeOffsets, keyframeCount * 2);
+                }
+                keyframeSteps[keyframeCount]     = record.getInt();
+                keyframeOffsets[keyframeCount++] = offset;
+                lastStep                         = Math.max(lastStep, keyframeSteps[keyframeCount - 1]);
+            } else if (type == ReplayRecorder.STEP) {
+                lastStep = record.getInt();
+            }
+            offset += ReplayRecorder.RECORD_HEADER_SIZE + recordLength;
+        }
+        length = offset;
+    }
+
+    /**
+     * Play the record at the current position and move past it.
+     * @return The type of the record.
+     */
+    private byte playRecord() {
+        ByteBuffer record = this.read(position, ReplayRecorder.RECORD_HEADER_SIZE);
+        byte type         = record.get();
+        int recordLength  = record.getInt();
+        if (type == ReplayRecorder.END) {
+            return type;
+        }
+        record    = this.read(position + ReplayRecorder.RECORD_HEADER_SIZE, recordLength);
+        position += ReplayRecorder.RECORD_HEADER_SIZE + recordLength;
+        switch (type) {
+            case ReplayRecorder.STEP:
+                environment.update();
+                if (environment.getStepCount() != record.getInt()) {
+                    throw new IllegalStateException("replay has diverged from the recording");
+                }
+                break;
+            case ReplayRecorder.KEYFRAME:
+                int stepNumber    = record.getInt();
+                boolean isRestore = record.get() != 0;
+                // Keyframes written on schedule only hold the state that playing forward has already reached.
+                if (isRestore || stepNumber != environment.getStepCount()) {
+                    this.readKeyframe(record, stepNumber);
+                }
+                break;
+            case ReplayRecorder.ADD_BOX:
+                int id  = record.getInt();
+                Box box = this.readBox(record, id, boxFloats, 0, boxInts, 0);
+                environment.addBox(box);
+                if (box.index != id) {
+                    throw new IllegalStateException("replay has diverged from the recording");
+                }
+                break;
+            case ReplayRecorder.REMOVE_BOX:
+                environment.removeBox(this.getBox(record.getInt()));
+                break;
+            case ReplayRecorder.MARK_FOR_DELETION:
+                this.getBox(record.getInt()).markForDeletion();
+                break;
+            case ReplayRecorder.IMPULSE:
+                this.getBox(record.getInt()).applyImpulse(record.getFloat(), record.getFloat());
+                break;
+            case ReplayRecorder.SET_X:
+                this.getBox(record.getInt()).setX(record.getFloat());
+                break;
+            case ReplayRecorder.SET_Y:
+                this.getBox(record.getInt()).setY(record.getFloat());
+                break;
+            case ReplayRecorder.SET_VEL_X:
+                this.getBox(record.getInt()).setVelX(record.getFloat());
+                break;
+            case ReplayRecorder.SET_VEL_Y:
+                this.getBox(record.getInt()).setVelY(record.getFloat());
+                break;
+            case ReplayRecorder.ATTACH_SENSOR:
+                this.getBox(record.getInt()).attachSensor(this.readSensor(record));
+                break;
+            case ReplayRecorder.ADD_BLOOM:
+                environment.addBloom(this.readBloom(record));
+                break;
+            case ReplayRecorder.ADD_ZONE:
+                this.readZone(record);
+                break;
+            case ReplayRecorder.REMOVE_ZONE:
+                Zone zone = zones.remove(record.getInt());
+                if (zone != null) {
+                    environment.removeZone(zone);
+                }
+                break;
+            case ReplayRecorder.SLEEP_THRESHOLD:
+                environment.setSleepThreshold(record.getInt());
+                break;
+            case ReplayRecorder.GRAVITY:
+                boolean isReplaced = record.get() != 0;
+                Gravity gravity    = this.readGravity(record, isReplaced ? null : environment.getGravity());
+                if (gravity != environment.getGravity()) {
+                    environment.setGravity(gravity);
+                }
+                break;
+            default:
+                // Skip any record that this version does not know about.
+                break;
+        }
+        return type;
+    }
+
+    /**
+     * Load a keyframe into the environment and carry on playing from the record after it.
+     * @param keyframe The position of the keyframe in the keyframe list.
+     */
+    private void loadKeyframe(int keyframe) {
+        position = keyframeOffsets[keyframe];
+        ByteBuffer record = this.read(position, ReplayRecorder.RECORD_HEADER_SIZE);
+        record.get();
+        int recordLength = record.getInt();
+        record           = this.read(position + ReplayRecorder.RECORD_HEADER_SIZE, recordLength);
+        position        += ReplayRecorder.RECORD_HEADER_SIZE + recordLength;
+        int stepNumber   = record.getInt();
+        record.get();
+        this.readKeyframe(record, stepNumber);
+    }
+
+    /**
+     * Read a keyframe into the environment, replacing every box in it with a new one from the box factory.
+     * @param record     The contents of the keyframe, positioned after the step number and restore flag.
+     * @param stepNumber The step number of the keyframe.
+     */
+    private void readKeyframe(ByteBuffer record, int stepNumber) {
+        snapshot.stepCount    = stepNumber;
+        snapshot.nextBoxIndex = record.getInt();
+        environment.setSleepThreshold(record.getInt());
+        environment.setDeferredEventDispatchEnabled(record.get() != 0);
+        snapshot.gravity = this.readGravity(record, environment.getGravity());
+        if (snapshot.gravity != null) {
+            snapshot.gravityForce     = snapshot.gravity.getForce();
+            snapshot.gravityDirection = snapshot.gravity.getDirection();
+            snapshot.isGravityEnabled = snapshot.gravity.isEnabled();
+        }
+        snapshot.lastGravityForce     = record.getFloat();
+        byte lastGravityDirection     = record.get();
+        snapshot.lastGravityDirection = lastGravityDirection == -1 ? null : Direction.values()[lastGravityDirection];
+        snapshot.sleepCount           = record.getInt();
+        snapshot.wakeCount            = record.getInt();
+        snapshot.lastStepSleepCount   = record.getInt();
+        snapshot.lastStepWakeCount    = record.getInt();
+        snapshot.accumulator          = 0.0;
+        snapshot.interpolationAlpha   = 1f;
+        // Read each box along with its sensors. The boxes that the sensors intersect are only known once every box has been read.
+        int boxCount = record.getInt();
+        snapshot.ensureCapacity(boxCount, 0, 0);
+        HashMap<Integer, Box> boxes = new HashMap<Integer, Box>();
+        int[] intersectionCounts    = new int[16];
+        int[] intersectionIds       = new int[16];
+        int intersectionCount       = 0;
+        int sensorCount             = 0;
+        for (int i = 0; i < boxCount; i++) {
+            Box box           = this.readBox(record, -1, snapshot.boxFloats, i * Box.SNAPSHOT_FLOATS, snapshot.boxInts, i * Box.SNAPSHOT_INTS);
+            snapshot.boxes[i] = box;
+            boxes.put(box.index, box);
+            for (int j = 0; j < box.getAttachedSensors().size(); j++) {
+                int count = record.getInt();
+                if (intersectionCounts.length == sensorCount) {
+                    intersectionCounts = Arrays.copyOf(intersectionCounts, sensorCount * 2);
+                }
+                intersectionCounts[sensorCount++] = count;
+                if (intersectionIds.length < intersectionCount + count) {
+                    intersectionIds = Arrays.copyOf(intersectionIds, Math.max(intersectionCount + count, intersectionIds.length * 2));
+                }
+                for (int k = 0; k < count; k++) {
+                    intersectionIds[intersectionCount++] = record.getInt();
+                }
+            }
+        }
+        int bloomCount = record.getInt();
+        snapshot.ensureCapacity(boxCount, sensorCount, bloomCount);
+        snapshot.ensureIntersectionCapacity(intersectionCount);
+        snapshot.boxCount    = boxCount;
+        snapshot.sensorCount = sensorCount;
+        // The sensors were created in place on their boxes, so they only need their intersecting boxes filled in.
+        int sensorIndex = 0;
+        int idOffset    = 0;
+        int retained    = 0;
+        for (int i = 0; i < boxCount; i++) {
+            for (Sensor sensor : snapshot.boxes[i].getAttachedSensors()) {
+                snapshot.sensors[sensorIndex]                   = sensor;
+                snapshot.sensorPositions[sensorIndex * 2]       = sensor.getX();
+                snapshot.sensorPositions[(sensorIndex * 2) + 1] = sensor.getY();
+                int start = retained;
+                for (int j = 0; j < intersectionCounts[sensorIndex]; j++) {
+                    // Leave out any intersecting box that was no longer in the environment.
+                    Box box = boxes.get(intersectionIds[idOffset++]);
+                    if (box != null) {
+                        snapshot.sensorIntersections[retained++] = box;
+                    }
+                }
+                snapshot.sensorIntersectionCounts[sensorIndex++] = retained - start;
+            }
+        }
+        for (int i = 0; i < bloomCount; i++) {
+            snapshot.blooms[i] = this.readBloom(record);
+        }
+        snapshot.bloomCount = bloomCount;
+        // Replace the zones of force.
+        Iterator<Zone> iterator = zones.values().iterator();
+        while (iterator.hasNext()) {
+            environment.removeZone(iterator.next());
+        }
+        zones.clear();
+        int zoneCount = record.getInt();
+        for (int i = 0; i < zoneCount; i++) {
+            this.readZone(record);
+        }
+        // The contacts are put back once the boxes are in the environment, so that seeking does not begin them again.
+        int contactCount = record.getInt();
+        snapshot.ensureContactCapacity(contactCount);
+        for (int i = 0; i < contactCount * 2; i += 2) {
+            snapshot.contactBoxIndices[i]     = record.getInt();
+            snapshot.contactBoxIndices[i + 1] = record.getInt();
+            snapshot.contactStamps[i]         = record.getInt();
+            snapshot.contactStamps[i + 1]     = record.getInt();
+        }
+        snapshot.contactCount = contactCount;
+        environment.restore(snapshot);
+    }
+
+    /**
+     * Read a box and the bounds of its sensors, creating the box with the box factory and attaching new sensors to it.
+     * The state of the box is read into the specified arrays, so that a keyframe can be read straight into a snapshot.
+     * @param record      The record.
+     * @param id          The id of the box, or -1 to use the index held in its state.
+     * @param floats      The float values to read the state of the box into.
+     * @param floatOffset The position in the float values of the first one.
+     * @param ints        The int values to read the state of the box into.
+     * @param intOffset   The position in the int values of the first one.
+     * @return The box.
+     */
+    private Box readBox(ByteBuffer record, int id, float[] floats, int floatOffset, int[] ints, int intOffset) {
+        BoxType type = BoxType.values()[record.get()];
+        float width  = record.getFloat();
+        float height = record.getFloat();
+        for (int i = 0; i < Box.SNAPSHOT_FLOATS; i++) {
+            floats[floatOffset + i] = record.getFloat();
+        }
+        for (int i = 0; i < Box.SNAPSHOT_INTS; i++) {
+            ints[intOffset + i] = record.getInt();
+        }
+        Box box = boxFactory.createBox(id == -1 ? ints[intOffset] : id, type, width, height);
+        // Attaching a sensor wakes a box, so the sensors go on before the state is restored.
+        int sensorCount = record.getInt();
+        for (int i = 0; i < sensorCount; i++) {
+            box.attachSensor(this.readSensor(record));
+        }
+        box.restoreState(floats, floatOffset, ints, intOffset);
+        return box;
+    }
+
+    /**
+     * Read the bounds of a sensor and create it.
+     * @param record The record.
+     * @return The sensor.
+     */
+    private Sensor readSensor(ByteBuffer record) {
+        return new Sensor(record.getFloat(), record.getFloat(), record.getFloat(), record.getFloat());
+    }
+
+    /**
+     * Read a bloom and create it.
+     * @param record The record.
+     * @return The bloom.
+     */
+    private Bloom readBloom(ByteBuffer record) {
+        return new Bloom(record.getFloat(), record.getFloat(), record.getFloat(), record.getFloat());
+    }
+
+    /**
+     * Read the state of the environment gravity.
+     * @param record  The record.
+     * @param gravity The gravity to update with the state, or null if a new one should be created.
+     * @return The gravity, or null if there is none.
+     */
+    private Gravity readGravity(ByteBuffer record, Gravity gravity) {
+        if (record.get() == 0) {
+            return null;
+        }
+        byte direction    = record.get();
+        float force       = record.getFloat();
+        boolean isEnabled = record.get() != 0;
+        if (gravity == null) {
+            gravity = new Gravity(direction == -1 ? null : Direction.values()[direction], force);
+        } else {
+            gravity.setDirection(direction == -1 ? null : Direction.values()[direction]);
+            gravity.setForce(force);
+        }
+        gravity.setEnabled(isEnabled);
+        return gravity;
+    }
+
+    /**
+     * Read a zone of force, then create it and add it to the environment unless it is of an unknown kind.
+     * @param record The record.
+     */
+    private void readZone(ByteBuffer record) {
+        int id    = record.getInt();
+        byte kind = record.get();
+        if (kind == ReplayRecorder.UNKNOWN_ZONE) {
+            return;
+        }
+        float x     = record.getFloat();
+        float y     = record.getFloat();
+        float force = record.getFloat();
+        Zone zone;
+        if (kind == ReplayRecorder.CIRCLE_ZONE) {
+            zone = new CircleZone(x, y, force, record.getFloat());
+        } else {
+            zone = new SquareZone(x, y, record.getFloat(), record.getFloat(), force, Direction.values()[record.get()]);
+        }
+        zones.put(id, zone);
+        environment.addZone(zone);
+    }
+
+    /**
+     * Get the box in the environment with the specified id in the recording.
+     * @param id The id of the box.
+     * @return The box.
+     */
+    private Box getBox(int id) {
+        Box box = environment.getBoxByIndex(id);
+        if (box == null) {
+            throw new IllegalStateException("replay has diverged from the recording");
+        }
+        return box;
+    }
+
+    /**
+     * Get a buffer holding the specified bytes of the file, mapping a new window of the file if the current one does not hold them.
+     * @param offset The offset in the file of the first byte.
+     * @param count  The number of bytes.
+     * @return The buffer, positioned at the first byte, or null if the file does not hold the bytes.
+     */
+    private ByteBuffer read(long offset, int count) {
+        if (offset + count > length) {
+            return null;
+        }
+        if (window == null || offset < windowOffset || offset + count > windowOffset + window.limit()) {
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(Math.max(DEFAULT_WINDOW_SIZE, count), length - offset));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            windowOffset = offset;
+        }
+        window.position((int) (offset - windowOffset));
+        return window;
+    }
+}
@@ -0,0 +1,617 @@
+package com.nbp;
+
+import com.nbp.zone.CircleZone;
+import com.nbp.zone.SquareZone;
+import com.nbp.zone.Zone;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Records everything that is done to an environment from outside of its physics steps into a replay file, which a
+ * {@link ReplayPlayer} can then seek through. The recording holds the boxes that are added and removed, the impulses
+ * applied to boxes and any positions and velocities set on them, boxes marked for deletion, sensors attached to boxes,
+ * blooms, zones of force that are added and removed and changes to the environment gravity and sleep threshold, along
+ * with the start of each physics step. A keyframe holding the full state of the environment is written every so many
+ * steps, so that a player only has to simulate forward from the nearest keyframe to reach any step.
+ * <p>
+ * Anything done during a physics step, such as by box callbacks, is not recorded, as the same callbacks of the boxes
+ * created on replay do it again. Other changes to boxes and zones, such as setting friction, are only picked up by the
+ * next keyframe, and keyframes leave out any box that has left the environment from the boxes that a sensor is still
+ * intersecting. The file is written through memory mapped regions, and once a region is half full the next one is mapped
+ * on a background thread, so that the physics step does not wait for the mapping when it moves on to it. The type of each
+ * record is written after its contents so that a recording cut short by a crash ends at its last whole record.
+ */
+public class ReplayRecorder {
+    /**
+     * The default number of physics steps between keyframes.
+     */
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 600;
+    /**
+     * The default size in bytes of each memory mapped region of the file.
+     */
+    public static final int DEFAULT_REGION_SIZE = 16 * 1024 * 1024;
+    /**
+     * The first four bytes of a replay file, and the version of the format.
+     */
+    static final int MAGIC = 0x4E425052, VERSION = 4;
+    /**
+     * The size in bytes of the file header, and of the type and length at the start of each record.
+     */
+    static final int HEADER_SIZE = 8, RECORD_HEADER_SIZE = 5;
+    /**
+     * The types of record. A zero type marks the end of the recording.
+     */
+    static final byte END = 0, STEP = 1, KEYFRAME = 2, ADD_BOX = 3, REMOVE_BOX = 4, MARK_FOR_DELETION = 5, IMPULSE = 6,
+            SET_X = 7, SET_Y = 8, SET_VEL_X = 9, SET_VEL_Y = 10, ATTACH_SENSOR = 11, ADD_BLOOM = 12, ADD_ZONE = 13,
+            REMOVE_ZONE = 14, GRAVITY = 15, SLEEP_THRESHOLD = 16;
+    /**
+     * The kinds of zone of force that can be recorded.
+     */
+    static final byte UNKNOWN_ZONE = 0, CIRCLE_ZONE = 1, SQUARE_ZONE = 2;
+    /**
+     * The size in bytes of a recorded zone of force at most.
+     */
+    private static final int ZONE_SIZE = 30;
+    /**
+     * The size in bytes of a recorded box, not counting its sensors.
+     */
+    private static final int BOX_SIZE = 13 + (Box.SNAPSHOT_FLOATS * 4) + (Box.SNAPSHOT_INTS * 4);
+    /**
+     * The environment being recorded.
+     */
+    private final Environment environment;
+    /**
+     * The file being written.
+     */
+    private final FileChannel channel;
+    /**
+     * The number of physics steps between keyframes.
+     */
+    private final int keyframeInterval;
+    /**
+     * The size in bytes of each memory mapped region of the file.
+     */
+    private final int regionSize;
+    /**
+     * The memory mapped region of the file currently being written, and its offset in the file.
+     */
+    private MappedByteBuffer region;
+    private long regionOffset;
+    /**
+     * The single daemon thread that maps the next region of the file ahead of time.
+     */
+    private final ExecutorService mapper = createMapper();
+    /**
+     * The mapping of the next region of the file, or null if it has not been started, and the offset of the region in the file.
+     */
+    private FutureTask<MappedByteBuffer> nextRegion = null;
+    private long nextRegionOffset;
+    /**
+     * The position in the current region of the record currently being written.
+     */
+    private int recordStart;
+    /**
+     * The reusable snapshot that keyframes are written from.
+     */
+    private final EnvironmentSnapshot snapshot = new EnvironmentSnapshot();
+    /**
+     * The reusable arrays that the state of a box is written to.
+     */
+    private final float[] boxFloats = new float[Box.SNAPSHOT_FLOATS];
+    private final int[] boxInts = new int[Box.SNAPSHOT_INTS];
+    /**
+     * The ids of the zones of force that have been recorded.
+     */
+    private final HashMap<Zone, Integer> zoneIds = new HashMap<Zone, Integer>();
+    /**
+     * The id to give the next zone of force.
+     */
+    private int nextZoneId = 0;
+    /**
+     * The environment gravity as it was last recorded, along with its state.
+     */
+    private Gravity lastGravity;
+    private float lastGravityForce;
+    private Direction lastGravityDirection;
+    private boolean isLastGravityEnabled;
+    /**
+     * Whether the recorder has been closed.
+     */
+    private boolean isClosed = false;
+
+    /**
+     * Create a new instance of the ReplayRecorder class with the default keyframe interval.
+     * @param environment The environment to record.
+     * @param path        The path of the replay file, which is replaced if it exists.
+     * @throws IOException If the file cannot be opened.
+     */
+    public ReplayRecorder(Environment environment, Path path) throws IOException {
+        this(environment, path, DEFAULT_KEYFRAME_INTERVAL, DEFAULT_REGION_SIZE);
+    }
+
+    /**
+     * Create a new instance of the ReplayRecorder class, writing a keyframe of the current state of the environment.
+     * This should not be called during a physics update.
+     * @param environment      The environment to record, which can only have one recorder.
+     * @param path             The path of the replay file, which is replaced if it exists.
+     * @param keyframeInterval The number of physics steps between keyframes.
+     * @param regionSize       The size in bytes of each memory mapped region of the file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public ReplayRecorder(Environment environment, Path path, int keyframeInterval, int regionSize) throws IOException {
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("keyframe interval must be at least one");
+        }
+        if (regionSize < HEADER_SIZE) {
+            throw new IllegalArgumentException("region size is too small");
+        }
+        this.environment      = environment;
+        this.keyframeInterval = keyframeInterval;
+        this.regionSize       = regionSize;
+        this.channel          = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.region       = channel.map(FileChannel.MapMode.READ_WRITE, 0, regionSize);
+            this.regionOffset = 0;
+            region.putInt(MAGIC);
+            region.putInt(VERSION);
+            this.writeKeyframe(false);
+            environment.setReplayRecorder(this);
+        } catch (IOException | RuntimeException e) {
+            mapper.shutdown();
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create the single daemon thread used to map the next region of the file.
+     * @return The mapper.
+     */
+    private static ExecutorService createMapper() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "nbp-replay-mapper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Get the number of physics steps between keyframes.
+     * @return The keyframe interval.
+     */
+    public int getKeyframeInterval() {
+        return this.keyframeInterval;
+    }
+
+    /**
+     * Get the number of bytes of the replay file that have been written.
+     * @return The length of the recording in bytes.
+     */
+    public long getLength() {
+        return regionOffset + region.position();
+    }
+
+    /**
+     * Stop recording the environment and close the replay file, trimming it to the length of the recording.
+     * @throws IOException If the file cannot be written.
+     */
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        environment.setReplayRecorder(null);
+        mapper.shutdown();
+        // Wait for any region still being mapped, which would otherwise make the file longer again once it is trimmed.
+        this.takeNextRegion();
+        long length = this.getLength();
+        region.force();
+        try {
+            channel.truncate(length);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Called when a physics step is about to start, before the environment is marked as being in a physics step.
+     * @param stepNumber The number of the step.
+     */
+    void onStepStarting(int stepNumber) {
+        this.recordGravityChange();
+        this.beginRecord(4);
+        region.putInt(stepNumber);
+        this.endRecord(STEP);
+    }
+
+    /**
+     * Called when a physics step has finished, writing a keyframe if one is due.
+     * @param stepNumber The number of the step.
+     */
+    void onStepCompleted(int stepNumber) {
+        if (stepNumber % keyframeInterval == 0) {
+            this.writeKeyframe(false);
+        }
+    }
+
+    /**
+     * Called when the environment is restored from a snapshot, which is recorded as a keyframe.
+     */
+    void onRestored() {
+        this.writeKeyframe(true);
+    }
+
+    /**
+     * Called when a box is added to the environment from outside of a physics step.
+     * @param box The box.
+     */
+    void onBoxAdded(Box box) {
+        ArrayList<Sensor> sensors = box.getAttachedSensors();
+        this.beginRecord(4 + BOX_SIZE + (sensors.size() * 16));
+        region.putInt(box.index);
+        this.writeBox(box);
+        for (int i = 0; i < sensors.size(); i++) {
+            this.writeSensorBounds(sensors.get(i));
+        }
+        this.endRecord(ADD_BOX);
+    }
+
+    /**
+     * Called when a box is removed from the environment from outside of a physics step.
+     * @param box   The box.
+     * @param index The index that the box had in the environment.
+     */
+    void onBoxRemoved(Box box, int index) {
+        this.beginRecord(4);
+        region.putInt(index);
+        this.endRecord(REMOVE_BOX);
+    }
+
+    /**
+     * Called when the position or velocity of a box is set, an impulse is applied to it or it is marked for
+     * deletion from outside of a physics step.
+     * @param box      The box.
+     * @param mutation The type of record for the mutation.
+     * @param first    The first value of the mutation.
+     * @param second   The second value of the mutation.
+     */
+    void onBoxMutated(Box box, byte mutation, float first, float second) {
+        this.beginRecord(12);
+        region.putInt(box.index);
+        if (mutation != MARK_FOR_DELETION) {
+            region.putFloat(first);
+        }
+        if (mutation == IMPULSE) {
+            region.putFloat(second);
+        }
+        this.endRecord(mutation);
+    }
+
+    /**
+     * Called when a sensor is attached to a box in the environment from outside of a physics step.
+     * @param box    The box.
+     * @param sensor The sensor.
+     */
+    void onSensorAttached(Box box, Sensor sensor) {
+        this.beginRecord(20);
+        region.putInt(box.index);
+        this.writeSensorBounds(sensor);
+        this.endRecord(ATTACH_SENSOR);
+    }
+
+    /**
+     * Called when the sleep threshold of the environment is set from outside of a physics step.
+     * @param sleepThreshold The sleep threshold.
+     */
+    void onSleepThresholdSet(int sleepThreshold) {
+        this.beginRecord(4);
+        region.putInt(sleepThreshold);
+        this.endRecord(SLEEP_THRESHOLD);
+    }
+
+    /**
+     * Called when a bloom is added to the environment from outside of a physics step.
+     * @param bloom The bloom.
+     */
+    void onBloomAdded(Bloom bloom) {
+        this.beginRecord(16);
+        this.writeBloom(bloom);
+        this.endRecord(ADD_BLOOM);
+    }
+
+    /**
+     * Called when a zone of force is added to the environment from outside of a physics step.
+     * @param zone The zone of force.
+     */
+    void onZoneAdded(Zone zone) {
+        this.beginRecord(ZONE_SIZE);
+        this.writeZone(zone);
+        this.endRecord(ADD_ZONE);
+    }
+
+    /**
+     * Called when a zone of force is removed from the environment from outside of a physics step.
+     * @param zone The zone of force.
+     */
+    void onZoneRemoved(Zone zone) {
+        Integer id = zoneIds.remove(zone);
+        if (id == null) {
+            return;
+        }
+        this.beginRecord(4);
+        region.putInt(id);
+        this.endRecord(REMOVE_ZONE);
+    }
+
+    /**
+     * Write a record of the environment gravity if it has been replaced or changed since it was last recorded.
+     */
+    private void recordGravityChange() {
+        Gravity gravity = environment.getGravity();
+        if (gravity == lastGravity && (gravity == null || (gravity.getForce() == lastGravityForce
+                && gravity.getDirection() == lastGravityDirection && gravity.isEnabled() == isLastGravityEnabled))) {
+            return;
+        }
+        this.beginRecord(8);
+        region.put((byte) (gravity == lastGravity ? 0 : 1));
+        this.writeGravity(gravity);
+        this.endRecord(GRAVITY);
+    }
+
+    /**
+     * Write a keyframe holding the full state of the environment.
+     * @param isRestore Whether the keyframe is being written because the environment was restored from a snapshot.
+     */
+    private void writeKeyframe(boolean isRestore) {
+        environment.snapshot(snapshot);
+        int intersectionCount = 0;
+        for (int i = 0; i < snapshot.sensorCount; i++) {
+            intersectionCount += snapshot.sensorIntersectionCounts[i];
+        }
+        ArrayList<Zone> zones = environment.getZones();
+        this.beginRecord(64 + (snapshot.boxCount * BOX_SIZE) + (snapshot.sensorCount * 28) + (intersectionCount * 4)
+                + (snapshot.bloomCount * 16) + (zones.size() * ZONE_SIZE) + (snapshot.contactCount * 16));
+        region.putInt(snapshot.stepCount);
+        region.put((byte) (isRestore ? 1 : 0));
+        region.putInt(snapshot.nextBoxIndex);
+        region.putInt(environment.getSleepThreshold());
+        region.put((byte) (environment.isDeferredEventDispatchEnabled() ? 1 : 0));
+        this.writeGravity(snapshot.gravity);
+        region.putFloat(snapshot.lastGravityForce);
+        region.put((byte) (snapshot.lastGravityDirection == null ? -1 : snapshot.lastGravityDirection.ordinal()));
+        region.putInt(snapshot.sleepCount);
+        region.putInt(snapshot.wakeCount);
+        region.putInt(snapshot.lastStepSleepCount);
+        region.putInt(snapshot.lastStepWakeCount);
+        // Write each box, followed by the sensors attached to it.
+        region.putInt(snapshot.boxCount);
+        int sensorIndex        = 0;
+        int intersectionOffset = 0;
+        for (int i = 0; i < snapshot.boxCount; i++) {
+            Box box = snapshot.boxes[i];
+            this.writeBox(box);
+            for (int j = 0; j < box.getAttachedSensors().size(); j++) {
+                this.writeSensorBounds(snapshot.sensors[sensorIndex + j]);
+            }
+            for (int j = 0; j < box.getAttachedSensors().size(); j++, sensorIndex++) {
+                int count = snapshot.sensorIntersectionCounts[sensorIndex];
+                region.putInt(count);
+                for (int k = 0; k < count; k++) {
+                    Box intersecting = snapshot.sensorIntersections[intersectionOffset++];
+                    region.putInt(intersecting.environment == environment ? intersecting.index : -1);
+                }
+            }
+        }
+        region.putInt(snapshot.bloomCount);
+        for (int i = 0; i < snapshot.bloomCount; i++) {
+            this.writeBloom(snapshot.blooms[i]);
+        }
+        region.putInt(zones.size());
+        for (int i = 0; i < zones.size(); i++) {
+            this.writeZone(zones.get(i));
+        }
+        region.putInt(snapshot.contactCount);
+        for (int i = 0; i < snapshot.contactCount * 2; i += 2) {
+            region.putInt(snapshot.contactBoxIndices[i]);
+            region.putInt(snapshot.contactBoxIndices[i + 1]);
+            region.putInt(snapshot.contactStamps[i]);
+            region.putInt(snapshot.contactStamps[i + 1]);
+        }
+        this.endRecord(KEYFRAME);
+    }
+
+    /**
+     * Write the type, size and state of a box, along with the number of sensors attached to it.
+     * @param box The box.
+     */
+    private void writeBox(Box box) {
+        box.saveState(boxFloats, 0, boxInts, 0);
+        region.put((byte) box.getType().ordinal());
+        region.putFloat(box.getWidth());
+        region.putFloat(box.getHeight());
+        for (int i = 0; i < Box.SNAPSHOT_FLOATS; i++) {
+            region.putFloat(boxFloats[i]);
+        }
+        for (int i = 0; i < Box.SNAPSHOT_INTS; i++) {
+            region.putInt(boxInts[i]);
+        }
+        region.putInt(box.getAttachedSensors().size());
+    }
+
+    /**
+     * Write the position and size of a sensor.
+     * @param sensor The sensor.
+     */
+    private void writeSensorBounds(Sensor sensor) {
+        region.putFloat(sensor.getX());
+        region.putFloat(sensor.getY());
+        region.putFloat(sensor.getWidth());
+        region.putFloat(sensor.getHeight());
+    }
+
+    /**
+     * Write a bloom.
+     * @param bloom The bloom.
+     */
+    private void writeBloom(Bloom bloom) {
+        region.putFloat(bloom.getX());
+        region.putFloat(bloom.getY());
+        region.putFloat(bloom.getRadius());
+        region.putFloat(bloom.getForce());
+    }
+
+    /**
+     * Write the state of the environment gravity, and remember it as the last recorded gravity.
+     * @param gravity The gravity, or null if there is none.
+     */
+    private void writeGravity(Gravity gravity) {
+        lastGravity = gravity;
+        region.put((byte) (gravity == null ? 0 : 1));
+        if (gravity == null) {
+            return;
+        }
+        lastGravityForce     = gravity.getForce();
+        lastGravityDirection = gravity.getDirection();
+        isLastGravityEnabled = gravity.isEnabled();
+        region.put((byte) (lastGravityDirection == null ? -1 : lastGravityDirection.ordinal()));
+        region.putFloat(lastGravityForce);
+        region.put((byte) (isLastGravityEnabled ? 1 : 0));
+    }
+
+    /**
+     * Write a zone of force along with its id, giving it one if it does not have one yet.
+     * Only the built in zones of force can be recreated on replay, so any other kind is written as unknown.
+     * @param zone The zone of force.
+     */
+    private void writeZone(Zone zone) {
+        Integer id = zoneIds.get(zone);
+        if (id == null) {
+            id = nextZoneId++;
+            zoneIds.put(zone, id);
+        }
+        region.putInt(id);
+        if (zone instanceof CircleZone) {
+            region.put(CIRCLE_ZONE);
+        } else if (zone instanceof SquareZone) {
+            region.put(SQUARE_ZONE);
+        } else {
+            region.put(UNKNOWN_ZONE);
+            return;
+        }
+        region.putFloat(zone.getPosition().getX());
+        region.putFloat(zone.getPosition().getY());
+        region.putFloat(zone.getForce());
+        if (zone instanceof CircleZone) {
+            region.putFloat(((CircleZone) zone).getRadius());
+        } else {
+            SquareZone squareZone = (SquareZone) zone;
+            region.putFloat(squareZone.getWidth());
+            region.putFloat(squareZone.getHeight());
+            region.put((byte) squareZone.getDirection().ordinal());
+        }
+    }
+
+    /**
+     * Start writing a record, mapping a new region of the file if the current one does not have room for it.
+     * @param maxLength The length in bytes of the contents of the record at most.
+     */
+    private void beginRecord(int maxLength) {
+        int size = RECORD_HEADER_SIZE + maxLength;
+        if (region.remaining() < size) {
+            // Move on to a region starting at or before the end of the recording, so that records never span regions.
+            long offset           = this.getLength();
+            long mappedOffset     = nextRegionOffset;
+            MappedByteBuffer next = this.takeNextRegion();
+            if (next != null && offset + size <= mappedOffset + next.capacity()) {
+                next.position((int) (offset - mappedOffset));
+                region       = next;
+                regionOffset = mappedOffset;
+            } else {
+                // The region mapped ahead of time is missing or too small for the record, so map one straight away.
+                try {
+                    region = channel.map(FileChannel.MapMode.READ_WRITE, offset, Math.max(regionSize, size));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                regionOffset = offset;
+            }
+        }
+        recordStart = region.position();
+        region.position(recordStart + RECORD_HEADER_SIZE);
+    }
+
+    /**
+     * Start mapping the next region of the file on the mapper, from the end of the recording, if the current region is
+     * half full and the mapping has not already been started.
+     */
+    private void requestNextRegion() {
+        if (nextRegion != null || region.position() < region.capacity() / 2) {
+            return;
+        }
+        final long offset = this.getLength();
+        nextRegionOffset  = offset;
+        nextRegion        = new FutureTask<MappedByteBuffer>(new Callable<MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer call() throws IOException {
+                return channel.map(FileChannel.MapMode.READ_WRITE, offset, regionSize);
+            }
+        });
+        mapper.execute(nextRegion);
+    }
+
+    /**
+     * Wait for the mapping of the next region of the file to finish, and take it.
+     * @return The next region, or null if its mapping was never started or failed.
+     */
+    private MappedByteBuffer takeNextRegion() {
+        FutureTask<MappedByteBuffer> task = nextRegion;
+        if (task == null) {
+            return null;
+        }
+        nextRegion            = null;
+        boolean isInterrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // The mapping is quick, so finish waiting for it rather than leave it running.
+                    isInterrupted = true;
+                } catch (ExecutionException e) {
+                    // Any failure is thrown again when the region is mapped straight away.
+                    return null;
+                }
+            }
+        } finally {
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Finish writing a record, writing its length and then its type.
+     * @param type The type of record.
+     */
+    private void endRecord(byte type) {
+        region.putInt(recordStart + 1, region.position() - recordStart - RECORD_HEADER_SIZE);
+        region.put(recordStart, type);
+        this.requestNextRegion();
+    }
+}
@@ -0,0 +1,182 @@
+package com.nbp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Applies the messages written by a {@link ReplicationEncoder} to a client copy of an environment, creating, removing
+ * and moving its boxes to match the environment being replicated. Messages which arrive out of order are ignored once
+ * a newer one has been applied, and the step of the last applied message is the one that the client should acknowledge.
+ */
+public class ReplicationDecoder {
+    /**
+     * The client environment.
+     */
+    private final Environment environment;
+    /**
+     * The factory used to create boxes.
+     */
+    private final BoxFactory boxFactory;
+    /**
+     * The size of the quantum that positions and velocities were rounded to.
+     */
+    private final float positionPrecision, velocityPrecision;
+    /**
+     * The client boxes, by replication id.
+     */
+    private final HashMap<Integer, Box> boxes = new HashMap<Integer, Box>();
+    /**
+     * The step of the last message that was applied, or -1 if none has been.
+     */
+    private int lastStep = -1;
+    /**
+     * The stamp used to mark the boxes held in a message which holds the state of every box.
+     */
+    private int decodeStamp = 0;
+    /**
+     * The reader used to unpack messages.
+     */
+    private final BitReader reader = new BitReader();
+
+    /**
+     * Create a new instance of the ReplicationDecoder class with the default precision.
+     * @param environment The client environment.
+     * @param boxFactory  The factory used to create boxes.
+     */
+    public ReplicationDecoder(Environment environment, BoxFactory boxFactory) {
+        this(environment, boxFactory, ReplicationEncoder.DEFAULT_POSITION_PRECISION, ReplicationEncoder.DEFAULT_VELOCITY_PRECISION);
+    }
+
+    /**
+     * Create a new instance of the ReplicationDecoder class.
+     * @param environment       The client environment.
+     * @param boxFactory        The factory used to create boxes.
+     * @param positionPrecision The size of the quantum that positions were rounded to by the encoder.
+     * @param velocityPrecision The size of the quantum that velocities were rounded to by the encoder.
+     */
+    public ReplicationDecoder(Environment environment, BoxFactory boxFactory, float positionPrecision, float velocityPrecision) {
+        this.environment       = environment;
+        this.boxFactory        = boxFactory;
+        this.positionPrecision = positionPrecision;
+        this.velocityPrecision = velocityPrecision;
+    }
+
+    /**
+     * Read a message from a buffer, from its current position, and apply it to the client environment
+     * unless a message for the same or a later step has already been applied.
+     * @param buffer The buffer holding the message.
+     * @return The step of the last applied message, which is the one to acknowledge.
+     */
+    public int decode(ByteBuffer buffer) {
+        reader.begin(buffer);
+        int step          = reader.readBits(32);
+        int baselineStep  = reader.readBits(32);
+        boolean isFull    = baselineStep == -1;
+        boolean isApplied = step > lastStep;
+        decodeStamp++;
+        // Read the boxes that have been added.
+        int count = reader.readUnsigned();
+        int id    = -1;
+        for (int i = 0; i < count; i++) {
+            id              = id + reader.readUnsigned() + 1;
+            BoxType type    = BoxType.values()[reader.readBits(2)];
+            float width     = reader.readFloat();
+            float height    = reader.readFloat();
+            Box box         = isApplied ? boxes.get(id) : null;
+            if (isApplied && box == null) {
+                box               = boxFactory.createBox(id, type, width, height);
+                box.replicationId = id;
+                this.readState(box);
+                environment.addBox(box);
+                boxes.put(id, box);
+            } else {
+                this.readState(box);
+            }
+            if (box != null) {
+                box.replicationStamp = decodeStamp;
+            }
+        }
+        // Read the boxes that have been removed.
+        count = reader.readUnsigned();
+        id    = -1;
+        for (int i = 0; i < count; i++) {
+            id = id + reader.readUnsigned() + 1;
+            if (isApplied) {
+                Box box = boxes.remove(id);
+                if (box != null) {
+                    environment.removeBox(box);
+                }
+            }
+        }
+        // Read the boxes that have changed.
+        count = reader.readUnsigned();
+        id    = -1;
+        for (int i = 0; i < count; i++) {
+            id = id + reader.readUnsigned() + 1;
+            this.readState(isApplied ? boxes.get(id) : null);
+        }
+        reader.end();
+        if (isApplied) {
+            // A message holding the state of every box leaves out any box that no longer exists.
+            if (isFull) {
+                this.removeUnstampedBoxes();
+            }
+            lastStep = step;
+        }
+        return lastStep;
+    }
+
+    /**
+     * Get the step of the last message that was applied.
+     * @return The step, or -1 if no message has been applied.
+     */
+    public int getLastStep() {
+        return this.lastStep;
+    }
+
+    /**
+     * Get the client box with the specified replication id.
+     * @param replicationId The replication id.
+     * @return The box, or null if there is no such box.
+     */
+    public Box getBox(int replicationId) {
+        return boxes.get(replicationId);
+    }
+
+    /**
+     * Read the position and velocity of a box, applying them to the box if there is one.
+     * @param box The box, or null if the values should just be skipped.
+     */
+    private void readState(Box box) {
+        float x    = reader.readSigned() * positionPrecision;
+        float y    = reader.readSigned() * positionPrecision;
+        float velX = reader.readSigned() * velocityPrecision;
+        float velY = reader.readSigned() * velocityPrecision;
+        if (box != null) {
+            box.setX(x);
+            box.setY(y);
+            box.setVelX(velX);
+            box.setVelY(velY);
+        }
+    }
+
+    /**
+     * Remove every client box which was not held in the message just read.
+     */
+    private void removeUnstampedBoxes() {
+        ArrayList<Box> removed = new ArrayList<Box>();
+        Iterator<Box> iterator = boxes.values().iterator();
+        while (iterator.hasNext()) {
+            Box box = iterator.next();
+            if (box.replicationStamp != decodeStamp) {
+                iterator.remove();
+                removed.add(box);
+            }
+        }
+        for (int i = 0; i < removed.size(); i++) {
+            environment.removeBox(removed.get(i));
+        }
+    }
+}
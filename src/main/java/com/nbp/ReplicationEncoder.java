@@ -0,0 +1,413 @@
+package com.nbp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Encodes the changes made to the boxes of an authoritative environment into compact messages for a {@link ReplicationDecoder}
+ * to apply to a copy of the environment. The encoder keeps a short history of which boxes were added, removed and changed at
+ * each physics step, so a message for a client only holds the boxes that have changed since the last step that the client
+ * acknowledged having applied, and the cost of building it grows with the number of those boxes rather than with the size
+ * of the environment. A client with no baseline, or one older than the history, is sent the state of every box.
+ * Positions and velocities are quantized to a fixed precision and every value is bit packed.
+ * <p>
+ * A box is recorded as changed at a step only if its quantized position or velocity differs from when it was last captured,
+ * so the boxes of a settled pile, which are still set at every physics step, are not sent again.
+ */
+public class ReplicationEncoder {
+    /**
+     * The default number of physics steps of changes kept in the history.
+     */
+    public static final int DEFAULT_HISTORY_LENGTH = 64;
+    /**
+     * The default size of the quantum that positions and velocities are rounded to.
+     */
+    public static final float DEFAULT_POSITION_PRECISION = 1f / 64f, DEFAULT_VELOCITY_PRECISION = 1f / 256f;
+    /**
+     * The environment being replicated.
+     */
+    private final Environment environment;
+    /**
+     * The size of the quantum that positions and velocities are rounded to.
+     */
+    private final float positionPrecision, velocityPrecision;
+    /**
+     * The changes recorded at each of the most recent physics steps, oldest first from the history head.
+     */
+    private final Changes[] history;
+    /**
+     * The position in the history of the oldest changes.
+     */
+    private int historyHead = 0;
+    /**
+     * The number of steps of changes held in the history.
+     */
+    private int historyCount = 0;
+    /**
+     * The oldest step that a client can use as a baseline, as every change made after it is in the history.
+     */
+    private int oldestBaseline;
+    /**
+     * The step that changes were last moved into the history at.
+     */
+    private int lastCapturedStep;
+    /**
+     * The changes made since they were last moved into the history.
+     */
+    private final Changes pending = new Changes();
+    /**
+     * The stamp used to mark the boxes recorded as changed in the pending changes.
+     */
+    private int pendingStamp = 1;
+    /**
+     * The stamp used to mark the boxes gathered into the message currently being encoded.
+     */
+    private int encodeStamp = 0;
+    /**
+     * The replication id to give the next box.
+     */
+    private int nextReplicationId = 0;
+    /**
+     * The reusable list of the boxes gathered into the message currently being encoded.
+     */
+    private final ArrayList<Box> gathered = new ArrayList<Box>();
+    /**
+     * Whether each gathered box was added since the baseline.
+     */
+    private boolean[] gatheredIsAdded = new boolean[64];
+    /**
+     * The reusable sort keys of the gathered boxes, each being a replication id in the upper half and a gathered position in the lower half.
+     */
+    private long[] order = new long[64];
+    /**
+     * The writer used to pack messages.
+     */
+    private final BitWriter writer = new BitWriter();
+
+    /**
+     * Create a new instance of the ReplicationEncoder class with the default history length and precision.
+     * @param environment The environment to replicate.
+     */
+    public ReplicationEncoder(Environment environment) {
+        this(environment, DEFAULT_HISTORY_LENGTH, DEFAULT_POSITION_PRECISION, DEFAULT_VELOCITY_PRECISION);
+    }
+
+    /**
+     * Create a new instance of the ReplicationEncoder class.
+     * @param environment       The environment to replicate, which can only have one encoder.
+     * @param historyLength     The number of physics steps of changes to keep.
+     * @param positionPrecision The size of the quantum that positions are rounded to, which the decoder must match.
+     * @param velocityPrecision The size of the quantum that velocities are rounded to, which the decoder must match.
+     */
+    public ReplicationEncoder(Environment environment, int historyLength, float positionPrecision, float velocityPrecision) {
+        if (historyLength < 1) {
+            throw new IllegalArgumentException("history length must be at least one");
+        }
+        if (!(positionPrecision > 0) || !(velocityPrecision > 0)) {
+            throw new IllegalArgumentException("precision must be greater than zero");
+        }
+        this.environment       = environment;
+        this.positionPrecision = positionPrecision;
+        this.velocityPrecision = velocityPrecision;
+        this.history           = new Changes[historyLength];
+        for (int i = 0; i < historyLength; i++) {
+            history[i] = new Changes();
+        }
+        this.oldestBaseline   = environment.getStepCount();
+        this.lastCapturedStep = environment.getStepCount();
+        // Remember the state of the boxes already in the environment, which a client gets from its first full message.
+        ArrayList<Box> boxes = environment.getBoxes();
+        for (int i = 0; i < boxes.size(); i++) {
+            this.captureState(boxes.get(i));
+        }
+        environment.setReplicationEncoder(this);
+    }
+
+    /**
+     * Stop recording the changes made to the environment, after which this encoder can no longer be used.
+     */
+    public void close() {
+        environment.setReplicationEncoder(null);
+    }
+
+    /**
+     * Get the replication id of a box, which identifies it in every message.
+     * @param box The box.
+     * @return The replication id.
+     */
+    public int getReplicationId(Box box) {
+        if (box.replicationId == -1) {
+            box.replicationId = nextReplicationId++;
+        }
+        return box.replicationId;
+    }
+
+    /**
+     * Get the oldest step that a client can use as a baseline and still be sent only what has changed since.
+     * @return The oldest usable baseline step.
+     */
+    public int getOldestBaseline() {
+        return this.oldestBaseline;
+    }
+
+    /**
+     * Encode a message bringing a client from a baseline step up to the current state of the environment, writing it
+     * into a buffer from its current position. A client should acknowledge the step of each message that it applies,
+     * and the most recent acknowledged step used as the baseline of the next message for that client.
+     * @param buffer       The buffer to write the message to.
+     * @param baselineStep The last step acknowledged by the client, or -1 to send the state of every box.
+     * @return The number of bytes written.
+     * @throws java.nio.BufferOverflowException If the message does not fit into the buffer.
+     */
+    public int encode(ByteBuffer buffer, int baselineStep) {
+        this.capture();
+        int start       = buffer.position();
+        int currentStep = environment.getStepCount();
+        boolean isFull  = baselineStep < oldestBaseline || baselineStep > currentStep;
+        encodeStamp++;
+        gathered.clear();
+        if (isFull) {
+            ArrayList<Box> boxes = environment.getBoxes();
+            for (int i = 0; i < boxes.size(); i++) {
+                this.gather(boxes.get(i), true);
+            }
+        } else {
+            // Only the changes made after the baseline are needed. Additions are gathered first so that any box added
+            // since the baseline is sent whole, even if it has also moved.
+            for (int pass = 0; pass < 3; pass++) {
+                for (int i = 0; i < historyCount; i++) {
+                    Changes changes = history[(historyHead + i) % history.length];
+                    if (changes.step <= baselineStep) {
+                        continue;
+                    }
+                    ArrayList<Box> boxes = pass == 0 ? changes.added : (pass == 1 ? changes.removed : changes.changed);
+                    for (int j = 0; j < boxes.size(); j++) {
+                        this.gather(boxes.get(j), pass == 0);
+                    }
+                }
+            }
+        }
+        // Sort the gathered boxes by replication id, so that the ids can be written as the gaps between them.
+        int gatheredCount = gathered.size();
+        if (order.length < gatheredCount) {
+            order = new long[Math.max(gatheredCount, order.length * 2)];
+        }
+        int addedCount   = 0;
+        int removedCount = 0;
+        for (int i = 0; i < gatheredCount; i++) {
+            Box box  = gathered.get(i);
+            order[i] = ((long) this.getReplicationId(box) << 32) | i;
+            if (box.environment != environment) {
+                removedCount++;
+            } else if (gatheredIsAdded[i]) {
+                addedCount++;
+            }
+        }
+        Arrays.sort(order, 0, gatheredCount);
+        writer.begin(buffer);
+        writer.writeBits(currentStep, 32);
+        writer.writeBits(isFull ? -1 : baselineStep, 32);
+        // Write the boxes that have been added, then those removed, then those that have changed.
+        writer.writeUnsigned(addedCount);
+        this.writeBoxes(gatheredCount, 0);
+        writer.writeUnsigned(removedCount);
+        this.writeBoxes(gatheredCount, 1);
+        writer.writeUnsigned(gatheredCount - addedCount - removedCount);
+        this.writeBoxes(gatheredCount, 2);
+        writer.end();
+        return buffer.position() - start;
+    }
+
+    /**
+     * Write the gathered boxes of one kind, in replication id order.
+     * @param gatheredCount The number of gathered boxes.
+     * @param kind          Zero for added boxes, one for removed boxes and two for changed boxes.
+     */
+    private void writeBoxes(int gatheredCount, int kind) {
+        int lastId = -1;
+        for (int i = 0; i < gatheredCount; i++) {
+            int position = (int) order[i];
+            Box box      = gathered.get(position);
+            int boxKind  = box.environment != environment ? 1 : (gatheredIsAdded[position] ? 0 : 2);
+            if (boxKind != kind) {
+                continue;
+            }
+            writer.writeUnsigned(box.replicationId - lastId - 1);
+            lastId = box.replicationId;
+            if (kind == 1) {
+                continue;
+            }
+            if (kind == 0) {
+                writer.writeBits(box.getType().ordinal(), 2);
+                writer.writeFloat(box.getWidth());
+                writer.writeFloat(box.getHeight());
+            }
+            writer.writeSigned(this.quantizePosition(box.getX()));
+            writer.writeSigned(this.quantizePosition(box.getY()));
+            writer.writeSigned(this.quantizeVelocity(box.getVelX()));
+            writer.writeSigned(this.quantizeVelocity(box.getVelY()));
+        }
+    }
+
+    /**
+     * Gather a box into the message being encoded, unless it has been gathered already.
+     * @param box     The box.
+     * @param isAdded Whether the box was added since the baseline.
+     */
+    private void gather(Box box, boolean isAdded) {
+        if (box.replicationEncodeStamp == encodeStamp) {
+            return;
+        }
+        box.replicationEncodeStamp = encodeStamp;
+        if (gatheredIsAdded.length == gathered.size()) {
+            gatheredIsAdded = Arrays.copyOf(gatheredIsAdded, gathered.size() * 2);
+        }
+        gatheredIsAdded[gathered.size()] = isAdded;
+        gathered.add(box);
+    }
+
+    /**
+     * Move the changes made since the last capture into the history, as the changes made at the current step.
+     */
+    private void capture() {
+        int currentStep = environment.getStepCount();
+        if (currentStep == lastCapturedStep) {
+            return;
+        }
+        // Reuse the oldest changes in the history if it is full, after which they can no longer be used as a baseline.
+        Changes changes;
+        if (historyCount == history.length) {
+            changes        = history[historyHead];
+            historyHead    = (historyHead + 1) % history.length;
+            oldestBaseline = changes.step;
+        } else {
+            changes = history[(historyHead + historyCount++) % history.length];
+        }
+        // Added boxes are sent whole, so just remember their state. Of the boxes that were set, keep only those whose
+        // quantized state has actually changed since it was last captured, along with any that have since been removed.
+        for (int i = 0; i < pending.added.size(); i++) {
+            this.captureState(pending.added.get(i));
+        }
+        int retained = 0;
+        for (int i = 0; i < pending.changed.size(); i++) {
+            Box box = pending.changed.get(i);
+            if (box.environment != environment || this.captureState(box)) {
+                pending.changed.set(retained++, box);
+            }
+        }
+        Environment.truncate(pending.changed, retained);
+        changes.step = currentStep;
+        changes.swap(pending);
+        pending.clear();
+        pendingStamp++;
+        lastCapturedStep = currentStep;
+    }
+
+    /**
+     * Remember the quantized position and velocity of a box.
+     * @param box The box.
+     * @return Whether the quantized state differs from when the box was last captured.
+     */
+    private boolean captureState(Box box) {
+        int x    = this.quantizePosition(box.getX());
+        int y    = this.quantizePosition(box.getY());
+        int velX = this.quantizeVelocity(box.getVelX());
+        int velY = this.quantizeVelocity(box.getVelY());
+        if (x == box.replicatedX && y == box.replicatedY && velX == box.replicatedVelX && velY == box.replicatedVelY) {
+            return false;
+        }
+        box.replicatedX    = x;
+        box.replicatedY    = y;
+        box.replicatedVelX = velX;
+        box.replicatedVelY = velY;
+        return true;
+    }
+
+    /**
+     * Round a position to the position precision.
+     * @param position The position.
+     * @return The number of position quanta.
+     */
+    private int quantizePosition(float position) {
+        return Math.round(position / positionPrecision);
+    }
+
+    /**
+     * Round a velocity to the velocity precision.
+     * @param velocity The velocity.
+     * @return The number of velocity quanta.
+     */
+    private int quantizeVelocity(float velocity) {
+        return Math.round(velocity / velocityPrecision);
+    }
+
+    /**
+     * Called when a box is added to the environment.
+     * @param box The box.
+     */
+    void onBoxAdded(Box box) {
+        this.getReplicationId(box);
+        pending.added.add(box);
+    }
+
+    /**
+     * Called when a box is removed from the environment.
+     * @param box The box.
+     */
+    void onBoxRemoved(Box box) {
+        pending.removed.add(box);
+    }
+
+    /**
+     * Called when the position or velocity of a box in the environment is set. The box is only kept as changed if its
+     * quantized state differs once the changes are captured. Blooms and zones of force can be applied to boxes in
+     * parallel, so this can be called from more than one thread at once.
+     * @param box The box.
+     */
+    synchronized void onBoxChanged(Box box) {
+        if (box.replicationStamp != pendingStamp) {
+            box.replicationStamp = pendingStamp;
+            pending.changed.add(box);
+        }
+    }
+
+    /**
+     * The boxes added, removed and changed at a physics step.
+     */
+    private static class Changes {
+        /**
+         * The step that the changes were made at.
+         */
+        int step;
+        /**
+         * The boxes added, removed and changed.
+         */
+        ArrayList<Box> added = new ArrayList<Box>(), removed = new ArrayList<Box>(), changed = new ArrayList<Box>();
+
+        /**
+         * Swap the boxes held by these changes with those held by others.
+         * @param other The other changes.
+         */
+        void swap(Changes other) {
+            ArrayList<Box> boxes = added;
+            added                = other.added;
+            other.added          = boxes;
+            boxes                = removed;
+            removed              = other.removed;
+            other.removed        = boxes;
+            boxes                = changed;
+            changed              = other.changed;
+            other.changed        = boxes;
+        }
+
+        /**
+         * Clear the changes.
+         */
+        void clear() {
+            added.clear();
+            removed.clear();
+            changed.clear();
+        }
+    }
+}
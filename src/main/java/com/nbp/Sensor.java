@@ -1,6 +1,9 @@
 package com.nbp;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 /**
  * A sensor which can be attached to dynamic and static physics boxes.
@@ -22,10 +25,26 @@ public class Sensor {
      * The sensor size.
      */
     private float width, height;
+    /**
+     * The collision categories that this sensor belongs to, one per bit.
+     */
+    private int collisionCategory = 1;
+    /**
+     * The collision categories of the boxes that this sensor can detect, one per bit.
+     */
+    private int collisionMask = -1;
+    /**
+     * Defines whether this sensor ignores static boxes.
+     */
+    private boolean isIgnoringStaticBoxes = false;
     /**
      * The list of intersecting boxes.
      */
     private ArrayList<Box> intersectingBoxes;
+    /**
+     * The set of intersecting boxes, kept alongside the list for quick membership checks.
+     */
+    private Set<Box> intersectingBoxSet;
 
     /**
      * Creates a new instance of the Sensor class.
@@ -40,6 +59,7 @@ public class Sensor {
         this.width = width;
         this.height = height;
         intersectingBoxes = new ArrayList<Box>();
+        intersectingBoxSet = Collections.newSetFromMap(new IdentityHashMap<Box, Boolean>());
     }
 
     /**
@@ -47,28 +67,160 @@ public class Sensor {
      * @param boxes The boxes to review.
      */
     public void reviewIntersections(ArrayList<Box> boxes) {
+        boolean hasExited = false;
         for (Box box : boxes) {
             // Ignore this sensors parent.
             if (box != parent) {
-                // Does this sensor intersect with the box?
-                if (NBPMath.doesSensorCollideWithBox(this, box)) {
+                // Does this sensor intersect with a box that it can detect?
+                if (this.canDetect(box) && NBPMath.doesSensorCollideWithBox(this, box)) {
                     // We only care if this is the first time we are hearing of the intersection.
-                    if (!intersectingBoxes.contains(box)) {
-                        // Add this as an intersecting box.
-                        intersectingBoxes.add(box);
-                        // Notify the sensors parent that this sensor has entered another box.
-                        parent.onSensorEntry(this, box);
+                    if (!intersectingBoxSet.contains(box)) {
+                        enter(box, null);
                     }
                 } else {
                     // Had this box been colliding and now it is not?
-                    if (intersectingBoxes.contains(box)) {
-                        // The sensor was intersecting this box, notify the parent.
-                        intersectingBoxes.remove(box);
-                        parent.onSensorExit(this, box);
+                    if (intersectingBoxSet.remove(box)) {
+                        hasExited = true;
+                        exit(box, null);
                     }
                 }
             }
         }
+        // Take every exited box out of the intersecting list in a single pass.
+        if (hasExited) {
+            int retained = 0;
+            for (int i = 0; i < intersectingBoxes.size(); i++) {
+                Box box = intersectingBoxes.get(i);
+                if (intersectingBoxSet.contains(box)) {
+                    intersectingBoxes.set(retained++, box);
+                }
+            }
+            Environment.truncate(intersectingBoxes, retained);
+        }
+    }
+
+    /**
+     * Reviews intersections given only the boxes which currently intersect this sensor, rather than every box.
+     * Any intersecting box which is not a candidate, but is still in the environment, is one that this sensor
+     * has exited, as is any that this sensor can no longer detect. Entries and exits are notified in box list order,
+     * just as when reviewing every box.
+     * @param candidates The boxes in the environment that currently intersect this sensor.
+     * @param stamp      A stamp unique to this review, used to mark the candidate boxes.
+     * @param entered    A reusable list to hold the boxes that this sensor has entered.
+     * @param exited     A reusable list to hold the boxes that this sensor has exited.
+     * @param events     The event buffer to record the notifications in, or null if the parent should be notified straight away.
+     * @return The number of entries and exits.
+     */
+    int reviewIntersections(ArrayList<Box> candidates, int stamp, ArrayList<Box> entered, ArrayList<Box> exited, EventBuffer events) {
+        entered.clear();
+        exited.clear();
+        for (int i = 0; i < candidates.size(); i++) {
+            Box box = candidates.get(i);
+            // Ignore this sensors parent and any box that it cannot detect.
+            if (box != parent && this.canDetect(box)) {
+                box.sensorReviewStamp = stamp;
+                if (!intersectingBoxSet.contains(box)) {
+                    entered.add(box);
+                }
+            }
+        }
+        // Take the exited boxes out of the intersecting boxes in a single pass, keeping the rest in order.
+        int retained = 0;
+        for (int i = 0; i < intersectingBoxes.size(); i++) {
+            Box box = intersectingBoxes.get(i);
+            if (box.sensorReviewStamp != stamp && box.environment == parent.environment) {
+                intersectingBoxSet.remove(box);
+                exited.add(box);
+            } else {
+                intersectingBoxes.set(retained++, box);
+            }
+        }
+        Environment.truncate(intersectingBoxes, retained);
+        Environment.sortByIndex(entered);
+        Environment.sortByIndex(exited);
+        // Notify entries and exits in box list order.
+        int enteredIndex = 0;
+        int exitedIndex  = 0;
+        while (enteredIndex < entered.size() || exitedIndex < exited.size()) {
+            if (exitedIndex == exited.size() || (enteredIndex < entered.size() && entered.get(enteredIndex).index < exited.get(exitedIndex).index)) {
+                enter(entered.get(enteredIndex++), events);
+            } else {
+                exit(exited.get(exitedIndex++), events);
+            }
+        }
+        return entered.size() + exited.size();
+    }
+
+    /**
+     * Get whether this sensor can detect a box, based on the collision categories and masks of both and on whether
+     * this sensor ignores static boxes.
+     * @param box The box.
+     * @return Whether this sensor can detect the box.
+     */
+    public boolean canDetect(Box box) {
+        if (isIgnoringStaticBoxes && box.getType() == BoxType.STATIC) {
+            return false;
+        }
+        return NBPMath.doCollisionFiltersMatch(collisionCategory, collisionMask, box.getCollisionCategory(), box.getCollisionMask());
+    }
+
+    /**
+     * Record that this sensor has entered a box and notify its parent.
+     * @param box    The entered box.
+     * @param events The event buffer to record the notification in, or null if the parent should be notified straight away.
+     */
+    private void enter(Box box, EventBuffer events) {
+        // Add this as an intersecting box.
+        intersectingBoxes.add(box);
+        intersectingBoxSet.add(box);
+        // Notify the sensors parent that this sensor has entered another box.
+        if (events != null) {
+            events.addSensorEvent(parent, this, box, true);
+        } else {
+            parent.onSensorEntry(this, box);
+        }
+    }
+
+    /**
+     * Notify the parent that this sensor has exited a box, which the caller has already taken out of the intersecting boxes.
+     * @param box    The exited box.
+     * @param events The event buffer to record the notification in, or null if the parent should be notified straight away.
+     */
+    private void exit(Box box, EventBuffer events) {
+        // The sensor was intersecting this box, notify the parent.
+        if (events != null) {
+            events.addSensorEvent(parent, this, box, false);
+        } else {
+            parent.onSensorExit(this, box);
+        }
+    }
+
+    /**
+     * Copy the boxes intersecting this sensor into an array.
+     * @param boxes  The array to copy the boxes into, which must have room for them.
+     * @param offset The position in the array to copy the first box to.
+     * @return The number of boxes copied.
+     */
+    int saveIntersections(Box[] boxes, int offset) {
+        for (int i = 0; i < intersectingBoxes.size(); i++) {
+            boxes[offset + i] = intersectingBoxes.get(i);
+        }
+        return intersectingBoxes.size();
+    }
+
+    /**
+     * Replace the boxes intersecting this sensor with the boxes in a range of an array, without notifying the parent.
+     * @param boxes  The array holding the boxes.
+     * @param offset The position in the array of the first box.
+     * @param count  The number of boxes.
+     */
+    void restoreIntersections(Box[] boxes, int offset, int count) {
+        intersectingBoxes.clear();
+        intersectingBoxSet.clear();
+        for (int i = offset; i < offset + count; i++) {
+            intersectingBoxes.add(boxes[i]);
+            intersectingBoxSet.add(boxes[i]);
+        }
     }
 
     /**
@@ -165,4 +317,54 @@ public class Sensor {
     public float getHeight() {
         return this.height;
     }
+
+    /**
+     * Get the collision categories that this sensor belongs to.
+     * @return The collision categories, one per bit.
+     */
+    public int getCollisionCategory() {
+        return this.collisionCategory;
+    }
+
+    /**
+     * Set the collision categories that this sensor belongs to. A sensor only detects a box which belongs to a
+     * category in its mask, and which has a category of the sensor in its own mask.
+     * @param collisionCategory The collision categories, one per bit, which defaults to the first category only.
+     */
+    public void setCollisionCategory(int collisionCategory) {
+        this.collisionCategory = collisionCategory;
+    }
+
+    /**
+     * Get the collision categories of the boxes that this sensor can detect.
+     * @return The collision mask, one category per bit.
+     */
+    public int getCollisionMask() {
+        return this.collisionMask;
+    }
+
+    /**
+     * Set the collision categories of the boxes that this sensor can detect.
+     * @param collisionMask The collision mask, one category per bit, which defaults to every category.
+     */
+    public void setCollisionMask(int collisionMask) {
+        this.collisionMask = collisionMask;
+    }
+
+    /**
+     * Gets whether this sensor ignores static boxes.
+     * @return Whether this sensor ignores static boxes.
+     */
+    public boolean isIgnoringStaticBoxes() {
+        return this.isIgnoringStaticBoxes;
+    }
+
+    /**
+     * Sets whether this sensor ignores static boxes, in which case the static boxes are not searched at all when
+     * reviewing its intersections.
+     * @param isIgnoringStaticBoxes Whether this sensor ignores static boxes.
+     */
+    public void setIgnoringStaticBoxes(boolean isIgnoringStaticBoxes) {
+        this.isIgnoringStaticBoxes = isIgnoringStaticBoxes;
+    }
 }
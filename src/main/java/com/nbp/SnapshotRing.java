@@ -0,0 +1,115 @@
+package com.nbp;
+
+/**
+ * A ring of snapshots of the last few physics steps of an environment, for rolling the simulation back and stepping it forward again.
+ * Every snapshot in the ring is allocated up front and reused, with the oldest being overwritten once the ring is full.
+ */
+public class SnapshotRing {
+    /**
+     * The snapshots.
+     */
+    private final EnvironmentSnapshot[] snapshots;
+    /**
+     * The position of the next snapshot to be written.
+     */
+    private int head = 0;
+    /**
+     * The number of snapshots that have been written and not discarded.
+     */
+    private int count = 0;
+
+    /**
+     * Create a new instance of the SnapshotRing class.
+     * @param capacity The number of snapshots to keep.
+     */
+    public SnapshotRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least one");
+        }
+        snapshots = new EnvironmentSnapshot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            snapshots[i] = new EnvironmentSnapshot();
+        }
+    }
+
+    /**
+     * Get the number of snapshots that the ring keeps.
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return snapshots.length;
+    }
+
+    /**
+     * Get the number of snapshots currently held in the ring.
+     * @return The number of snapshots.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Take a snapshot of an environment, overwriting the oldest snapshot if the ring is full.
+     * @param environment The environment.
+     * @return The snapshot, which is only valid until it is overwritten.
+     */
+    public EnvironmentSnapshot save(Environment environment) {
+        EnvironmentSnapshot snapshot = snapshots[head];
+        environment.snapshot(snapshot);
+        head  = (head + 1) % snapshots.length;
+        count = Math.min(count + 1, snapshots.length);
+        return snapshot;
+    }
+
+    /**
+     * Get the snapshot taken after the specified physics step.
+     * @param stepNumber The step number.
+     * @return The snapshot, or null if the ring does not hold one for the step.
+     */
+    public EnvironmentSnapshot get(int stepNumber) {
+        int position = this.find(stepNumber);
+        return position == -1 ? null : snapshots[position];
+    }
+
+    /**
+     * Roll an environment back to the snapshot taken after the specified physics step. Any snapshots taken
+     * after it are discarded, as the steps that follow will be simulated again and snapshotted afresh.
+     * @param environment The environment.
+     * @param stepNumber  The step number.
+     * @return Whether the ring held a snapshot for the step.
+     */
+    public boolean restore(Environment environment, int stepNumber) {
+        int position = this.find(stepNumber);
+        if (position == -1) {
+            return false;
+        }
+        environment.restore(snapshots[position]);
+        int discarded = (head - position - 1 + snapshots.length) % snapshots.length;
+        count        -= discarded;
+        head          = (position + 1) % snapshots.length;
+        return true;
+    }
+
+    /**
+     * Discard every snapshot in the ring.
+     */
+    public void clear() {
+        head  = 0;
+        count = 0;
+    }
+
+    /**
+     * Find the position of the snapshot taken after the specified physics step, searching from the newest.
+     * @param stepNumber The step number.
+     * @return The position, or -1 if the ring does not hold a snapshot for the step.
+     */
+    private int find(int stepNumber) {
+        for (int i = 1; i <= count; i++) {
+            int position = (head - i + snapshots.length) % snapshots.length;
+            if (snapshots[position].stepCount == stepNumber) {
+                return position;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,514 @@
+package com.nbp;
+
+import java.util.ArrayList;
+
+/**
+ * A broadphase which buckets boxes into the cells of a uniform grid, so that
+ * only boxes which share a grid cell are considered as collision candidates.
+ * A box which covers too many cells to be put into each of them is kept in a list of large boxes instead,
+ * and a query which covers more cells than the grid holds looks through the grid cells rather than the area.
+ */
+public class SpatialHashBroadphase extends Broadphase {
+    /**
+     * The default size of a grid cell.
+     */
+    public static final float DEFAULT_CELL_SIZE = 64f;
+    /**
+     * The initial capacity of the cell table, must be a power of two.
+     */
+    private static final int INITIAL_TABLE_CAPACITY = 64;
+    /**
+     * The most cells that a box is put into, beyond which it is kept in the large boxes instead.
+     */
+    private static final int MAX_BOX_CELLS = 64;
+    /**
+     * The furthest cell position from the origin, which keeps a huge, infinite or NaN position from overflowing a range of cells.
+     */
+    private static final int MAX_CELL = 1 << 30;
+    /**
+     * The size of a grid cell.
+     */
+    private final float cellSize;
+    /**
+     * The inverse of the grid cell size.
+     */
+    private final float inverseCellSize;
+    /**
+     * The keys of the cells in the cell table.
+     */
+    private long[] cellKeys;
+    /**
+     * The open addressed cell table, an empty slot is null.
+     */
+    private Cell[] cells;
+    /**
+     * The number of cells in the cell table.
+     */
+    private int cellCount = 0;
+    /**
+     * The boxes which cover more cells than they are put into.
+     */
+    private final ArrayList<Box> largeBoxes = new ArrayList<Box>();
+
+    /**
+     * Create a new instance of the SpatialHashBroadphase class with the default cell size.
+     */
+    public SpatialHashBroadphase() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Create a new instance of the SpatialHashBroadphase class.
+     * A cell size a little larger than the typical dynamic box works best.
+     * @param cellSize The size of a grid cell.
+     */
+    public SpatialHashBroadphase(float cellSize) {
+        if (cellSize <= 0f) {
+            throw new IllegalArgumentException("cell size must be greater than zero");
+        }
+        this.cellSize        = cellSize;
+        this.inverseCellSize = 1f / cellSize;
+        this.cellKeys        = new long[INITIAL_TABLE_CAPACITY];
+        this.cells           = new Cell[INITIAL_TABLE_CAPACITY];
+    }
+
+    /**
+     * Get the size of a grid cell.
+     * @return The size of a grid cell.
+     */
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    @Override
+    void add(Box box) {
+        CellProxy proxy = new CellProxy(box, this);
+        box.broadphaseProxy = proxy;
+        proxy.minCellX = toCell(box.getX());
+        proxy.minCellY = toCell(box.getY());
+        proxy.maxCellX = toCell(box.getX() + box.getWidth());
+        proxy.maxCellY = toCell(box.getY() + box.getHeight());
+        insertIntoCells(box, proxy);
+    }
+
+    @Override
+    void remove(Box box) {
+        removeFromCells(box, (CellProxy) box.broadphaseProxy);
+        box.broadphaseProxy = null;
+    }
+
+    @Override
+    void update(Box box) {
+        CellProxy proxy = (CellProxy) box.broadphaseProxy;
+        int minCellX    = toCell(box.getX());
+        int minCellY    = toCell(box.getY());
+        int maxCellX    = toCell(box.getX() + box.getWidth());
+        int maxCellY    = toCell(box.getY() + box.getHeight());
+        // Nothing to do if the box still covers the same cells.
+        if (minCellX == proxy.minCellX && minCellY == proxy.minCellY && maxCellX == proxy.maxCellX && maxCellY == proxy.maxCellY) {
+            return;
+        }
+        removeFromCells(box, proxy);
+        proxy.minCellX = minCellX;
+        proxy.minCellY = minCellY;
+        proxy.maxCellX = maxCellX;
+        proxy.maxCellY = maxCellY;
+        insertIntoCells(box, proxy);
+    }
+
+    @Override
+    void getCandidates(Box box, ArrayList<Box> candidates) {
+        CellProxy proxy = (CellProxy) box.broadphaseProxy;
+        int stamp       = nextQueryStamp();
+        // The box itself should never be reported as a candidate.
+        proxy.queryStamp = stamp;
+        if (proxy.largeSlot != -1) {
+            int first = candidates.size();
+            findBoxesInCells(proxy.minCellX, proxy.minCellY, proxy.maxCellX, proxy.maxCellY, stamp, candidates);
+            int retained = first;
+            for (int i = first; i < candidates.size(); i++) {
+                if (box.canCollideWith(candidates.get(i))) {
+                    candidates.set(retained++, candidates.get(i));
+                }
+            }
+            truncate(candidates, retained);
+            return;
+        }
+        for (int cellX = proxy.minCellX; cellX <= proxy.maxCellX; cellX++) {
+            for (int cellY = proxy.minCellY; cellY <= proxy.maxCellY; cellY++) {
+                Cell cell = findCell(cellX, cellY);
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0; i < cell.count; i++) {
+                    Box cellBox = cell.boxes[i];
+                    if (cellBox.broadphaseProxy.queryStamp != stamp) {
+                        cellBox.broadphaseProxy.queryStamp = stamp;
+                        if (box.canCollideWith(cellBox)) {
+                            candidates.add(cellBox);
+                        }
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < largeBoxes.size(); i++) {
+            Box largeBox         = largeBoxes.get(i);
+            CellProxy largeProxy = (CellProxy) largeBox.broadphaseProxy;
+            if (largeProxy.queryStamp != stamp && overlaps(proxy, largeProxy.minCellX, largeProxy.minCellY, largeProxy.maxCellX, largeProxy.maxCellY)
+                    && box.canCollideWith(largeBox)) {
+                largeProxy.queryStamp = stamp;
+                candidates.add(largeBox);
+            }
+        }
+    }
+
+    @Override
+    void query(float minX, float minY, float maxX, float maxY, ArrayList<Box> results) {
+        int first = results.size();
+        findBoxesInCells(toCell(minX), toCell(minY), toCell(maxX), toCell(maxY), nextQueryStamp(), results);
+        int retained = first;
+        for (int i = first; i < results.size(); i++) {
+            if (intersects(minX, minY, maxX, maxY, results.get(i))) {
+                results.set(retained++, results.get(i));
+            }
+        }
+        truncate(results, retained);
+    }
+
+    @Override
+    void queryRay(float startX, float startY, float endX, float endY, ArrayList<Box> results) {
+        int cellX = toCell(startX);
+        int cellY = toCell(startY);
+        // A segment crossing more cells than the grid holds is better served by a query of its bounds.
+        long cellCount = Math.abs((long) toCell(endX) - cellX) + Math.abs((long) toCell(endY) - cellY) + 1;
+        if (cellCount > cells.length) {
+            super.queryRay(startX, startY, endX, endY, results);
+            return;
+        }
+        int stamp    = nextQueryStamp();
+        float deltaX = endX - startX;
+        float deltaY = endY - startY;
+        int stepX    = deltaX > 0f ? 1 : (deltaX < 0f ? -1 : 0);
+        int stepY    = deltaY > 0f ? 1 : (deltaY < 0f ? -1 : 0);
+        // How far along the segment it crosses into the next column and row of cells, and how far it takes to cross a whole cell.
+        float nextX   = stepX == 0 ? Float.POSITIVE_INFINITY : ((((stepX > 0 ? cellX + 1 : cellX) * cellSize) - startX) / deltaX);
+        float nextY   = stepY == 0 ? Float.POSITIVE_INFINITY : ((((stepY > 0 ? cellY + 1 : cellY) * cellSize) - startY) / deltaY);
+        float strideX = stepX == 0 ? Float.POSITIVE_INFINITY : (cellSize / Math.abs(deltaX));
+        float strideY = stepY == 0 ? Float.POSITIVE_INFINITY : (cellSize / Math.abs(deltaY));
+        // Walk the cells that the segment passes through, from its start to its end.
+        for (int i = 0; i < cellCount; i++) {
+            Cell cell = findCell(cellX, cellY);
+            if (cell != null) {
+                for (int j = 0; j < cell.count; j++) {
+                    Box cellBox = cell.boxes[j];
+                    if (cellBox.broadphaseProxy.queryStamp != stamp) {
+                        cellBox.broadphaseProxy.queryStamp = stamp;
+                        if (crosses(startX, startY, endX, endY, cellBox.getX(), cellBox.getY(), cellBox.getX() + cellBox.getWidth(), cellBox.getY() + cellBox.getHeight())) {
+                            results.add(cellBox);
+                        }
+                    }
+                }
+            }
+            if (nextX < nextY) {
+                cellX += stepX;
+                nextX += strideX;
+            } else {
+                cellY += stepY;
+                nextY += strideY;
+            }
+        }
+        for (int i = 0; i < largeBoxes.size(); i++) {
+            Box largeBox = largeBoxes.get(i);
+            if (largeBox.broadphaseProxy.queryStamp != stamp
+                    && crosses(startX, startY, endX, endY, largeBox.getX(), largeBox.getY(), largeBox.getX() + largeBox.getWidth(), largeBox.getY() + largeBox.getHeight())) {
+                largeBox.broadphaseProxy.queryStamp = stamp;
+                results.add(largeBox);
+            }
+        }
+    }
+
+    /**
+     * Add every box in the cells within a range to a list once each, along with every large box whose cells overlap the range.
+     * When the range covers more cells than the cell table holds, the cell table is looked through instead of the range.
+     * @param minCellX The minimum cell X position of the range.
+     * @param minCellY The minimum cell Y position of the range.
+     * @param maxCellX The maximum cell X position of the range.
+     * @param maxCellY The maximum cell Y position of the range.
+     * @param stamp    The query stamp.
+     * @param found    The list to add the boxes to.
+     */
+    private void findBoxesInCells(int minCellX, int minCellY, int maxCellX, int maxCellY, int stamp, ArrayList<Box> found) {
+        long rangeSize = ((long) maxCellX - minCellX + 1) * ((long) maxCellY - minCellY + 1);
+        if (rangeSize > cells.length) {
+            for (int slot = 0; slot < cells.length; slot++) {
+                long key = cellKeys[slot];
+                int cellX = (int) (key >> 32);
+                int cellY = (int) key;
+                if (cells[slot] != null && cellX >= minCellX && cellX <= maxCellX && cellY >= minCellY && cellY <= maxCellY) {
+                    addCellBoxes(cells[slot], stamp, found);
+                }
+            }
+        } else {
+            for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+                for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+                    Cell cell = findCell(cellX, cellY);
+                    if (cell != null) {
+                        addCellBoxes(cell, stamp, found);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < largeBoxes.size(); i++) {
+            Box largeBox         = largeBoxes.get(i);
+            CellProxy largeProxy = (CellProxy) largeBox.broadphaseProxy;
+            if (largeProxy.queryStamp != stamp && overlaps(largeProxy, minCellX, minCellY, maxCellX, maxCellY)) {
+                largeProxy.queryStamp = stamp;
+                found.add(largeBox);
+            }
+        }
+    }
+
+    /**
+     * Add every box in a cell to a list, unless it has already been found by the query.
+     * @param cell  The cell.
+     * @param stamp The query stamp.
+     * @param found The list to add the boxes to.
+     */
+    private static void addCellBoxes(Cell cell, int stamp, ArrayList<Box> found) {
+        for (int i = 0; i < cell.count; i++) {
+            Box cellBox = cell.boxes[i];
+            if (cellBox.broadphaseProxy.queryStamp != stamp) {
+                cellBox.broadphaseProxy.queryStamp = stamp;
+                found.add(cellBox);
+            }
+        }
+    }
+
+    /**
+     * Get whether the cells covered by a proxy overlap a range of cells.
+     * @param proxy    The proxy.
+     * @param minCellX The minimum cell X position of the range.
+     * @param minCellY The minimum cell Y position of the range.
+     * @param maxCellX The maximum cell X position of the range.
+     * @param maxCellY The maximum cell Y position of the range.
+     * @return Whether the cells overlap.
+     */
+    private static boolean overlaps(CellProxy proxy, int minCellX, int minCellY, int maxCellX, int maxCellY) {
+        return proxy.minCellX <= maxCellX && proxy.maxCellX >= minCellX && proxy.minCellY <= maxCellY && proxy.maxCellY >= minCellY;
+    }
+
+    /**
+     * Drop every item of a list from the specified position on.
+     * @param list The list.
+     * @param size The size to cut the list down to.
+     */
+    private static void truncate(ArrayList<Box> list, int size) {
+        while (list.size() > size) {
+            list.remove(list.size() - 1);
+        }
+    }
+
+    /**
+     * Convert a world position to a cell position.
+     * @param position The world position.
+     * @return The cell position.
+     */
+    private int toCell(float position) {
+        // A NaN position ends up at cell zero.
+        return (int) Math.max(-MAX_CELL, Math.min(MAX_CELL, Math.floor(position * inverseCellSize)));
+    }
+
+    /**
+     * Add a box to all of the cells that its proxy covers, or to the large boxes if it covers too many of them.
+     * @param box   The box.
+     * @param proxy The proxy of the box.
+     */
+    private void insertIntoCells(Box box, CellProxy proxy) {
+        if (((long) proxy.maxCellX - proxy.minCellX + 1) * ((long) proxy.maxCellY - proxy.minCellY + 1) > MAX_BOX_CELLS) {
+            proxy.largeSlot = largeBoxes.size();
+            largeBoxes.add(box);
+            return;
+        }
+        for (int cellX = proxy.minCellX; cellX <= proxy.maxCellX; cellX++) {
+            for (int cellY = proxy.minCellY; cellY <= proxy.maxCellY; cellY++) {
+                findOrCreateCell(cellX, cellY).add(box);
+            }
+        }
+    }
+
+    /**
+     * Remove a box from all of the cells that its proxy covers, or from the large boxes if it is in them.
+     * @param box   The box.
+     * @param proxy The proxy of the box.
+     */
+    private void removeFromCells(Box box, CellProxy proxy) {
+        if (proxy.largeSlot != -1) {
+            // Move the last large box into the place of the removed one.
+            Box last = largeBoxes.remove(largeBoxes.size() - 1);
+            if (last != box) {
+                largeBoxes.set(proxy.largeSlot, last);
+                ((CellProxy) last.broadphaseProxy).largeSlot = proxy.largeSlot;
+            }
+            proxy.largeSlot = -1;
+            return;
+        }
+        for (int cellX = proxy.minCellX; cellX <= proxy.maxCellX; cellX++) {
+            for (int cellY = proxy.minCellY; cellY <= proxy.maxCellY; cellY++) {
+                Cell cell = findCell(cellX, cellY);
+                if (cell != null) {
+                    cell.remove(box);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the cell at the specified cell position.
+     * @param cellX The cell X position.
+     * @param cellY The cell Y position.
+     * @return The cell, or null if there is no cell at the position.
+     */
+    private Cell findCell(int cellX, int cellY) {
+        long key = toKey(cellX, cellY);
+        int mask = cells.length - 1;
+        for (int slot = hash(key) & mask; cells[slot] != null; slot = (slot + 1) & mask) {
+            if (cellKeys[slot] == key) {
+                return cells[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the cell at the specified cell position, creating it if it does not exist.
+     * @param cellX The cell X position.
+     * @param cellY The cell Y position.
+     * @return The cell.
+     */
+    private Cell findOrCreateCell(int cellX, int cellY) {
+        Cell cell = findCell(cellX, cellY);
+        if (cell != null) {
+            return cell;
+        }
+        // Keep the table at most half full, dropping any cells that have emptied out along the way.
+        if ((cellCount + 1) * 2 > cells.length) {
+            rehash();
+        }
+        cell = new Cell();
+        putCell(toKey(cellX, cellY), cell);
+        return cell;
+    }
+
+    /**
+     * Rebuild the cell table, discarding empty cells and growing the table if needed.
+     */
+    private void rehash() {
+        long[] oldKeys  = cellKeys;
+        Cell[] oldCells = cells;
+        int liveCells   = 0;
+        for (Cell cell : oldCells) {
+            if (cell != null && cell.count > 0) {
+                liveCells++;
+            }
+        }
+        int capacity = INITIAL_TABLE_CAPACITY;
+        while (capacity < (liveCells + 1) * 4) {
+            capacity <<= 1;
+        }
+        cellKeys  = new long[capacity];
+        cells     = new Cell[capacity];
+        cellCount = 0;
+        for (int i = 0; i < oldCells.length; i++) {
+            if (oldCells[i] != null && oldCells[i].count > 0) {
+                putCell(oldKeys[i], oldCells[i]);
+            }
+        }
+    }
+
+    /**
+     * Put a cell into the cell table.
+     * @param key  The cell key.
+     * @param cell The cell.
+     */
+    private void putCell(long key, Cell cell) {
+        int mask = cells.length - 1;
+        int slot = hash(key) & mask;
+        while (cells[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        cellKeys[slot] = key;
+        cells[slot]    = cell;
+        cellCount++;
+    }
+
+    /**
+     * Get the key for a cell position.
+     * @param cellX The cell X position.
+     * @param cellY The cell Y position.
+     * @return The key.
+     */
+    private static long toKey(int cellX, int cellY) {
+        return (((long) cellX) << 32) | (cellY & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Hash a cell key.
+     * @param key The cell key.
+     * @return The hash.
+     */
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * The proxy of a box in the grid, holding the range of cells the box covers.
+     */
+    private static class CellProxy extends BroadphaseProxy {
+        /**
+         * The range of cells covered by the box.
+         */
+        int minCellX, minCellY, maxCellX, maxCellY;
+        /**
+         * The position of the box in the large boxes, or -1 if it is in the cells it covers.
+         */
+        int largeSlot = -1;
+
+        CellProxy(Box box, Broadphase broadphase) {
+            super(box, broadphase);
+        }
+    }
+
+    /**
+     * A grid cell holding the boxes which overlap it.
+     */
+    private static class Cell {
+        /**
+         * The boxes in the cell.
+         */
+        Box[] boxes = new Box[4];
+        /**
+         * The number of boxes in the cell.
+         */
+        int count = 0;
+
+        void add(Box box) {
+            if (count == boxes.length) {
+                Box[] grown = new Box[boxes.length * 2];
+                System.arraycopy(boxes, 0, grown, 0, count);
+                boxes = grown;
+            }
+            boxes[count++] = box;
+        }
+
+        void remove(Box box) {
+            for (int i = 0; i < count; i++) {
+                if (boxes[i] == box) {
+                    boxes[i]     = boxes[--count];
+                    boxes[count] = null;
+                    return;
+                }
+            }
+        }
+    }
+}
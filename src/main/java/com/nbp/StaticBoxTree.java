@@ -0,0 +1,313 @@
+package com.nbp;
+
+import java.util.ArrayList;
+
+/**
+ * A bounding volume tree holding the static boxes of an environment.
+ * Static level geometry rarely changes, so rather than being updated incrementally the tree
+ * is simply rebuilt the next time it is queried after a static box has been added, removed or moved.
+ */
+class StaticBoxTree extends Broadphase {
+    /**
+     * The maximum number of boxes held by a leaf node.
+     */
+    private static final int MAX_LEAF_SIZE = 4;
+    /**
+     * The static boxes in the tree.
+     */
+    private ArrayList<Box> boxes = new ArrayList<Box>();
+    /**
+     * Whether the tree needs rebuilding before it is next queried.
+     */
+    private boolean isDirty = false;
+    /**
+     * Whether any boxes have been removed from the tree since the list of boxes was last compacted.
+     */
+    private boolean hasRemovedBoxes = false;
+    /**
+     * The boxes in the order that they are referenced by the leaf nodes.
+     */
+    private Box[] leafBoxes = new Box[0];
+    /**
+     * The bounds of each node.
+     */
+    private float[] nodeMinX = new float[0], nodeMinY = new float[0], nodeMaxX = new float[0], nodeMaxY = new float[0];
+    /**
+     * For a branch node this is the index of its second child (its first child always directly follows it),
+     * and for a leaf node this is the negated offset minus one of its first box in the leaf box array.
+     */
+    private int[] nodeData = new int[0];
+    /**
+     * The number of boxes in each leaf node, zero for a branch node.
+     */
+    private int[] nodeBoxCount = new int[0];
+    /**
+     * The number of nodes in the tree.
+     */
+    private int nodeCount = 0;
+    /**
+     * The centre of each box along the axis currently being split, indexed by leaf box position.
+     */
+    private float[] centres = new float[0];
+    /**
+     * The reusable stack of nodes still to be visited by a query.
+     */
+    private int[] stack = new int[64];
+
+    @Override
+    void add(Box box) {
+        box.broadphaseProxy = new BroadphaseProxy(box, this);
+        boxes.add(box);
+        isDirty = true;
+    }
+
+    @Override
+    void remove(Box box) {
+        // The box is left in the list of boxes until it is next compacted, so that the boxes after it are not shifted along.
+        box.broadphaseProxy = null;
+        isDirty             = true;
+        hasRemovedBoxes     = true;
+    }
+
+    /**
+     * Take any boxes that have been removed out of the list of boxes, keeping the rest in box list order.
+     */
+    void compact() {
+        if (!hasRemovedBoxes) {
+            return;
+        }
+        int retained = 0;
+        for (int i = 0; i < boxes.size(); i++) {
+            Box box = boxes.get(i);
+            if (box.broadphaseProxy != null && box.broadphaseProxy.broadphase == this) {
+                boxes.set(retained++, box);
+            }
+        }
+        while (boxes.size() > retained) {
+            boxes.remove(boxes.size() - 1);
+        }
+        hasRemovedBoxes = false;
+    }
+
+    @Override
+    void update(Box box) {
+        // Static boxes are not expected to move, but if one does then the tree has to be rebuilt.
+        isDirty = true;
+    }
+
+    @Override
+    void getCandidates(Box box, ArrayList<Box> candidates) {
+        query(box.getX(), box.getY(), box.getX() + box.getWidth(), box.getY() + box.getHeight(), box, candidates);
+    }
+
+    @Override
+    void query(float minX, float minY, float maxX, float maxY, ArrayList<Box> results) {
+        query(minX, minY, maxX, maxY, null, results);
+    }
+
+    @Override
+    void queryRay(float startX, float startY, float endX, float endY, ArrayList<Box> results) {
+        if (isDirty) {
+            rebuild();
+        }
+        if (nodeCount == 0) {
+            return;
+        }
+        int stackSize    = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            // Skip any node whose bounds the segment does not cross.
+            if (!crosses(startX, startY, endX, endY, nodeMinX[node], nodeMinY[node], nodeMaxX[node], nodeMaxY[node])) {
+                continue;
+            }
+            if (nodeBoxCount[node] > 0) {
+                int first = -(nodeData[node] + 1);
+                for (int i = first; i < first + nodeBoxCount[node]; i++) {
+                    Box box = leafBoxes[i];
+                    if (crosses(startX, startY, endX, endY, box.getX(), box.getY(), box.getX() + box.getWidth(), box.getY() + box.getHeight())) {
+                        results.add(box);
+                    }
+                }
+            } else {
+                if (stackSize + 2 > stack.length) {
+                    int[] grown = new int[stack.length * 2];
+                    System.arraycopy(stack, 0, grown, 0, stackSize);
+                    stack = grown;
+                }
+                stack[stackSize++] = nodeData[node];
+                stack[stackSize++] = node + 1;
+            }
+        }
+    }
+
+    /**
+     * Get the static boxes in the tree.
+     * @return The static boxes in the tree.
+     */
+    ArrayList<Box> getBoxes() {
+        this.compact();
+        return boxes;
+    }
+
+    /**
+     * Add every static box which intersects the specified area to the results list.
+     * @param minX    The minimum X position of the area.
+     * @param minY    The minimum Y position of the area.
+     * @param maxX    The maximum X position of the area.
+     * @param maxY    The maximum Y position of the area.
+     * @param owner   A box to find collision candidates for, which is left out of the results along with any
+     *                static box that it cannot collide with, or null.
+     * @param results The list to add the intersecting boxes to.
+     */
+    void query(float minX, float minY, float maxX, float maxY, Box owner, ArrayList<Box> results) {
+        if (isDirty) {
+            rebuild();
+        }
+        if (nodeCount == 0) {
+            return;
+        }
+        int stackSize    = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            // Skip any node whose bounds do not intersect the area.
+            if (!(nodeMinX[node] < maxX && nodeMaxX[node] > minX && nodeMinY[node] < maxY && nodeMaxY[node] > minY)) {
+                continue;
+            }
+            if (nodeBoxCount[node] > 0) {
+                int first = -(nodeData[node] + 1);
+                for (int i = first; i < first + nodeBoxCount[node]; i++) {
+                    Box box = leafBoxes[i];
+                    if (box != owner && intersects(minX, minY, maxX, maxY, box) && (owner == null || owner.canCollideWith(box))) {
+                        results.add(box);
+                    }
+                }
+            } else {
+                if (stackSize + 2 > stack.length) {
+                    int[] grown = new int[stack.length * 2];
+                    System.arraycopy(stack, 0, grown, 0, stackSize);
+                    stack = grown;
+                }
+                stack[stackSize++] = nodeData[node];
+                stack[stackSize++] = node + 1;
+            }
+        }
+    }
+
+    /**
+     * Rebuild the tree from the current set of static boxes.
+     */
+    private void rebuild() {
+        this.compact();
+        isDirty      = false;
+        nodeCount    = 0;
+        int boxCount = boxes.size();
+        if (leafBoxes.length < boxCount) {
+            leafBoxes = new Box[boxCount];
+            centres   = new float[boxCount];
+            // A tree with leaves of at least half the max leaf size never has more than this many nodes.
+            int maxNodes = Math.max(1, (4 * boxCount) / MAX_LEAF_SIZE + 1);
+            nodeMinX     = new float[maxNodes];
+            nodeMinY     = new float[maxNodes];
+            nodeMaxX     = new float[maxNodes];
+            nodeMaxY     = new float[maxNodes];
+            nodeData     = new int[maxNodes];
+            nodeBoxCount = new int[maxNodes];
+        }
+        for (int i = 0; i < leafBoxes.length; i++) {
+            leafBoxes[i] = i < boxCount ? boxes.get(i) : null;
+        }
+        if (boxCount > 0) {
+            buildNode(0, boxCount);
+        }
+    }
+
+    /**
+     * Build the node holding a range of the leaf boxes, along with all of its children.
+     * @param start The first leaf box position in the range.
+     * @param end   The position after the last leaf box in the range.
+     * @return The index of the new node.
+     */
+    private int buildNode(int start, int end) {
+        int node   = nodeCount++;
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        for (int i = start; i < end; i++) {
+            Box box = leafBoxes[i];
+            minX    = Math.min(minX, box.getX());
+            minY    = Math.min(minY, box.getY());
+            maxX    = Math.max(maxX, box.getX() + box.getWidth());
+            maxY    = Math.max(maxY, box.getY() + box.getHeight());
+        }
+        nodeMinX[node] = minX;
+        nodeMinY[node] = minY;
+        nodeMaxX[node] = maxX;
+        nodeMaxY[node] = maxY;
+        if (end - start <= MAX_LEAF_SIZE) {
+            nodeData[node]     = -(start + 1);
+            nodeBoxCount[node] = end - start;
+            return node;
+        }
+        // Split the boxes at the median of their centres along the longest axis of the node.
+        boolean splitOnX = (maxX - minX) >= (maxY - minY);
+        for (int i = start; i < end; i++) {
+            Box box    = leafBoxes[i];
+            centres[i] = splitOnX ? box.getX() + (box.getWidth() / 2f) : box.getY() + (box.getHeight() / 2f);
+        }
+        int middle = (start + end) >>> 1;
+        selectMedian(start, end - 1, middle);
+        nodeBoxCount[node] = 0;
+        buildNode(start, middle);
+        nodeData[node] = buildNode(middle, end);
+        return node;
+    }
+
+    /**
+     * Partially sort a range of the leaf boxes by their centres so that the box at the
+     * target position is the one that would be there if the range were fully sorted, with
+     * no box before it having a greater centre and no box after it having a lesser one.
+     * @param low    The first position in the range.
+     * @param high   The last position in the range.
+     * @param target The target position.
+     */
+    private void selectMedian(int low, int high, int target) {
+        while (high > low) {
+            float pivot = centres[(low + high) >>> 1];
+            int i       = low;
+            int j       = high;
+            while (i <= j) {
+                while (centres[i] < pivot) {
+                    i++;
+                }
+                while (centres[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (target <= j) {
+                high = j;
+            } else if (target >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Swap two of the leaf boxes along with their centres.
+     * @param a The first position.
+     * @param b The second position.
+     */
+    private void swap(int a, int b) {
+        Box box      = leafBoxes[a];
+        leafBoxes[a] = leafBoxes[b];
+        leafBoxes[b] = box;
+        float centre = centres[a];
+        centres[a]   = centres[b];
+        centres[b]   = centre;
+    }
+}
@@ -0,0 +1,39 @@
+package com.nbp;
+
+/**
+ * The phases of a physics step that are timed when step stats are enabled.
+ */
+public enum StepPhase {
+    /**
+     * Removing the boxes that were marked for deletion.
+     */
+    DELETION,
+    /**
+     * Applying pending blooms.
+     */
+    BLOOMS,
+    /**
+     * Applying zones of force.
+     */
+    ZONES,
+    /**
+     * Moving boxes along the X and Y axes.
+     */
+    INTEGRATION,
+    /**
+     * Finding and resolving collisions, including any collision callbacks made while doing so.
+     */
+    COLLISION,
+    /**
+     * Reviewing sensor intersections, including any sensor callbacks made while doing so.
+     */
+    SENSORS,
+    /**
+     * Adding the boxes that were added during the step.
+     */
+    PENDING_ADDS,
+    /**
+     * The box update callbacks, along with any deferred collision and sensor callbacks.
+     */
+    CALLBACKS
+}
@@ -0,0 +1,184 @@
+package com.nbp;
+
+/**
+ * The timings and counts gathered during a single physics step.
+ * An environment reuses the same instance for every step, so a listener that
+ * wants to keep hold of the stats of a step should copy the values it needs.
+ */
+public class StepStats {
+    /**
+     * How often a box is timed phase by phase as it is updated. This must be a power of two.
+     */
+    static final int SAMPLE_INTERVAL = 16;
+    /**
+     * The time spent in each phase of the step, in nanoseconds, indexed by phase ordinal.
+     */
+    private final long[] phaseTimes = new long[StepPhase.values().length];
+    /**
+     * The time spent in each phase by the sampled boxes, in nanoseconds, indexed by phase ordinal.
+     */
+    private final long[] sampleTimes = new long[StepPhase.values().length];
+    /**
+     * The total time taken by the step, in nanoseconds.
+     */
+    private long stepTime = 0L;
+    /**
+     * The number of steps taken since step stats were enabled, including this one.
+     */
+    private long stepNumber = 0L;
+    /**
+     * The number of candidate pairs found by the broadphase.
+     */
+    int broadphasePairCount = 0;
+    /**
+     * The number of candidate pairs that were found to actually collide.
+     */
+    int narrowphaseHitCount = 0;
+    /**
+     * The number of collision, sensor and update callbacks made.
+     */
+    int callbackCount = 0;
+    /**
+     * The number of boxes that were updated.
+     */
+    int awakeBoxCount = 0;
+
+    /**
+     * Get the time spent in a phase of the step.
+     * The time spent updating the awake boxes is split across the phases in proportion to a sample of the boxes,
+     * so the times of the phases done box by box are estimates, though together they add up to the time actually taken.
+     * @param phase The phase.
+     * @return The time spent in the phase, in nanoseconds.
+     */
+    public long getPhaseTime(StepPhase phase) {
+        return phaseTimes[phase.ordinal()];
+    }
+
+    /**
+     * Get the total time taken by the step.
+     * @return The total time taken by the step, in nanoseconds.
+     */
+    public long getStepTime() {
+        return stepTime;
+    }
+
+    /**
+     * Get the number of steps taken since step stats were enabled, including this one.
+     * @return The step number.
+     */
+    public long getStepNumber() {
+        return stepNumber;
+    }
+
+    /**
+     * Get the number of candidate pairs found by the broadphase.
+     * @return The number of candidate pairs.
+     */
+    public int getBroadphasePairCount() {
+        return broadphasePairCount;
+    }
+
+    /**
+     * Get the number of candidate pairs that were found to actually collide.
+     * @return The number of colliding pairs.
+     */
+    public int getNarrowphaseHitCount() {
+        return narrowphaseHitCount;
+    }
+
+    /**
+     * Get the number of collision, sensor and box update callbacks made.
+     * @return The number of callbacks.
+     */
+    public int getCallbackCount() {
+        return callbackCount;
+    }
+
+    /**
+     * Get the number of boxes that were updated.
+     * @return The number of updated boxes.
+     */
+    public int getAwakeBoxCount() {
+        return awakeBoxCount;
+    }
+
+    /**
+     * Reset the stats ready for a new step.
+     */
+    void begin() {
+        for (int i = 0; i < phaseTimes.length; i++) {
+            phaseTimes[i] = 0L;
+        }
+        stepTime            = 0L;
+        broadphasePairCount = 0;
+        narrowphaseHitCount = 0;
+        callbackCount       = 0;
+        awakeBoxCount       = 0;
+        stepNumber++;
+    }
+
+    /**
+     * Add the time since the start of a phase to the time spent in it.
+     * @param phase The phase.
+     * @param start The time that the phase started, from System.nanoTime().
+     * @return The current time, from System.nanoTime(), which can be used as the start of the next phase.
+     */
+    long endPhase(StepPhase phase, long start) {
+        long now = System.nanoTime();
+        phaseTimes[phase.ordinal()] += now - start;
+        return now;
+    }
+
+    /**
+     * Add the time since the start of a phase of a sampled box update to the time the sampled boxes spent in it.
+     * @param phase The phase.
+     * @param start The time that the phase started, from System.nanoTime().
+     * @return The current time, from System.nanoTime(), which can be used as the start of the next phase.
+     */
+    long endSample(StepPhase phase, long start) {
+        long now = System.nanoTime();
+        sampleTimes[phase.ordinal()] += now - start;
+        return now;
+    }
+
+    /**
+     * Split the time since the box updates started across the phases, in proportion to the time that the sampled boxes spent in each.
+     * The time is all put down to integration if no box was sampled.
+     * @param start The time that the box updates started, from System.nanoTime().
+     * @return The current time, from System.nanoTime(), which can be used as the start of the next phase.
+     */
+    long endSampledPhases(long start) {
+        long now       = System.nanoTime();
+        long totalTime = now - start;
+        long sampled   = 0L;
+        for (int i = 0; i < sampleTimes.length; i++) {
+            sampled += sampleTimes[i];
+        }
+        if (sampled == 0L) {
+            phaseTimes[StepPhase.INTEGRATION.ordinal()] += totalTime;
+            return now;
+        }
+        long remaining = totalTime;
+        int lastPhase  = 0;
+        for (int i = 0; i < sampleTimes.length; i++) {
+            if (sampleTimes[i] > 0L) {
+                long phaseTime  = (long) (totalTime * ((double) sampleTimes[i] / sampled));
+                phaseTimes[i]  += phaseTime;
+                remaining      -= phaseTime;
+                lastPhase       = i;
+                sampleTimes[i]  = 0L;
+            }
+        }
+        // Give any rounding error to the last sampled phase so that the phases add up to the whole.
+        phaseTimes[lastPhase] += remaining;
+        return now;
+    }
+
+    /**
+     * Record the end of the step.
+     * @param start The time that the step started, from System.nanoTime().
+     */
+    void end(long start) {
+        stepTime = System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,14 @@
+package com.nbp;
+
+/**
+ * Listens for the stats of each physics step of an environment that has step stats enabled.
+ */
+public interface StepStatsListener {
+    /**
+     * Called at the end of every physics step.
+     * The stats instance is reused for every step and is only valid until this method returns.
+     * @param environment The environment that took the step.
+     * @param stats       The stats of the step.
+     */
+    void onStepCompleted(Environment environment, StepStats stats);
+}
@@ -0,0 +1,618 @@
+package com.nbp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * A broadphase which keeps the X axis endpoints of every box in a persistent sorted list,
+ * along with the set of boxes that each box overlaps on the X axis.
+ * Whenever a box moves along the X axis its endpoints are moved to their new place in the
+ * list with an insertion sort, and the overlaps are updated for every endpoint that they pass.
+ * Boxes tend to barely move between steps so this is close to linear in the number of boxes,
+ * and movement along the Y axis costs nothing at all. This suits wide levels where most boxes
+ * are spread out horizontally.
+ * <p>
+ * A removed box leaves its endpoints in the list as gaps, and added boxes wait in a pending list, until the
+ * list is next needed in sorted order, when every added box is merged in and the gaps are dropped in one pass.
+ * The overlaps of a box and a query of an area are found by searching the list for the first endpoint that
+ * could belong to an overlapping box, which is no further to the left than the width of the widest box.
+ */
+public class SweepAndPruneBroadphase extends Broadphase {
+    /**
+     * The initial capacity of the pair table, must be a power of two.
+     */
+    private static final int INITIAL_TABLE_CAPACITY = 64;
+    /**
+     * Orders proxies by the position of their min endpoint, keeping proxies with the same position in the order they were added.
+     */
+    private static final Comparator<SweepProxy> MIN_ORDER = new Comparator<SweepProxy>() {
+        @Override
+        public int compare(SweepProxy first, SweepProxy second) {
+            return Float.compare(first.minX, second.minX);
+        }
+    };
+    /**
+     * Orders proxies by the position of their max endpoint, keeping proxies with the same position in the order they were added.
+     */
+    private static final Comparator<SweepProxy> MAX_ORDER = new Comparator<SweepProxy>() {
+        @Override
+        public int compare(SweepProxy first, SweepProxy second) {
+            return Float.compare(first.maxX, second.maxX);
+        }
+    };
+    /**
+     * The sorted endpoint values.
+     */
+    private float[] endpointValues = new float[64];
+    /**
+     * Whether each endpoint is the max (rather than the min) endpoint of its box.
+     */
+    private boolean[] endpointIsMax = new boolean[64];
+    /**
+     * The proxy that owns each endpoint, or null if the box it belonged to has been removed.
+     */
+    private SweepProxy[] endpointOwners = new SweepProxy[64];
+    /**
+     * The number of endpoints in the list, including those left by removed boxes.
+     */
+    private int endpointCount = 0;
+    /**
+     * The number of endpoints in the list left by removed boxes.
+     */
+    private int removedEndpointCount = 0;
+    /**
+     * The width of the widest box on the X axis, which only shrinks when the list is merged.
+     */
+    private float maxWidth = 0f;
+    /**
+     * The proxies added since the list was last merged, in the order they were added.
+     */
+    private ArrayList<SweepProxy> pendingProxies = new ArrayList<SweepProxy>();
+    /**
+     * The reusable lists of pending proxies sorted by their min and max endpoints, used while merging.
+     */
+    private ArrayList<SweepProxy> pendingMins = new ArrayList<SweepProxy>(), pendingMaxs = new ArrayList<SweepProxy>();
+    /**
+     * The reusable list of proxies whose endpoints were passed while moving a box.
+     */
+    private ArrayList<SweepProxy> passedProxies = new ArrayList<SweepProxy>();
+    /**
+     * The id to give the next proxy.
+     */
+    private int nextProxyId = 0;
+    /**
+     * The keys of the pairs in the pair table.
+     */
+    private long[] pairKeys = new long[INITIAL_TABLE_CAPACITY];
+    /**
+     * The open addressed table of overlapping pairs, an empty slot is null.
+     */
+    private Pair[] pairTable = new Pair[INITIAL_TABLE_CAPACITY];
+    /**
+     * The number of pairs in the pair table.
+     */
+    private int pairCount = 0;
+    /**
+     * The pairs which have stopped overlapping, ready to be reused.
+     */
+    private ArrayList<Pair> freePairs = new ArrayList<Pair>();
+
+    @Override
+    void add(Box box) {
+        SweepProxy proxy = new SweepProxy(box, this, nextProxyId++);
+        box.broadphaseProxy = proxy;
+        proxy.minX = box.getX();
+        proxy.maxX = box.getX() + box.getWidth();
+        proxy.pendingSlot = pendingProxies.size();
+        pendingProxies.add(proxy);
+        maxWidth = Math.max(maxWidth, widthOf(proxy));
+    }
+
+    @Override
+    void remove(Box box) {
+        SweepProxy proxy = (SweepProxy) box.broadphaseProxy;
+        if (proxy.pendingSlot != -1) {
+            // Swap the last pending proxy into the place of the removed one.
+            SweepProxy last = pendingProxies.remove(pendingProxies.size() - 1);
+            if (last != proxy) {
+                pendingProxies.set(proxy.pendingSlot, last);
+                last.pendingSlot = proxy.pendingSlot;
+            }
+        } else {
+            // Leave a gap in the list rather than shifting every endpoint after the box.
+            endpointOwners[proxy.minEndpoint] = null;
+            endpointOwners[proxy.maxEndpoint] = null;
+            removedEndpointCount += 2;
+            while (!proxy.overlaps.isEmpty()) {
+                removePair(proxy.overlaps.get(proxy.overlaps.size() - 1));
+            }
+        }
+        box.broadphaseProxy = null;
+    }
+
+    @Override
+    void update(Box box) {
+        this.ensureMerged();
+        SweepProxy proxy = (SweepProxy) box.broadphaseProxy;
+        float minX       = box.getX();
+        float maxX       = box.getX() + box.getWidth();
+        // Nothing changes in the sorted list if the box has not moved on the X axis.
+        if (minX == proxy.minX && maxX == proxy.maxX) {
+            return;
+        }
+        boolean movingRight = minX > proxy.minX;
+        proxy.minX = minX;
+        proxy.maxX = maxX;
+        maxWidth   = Math.max(maxWidth, widthOf(proxy));
+        endpointValues[proxy.minEndpoint] = minX;
+        endpointValues[proxy.maxEndpoint] = maxX;
+        // Move the leading endpoint first so that the two endpoints never need to pass each other.
+        passedProxies.clear();
+        if (movingRight) {
+            sortEndpoint(proxy.maxEndpoint);
+            sortEndpoint(proxy.minEndpoint);
+        } else {
+            sortEndpoint(proxy.minEndpoint);
+            sortEndpoint(proxy.maxEndpoint);
+        }
+        // Only the boxes whose endpoints were passed can have started or stopped overlapping this one.
+        for (int i = 0; i < passedProxies.size(); i++) {
+            SweepProxy other = passedProxies.get(i);
+            boolean overlapping = overlapsX(proxy, other);
+            Pair pair           = findPair(proxy, other);
+            if (overlapping && pair == null) {
+                addPair(proxy, other);
+            } else if (!overlapping && pair != null) {
+                removePair(pair);
+            }
+        }
+    }
+
+    @Override
+    void getCandidates(Box box, ArrayList<Box> candidates) {
+        this.ensureMerged();
+        SweepProxy proxy = (SweepProxy) box.broadphaseProxy;
+        float minY       = box.getY();
+        float maxY       = box.getY() + box.getHeight();
+        for (int i = 0; i < proxy.overlaps.size(); i++) {
+            Pair pair = proxy.overlaps.get(i);
+            Box other = (pair.first == proxy ? pair.second : pair.first).box;
+            // We already know that the boxes overlap on the X axis, so only the Y axis needs checking.
+            if (minY < (other.getY() + other.getHeight()) && maxY > other.getY() && box.canCollideWith(other)) {
+                candidates.add(other);
+            }
+        }
+    }
+
+    @Override
+    void query(float minX, float minY, float maxX, float maxY, ArrayList<Box> results) {
+        if (removedEndpointCount * 2 > endpointCount) {
+            this.merge();
+        }
+        // Every box intersecting the area has its min endpoint before the max of the area, and no further
+        // before the min of the area than the width of the widest box.
+        for (int i = findFirstEndpoint(minX); i < endpointCount && endpointValues[i] < maxX; i++) {
+            if (!endpointIsMax[i] && endpointOwners[i] != null) {
+                Box box = endpointOwners[i].box;
+                if (intersects(minX, minY, maxX, maxY, box)) {
+                    results.add(box);
+                }
+            }
+        }
+        // Boxes added since the last merge are not in the list yet.
+        for (int i = 0; i < pendingProxies.size(); i++) {
+            Box box = pendingProxies.get(i).box;
+            if (intersects(minX, minY, maxX, maxY, box)) {
+                results.add(box);
+            }
+        }
+    }
+
+    /**
+     * Merge the list if any boxes have been added since it was last merged, or if too much of it is gaps left by removed boxes.
+     */
+    private void ensureMerged() {
+        if (!pendingProxies.isEmpty() || removedEndpointCount * 2 > endpointCount) {
+            this.merge();
+        }
+    }
+
+    /**
+     * Merge the endpoints of the pending proxies into the list, dropping the gaps left by removed boxes,
+     * then find the overlaps of each pending proxy.
+     */
+    private void merge() {
+        // Close up the gaps left by removed boxes.
+        int count = 0;
+        maxWidth  = 0f;
+        for (int i = 0; i < endpointCount; i++) {
+            if (endpointOwners[i] != null) {
+                setEndpoint(count++, endpointValues[i], endpointIsMax[i], endpointOwners[i]);
+                if (endpointIsMax[i]) {
+                    maxWidth = Math.max(maxWidth, widthOf(endpointOwners[i]));
+                }
+            }
+        }
+        for (int i = count; i < endpointCount; i++) {
+            endpointOwners[i] = null;
+        }
+        endpointCount        = count;
+        removedEndpointCount = 0;
+        if (pendingProxies.isEmpty()) {
+            return;
+        }
+        this.ensureEndpointCapacity(endpointCount + (pendingProxies.size() * 2));
+        // The pending endpoints are sorted stably, so that proxies with equal endpoints keep the order they were added in,
+        // after any endpoints already in the list, just as if each had been inserted in turn.
+        pendingMins.addAll(pendingProxies);
+        pendingMaxs.addAll(pendingProxies);
+        Collections.sort(pendingMins, MIN_ORDER);
+        Collections.sort(pendingMaxs, MAX_ORDER);
+        // Merge from the end of the list back, so that every endpoint is moved at most once.
+        int old      = endpointCount - 1;
+        int minIndex = pendingMins.size() - 1;
+        int maxIndex = pendingMaxs.size() - 1;
+        for (int position = endpointCount + (pendingProxies.size() * 2) - 1; position >= 0; position--) {
+            // Pick whichever pending endpoint comes last, then take it unless the last endpoint left in the list comes after it.
+            SweepProxy pending   = null;
+            boolean isPendingMax = false;
+            if (maxIndex >= 0) {
+                pending      = pendingMaxs.get(maxIndex);
+                isPendingMax = true;
+            }
+            if (minIndex >= 0 && (pending == null || comesBefore(pending.maxX, true, pendingMins.get(minIndex).minX, false))) {
+                pending      = pendingMins.get(minIndex);
+                isPendingMax = false;
+            }
+            float pendingValue = pending == null ? 0f : (isPendingMax ? pending.maxX : pending.minX);
+            if (pending == null || (old >= 0 && comesBefore(pendingValue, isPendingMax, endpointValues[old], endpointIsMax[old]))) {
+                setEndpoint(position, endpointValues[old], endpointIsMax[old], endpointOwners[old]);
+                old--;
+            } else {
+                setEndpoint(position, pendingValue, isPendingMax, pending);
+                if (isPendingMax) {
+                    maxWidth = Math.max(maxWidth, widthOf(pending));
+                    maxIndex--;
+                } else {
+                    minIndex--;
+                }
+            }
+        }
+        endpointCount += pendingProxies.size() * 2;
+        pendingMins.clear();
+        pendingMaxs.clear();
+        // Find everything that each new box overlaps on the X axis.
+        for (int i = 0; i < pendingProxies.size(); i++) {
+            SweepProxy proxy = pendingProxies.get(i);
+            proxy.pendingSlot = -1;
+            for (int j = findFirstEndpoint(proxy.minX); j < endpointCount && endpointValues[j] < proxy.maxX; j++) {
+                SweepProxy other = endpointOwners[j];
+                if (!endpointIsMax[j] && overlapsX(proxy, other) && findPair(proxy, other) == null) {
+                    addPair(proxy, other);
+                }
+            }
+        }
+        pendingProxies.clear();
+    }
+
+    /**
+     * Make sure that the endpoint list has room for the specified number of endpoints.
+     * @param count The number of endpoints.
+     */
+    private void ensureEndpointCapacity(int count) {
+        if (endpointValues.length >= count) {
+            return;
+        }
+        int capacity = endpointValues.length;
+        while (capacity < count) {
+            capacity *= 2;
+        }
+        float[] values      = new float[capacity];
+        boolean[] maxs      = new boolean[capacity];
+        SweepProxy[] owners = new SweepProxy[capacity];
+        System.arraycopy(endpointValues, 0, values, 0, endpointCount);
+        System.arraycopy(endpointIsMax, 0, maxs, 0, endpointCount);
+        System.arraycopy(endpointOwners, 0, owners, 0, endpointCount);
+        endpointValues = values;
+        endpointIsMax  = maxs;
+        endpointOwners = owners;
+    }
+
+    /**
+     * Find the position of the first endpoint that could belong to a box which reaches past a position on the X axis.
+     * @param minX The position on the X axis.
+     * @return The position of the endpoint in the list.
+     */
+    private int findFirstEndpoint(float minX) {
+        // Stepped down a little so that rounding can never leave out a box which only just reaches past the position.
+        float start = Math.nextDown(minX - maxWidth);
+        int low     = 0;
+        int high    = endpointCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (endpointValues[middle] < start) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Move an endpoint whose value has changed to its sorted place in the list.
+     * The proxies owning any endpoints that are passed along the way are added to the passed proxies list.
+     * @param position The current position of the endpoint.
+     */
+    private void sortEndpoint(int position) {
+        float value       = endpointValues[position];
+        boolean isMax     = endpointIsMax[position];
+        SweepProxy owner  = endpointOwners[position];
+        // Shift the endpoint towards the start of the list.
+        while (position > 0 && comesBefore(value, isMax, endpointValues[position - 1], endpointIsMax[position - 1])) {
+            moveEndpoint(position - 1, position);
+            position--;
+        }
+        // Shift the endpoint towards the end of the list.
+        while (position < endpointCount - 1 && comesBefore(endpointValues[position + 1], endpointIsMax[position + 1], value, isMax)) {
+            moveEndpoint(position + 1, position);
+            position++;
+        }
+        setEndpoint(position, value, isMax, owner);
+    }
+
+    /**
+     * Move the endpoint at one position in the list to another, noting the owner as a passed proxy.
+     * @param from The current position of the endpoint.
+     * @param to   The new position of the endpoint.
+     */
+    private void moveEndpoint(int from, int to) {
+        SweepProxy owner = endpointOwners[from];
+        setEndpoint(to, endpointValues[from], endpointIsMax[from], owner);
+        if (owner != null) {
+            passedProxies.add(owner);
+        }
+    }
+
+    /**
+     * Set the endpoint at a position in the list, keeping the owning proxy up to date.
+     * @param position The position in the list.
+     * @param value    The endpoint value.
+     * @param isMax    Whether this is a max endpoint.
+     * @param owner    The owning proxy, or null if the endpoint is a gap left by a removed box.
+     */
+    private void setEndpoint(int position, float value, boolean isMax, SweepProxy owner) {
+        endpointValues[position] = value;
+        endpointIsMax[position]  = isMax;
+        endpointOwners[position] = owner;
+        if (owner == null) {
+            return;
+        }
+        if (isMax) {
+            owner.maxEndpoint = position;
+        } else {
+            owner.minEndpoint = position;
+        }
+    }
+
+    /**
+     * Find the pair of two proxies which overlap on the X axis.
+     * @param proxy The first proxy.
+     * @param other The second proxy.
+     * @return The pair, or null if the proxies are not paired.
+     */
+    private Pair findPair(SweepProxy proxy, SweepProxy other) {
+        long key = toKey(proxy, other);
+        int mask = pairTable.length - 1;
+        for (int slot = hash(key) & mask; pairTable[slot] != null; slot = (slot + 1) & mask) {
+            if (pairKeys[slot] == key) {
+                return pairTable[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pair two proxies which have started to overlap on the X axis.
+     * @param proxy The first proxy.
+     * @param other The second proxy.
+     */
+    private void addPair(SweepProxy proxy, SweepProxy other) {
+        // Keep the table at most half full.
+        if ((pairCount + 1) * 2 > pairTable.length) {
+            this.growPairTable();
+        }
+        Pair pair        = freePairs.isEmpty() ? new Pair() : freePairs.remove(freePairs.size() - 1);
+        pair.first       = proxy;
+        pair.second      = other;
+        pair.key         = toKey(proxy, other);
+        pair.firstSlot   = proxy.overlaps.size();
+        pair.secondSlot  = other.overlaps.size();
+        proxy.overlaps.add(pair);
+        other.overlaps.add(pair);
+        this.putPair(pair);
+        pairCount++;
+    }
+
+    /**
+     * Unpair two proxies which have stopped overlapping on the X axis, taking the pair out of the overlaps of both.
+     * @param pair The pair.
+     */
+    private void removePair(Pair pair) {
+        detachPair(pair.first, pair.firstSlot);
+        detachPair(pair.second, pair.secondSlot);
+        // Take the pair out of the table, moving back any pairs after it which could no longer be found.
+        int mask = pairTable.length - 1;
+        int slot = hash(pair.key) & mask;
+        while (pairTable[slot] != pair) {
+            slot = (slot + 1) & mask;
+        }
+        pairTable[slot] = null;
+        for (int next = (slot + 1) & mask; pairTable[next] != null; next = (next + 1) & mask) {
+            int home = hash(pairKeys[next]) & mask;
+            // A pair stays where it is if its home slot is after the empty slot, up to and including its own.
+            boolean isReachable = slot <= next ? (home > slot && home <= next) : (home > slot || home <= next);
+            if (!isReachable) {
+                pairKeys[slot]  = pairKeys[next];
+                pairTable[slot] = pairTable[next];
+                pairTable[next] = null;
+                slot            = next;
+            }
+        }
+        pairCount--;
+        pair.first  = null;
+        pair.second = null;
+        freePairs.add(pair);
+    }
+
+    /**
+     * Take a pair out of the overlaps of one of its proxies, moving the last overlap of the proxy into its place.
+     * @param proxy The proxy.
+     * @param slot  The position of the pair in the overlaps of the proxy.
+     */
+    private static void detachPair(SweepProxy proxy, int slot) {
+        ArrayList<Pair> overlaps = proxy.overlaps;
+        Pair last                = overlaps.remove(overlaps.size() - 1);
+        if (slot < overlaps.size()) {
+            overlaps.set(slot, last);
+            if (last.first == proxy) {
+                last.firstSlot = slot;
+            } else {
+                last.secondSlot = slot;
+            }
+        }
+    }
+
+    /**
+     * Double the capacity of the pair table.
+     */
+    private void growPairTable() {
+        Pair[] oldTable = pairTable;
+        pairKeys        = new long[oldTable.length * 2];
+        pairTable       = new Pair[oldTable.length * 2];
+        for (int i = 0; i < oldTable.length; i++) {
+            if (oldTable[i] != null) {
+                this.putPair(oldTable[i]);
+            }
+        }
+    }
+
+    /**
+     * Put a pair into the pair table.
+     * @param pair The pair.
+     */
+    private void putPair(Pair pair) {
+        int mask = pairTable.length - 1;
+        int slot = hash(pair.key) & mask;
+        while (pairTable[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        pairKeys[slot]  = pair.key;
+        pairTable[slot] = pair;
+    }
+
+    /**
+     * Get the key for a pair of proxies, which is the same whichever way around the proxies are given.
+     * @param proxy The first proxy.
+     * @param other The second proxy.
+     * @return The key.
+     */
+    private static long toKey(SweepProxy proxy, SweepProxy other) {
+        int firstId  = Math.min(proxy.id, other.id);
+        int secondId = Math.max(proxy.id, other.id);
+        return (((long) firstId) << 32) | (secondId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Hash a pair key.
+     * @param key The pair key.
+     * @return The hash.
+     */
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Gets whether one endpoint belongs before another in the sorted list.
+     * Where values are equal a max endpoint comes before a min endpoint, as boxes which
+     * are only touching do not intersect.
+     * @param value      The value of the first endpoint.
+     * @param isMax      Whether the first endpoint is a max endpoint.
+     * @param otherValue The value of the second endpoint.
+     * @param otherIsMax Whether the second endpoint is a max endpoint.
+     * @return Whether the first endpoint belongs before the second.
+     */
+    private static boolean comesBefore(float value, boolean isMax, float otherValue, boolean otherIsMax) {
+        return value < otherValue || (value == otherValue && isMax && !otherIsMax);
+    }
+
+    /**
+     * Gets whether two different proxies overlap on the X axis.
+     * @param proxy The first proxy.
+     * @param other The second proxy.
+     * @return Whether the proxies overlap on the X axis.
+     */
+    private static boolean overlapsX(SweepProxy proxy, SweepProxy other) {
+        return proxy != other && proxy.minX < other.maxX && proxy.maxX > other.minX;
+    }
+
+    /**
+     * Get the width of a proxy on the X axis, rounded up so that it is never less than the true width.
+     * @param proxy The proxy.
+     * @return The width.
+     */
+    private static float widthOf(SweepProxy proxy) {
+        return Math.nextUp(proxy.maxX - proxy.minX);
+    }
+
+    /**
+     * The proxy of a box in the sorted endpoint list.
+     */
+    private static class SweepProxy extends BroadphaseProxy {
+        /**
+         * The id of the proxy, which identifies it in the keys of its pairs.
+         */
+        final int id;
+        /**
+         * The extent of the box on the X axis.
+         */
+        float minX, maxX;
+        /**
+         * The positions of the endpoints of the box in the sorted list.
+         */
+        int minEndpoint, maxEndpoint;
+        /**
+         * The position of this proxy in the pending proxies, or -1 if its endpoints are in the list.
+         */
+        int pendingSlot = -1;
+        /**
+         * The pairs of this proxy with those that overlap it on the X axis.
+         */
+        ArrayList<Pair> overlaps = new ArrayList<Pair>();
+
+        SweepProxy(Box box, Broadphase broadphase, int id) {
+            super(box, broadphase);
+            this.id = id;
+        }
+    }
+
+    /**
+     * A pair of proxies which overlap on the X axis.
+     */
+    private static class Pair {
+        /**
+         * The proxies.
+         */
+        SweepProxy first, second;
+        /**
+         * The positions of the pair in the overlaps of the first and second proxy.
+         */
+        int firstSlot, secondSlot;
+        /**
+         * The key of the pair.
+         */
+        long key;
+    }
+}
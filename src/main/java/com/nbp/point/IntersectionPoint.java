@@ -38,4 +38,12 @@ public class IntersectionPoint extends Point {
     public BoxEdge getIntersectionEdge() {
         return this.intersectionEdge;
     }
+
+    /**
+     * Set the edge of intersection.
+     * @param intersectionEdge The edge of intersection.
+     */
+    public void setIntersectionEdge(BoxEdge intersectionEdge) {
+        this.intersectionEdge = intersectionEdge;
+    }
 }
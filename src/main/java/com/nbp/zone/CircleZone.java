@@ -40,6 +40,26 @@ public class CircleZone extends Zone {
         this.radius = radius;
     }
 
+    @Override
+    public float getMinX() {
+        return this.getPosition().getX() - radius;
+    }
+
+    @Override
+    public float getMinY() {
+        return this.getPosition().getY() - radius;
+    }
+
+    @Override
+    public float getMaxX() {
+        return this.getPosition().getX() + radius;
+    }
+
+    @Override
+    public float getMaxY() {
+        return this.getPosition().getY() + radius;
+    }
+
     @Override
     public boolean intersects(Box box) {
         // Get the distance between the position of this zone (its centre) and the origin of the specified box.
@@ -81,6 +81,26 @@ public class SquareZone extends Zone {
         this.direction = direction;
     }
 
+    @Override
+    public float getMinX() {
+        return this.getPosition().getX();
+    }
+
+    @Override
+    public float getMinY() {
+        return this.getPosition().getY();
+    }
+
+    @Override
+    public float getMaxX() {
+        return this.getPosition().getX() + width;
+    }
+
+    @Override
+    public float getMaxY() {
+        return this.getPosition().getY() + height;
+    }
+
     @Override
     public boolean intersects(Box box) {
         return NBPMath.doSquaresIntersect(box.getX(), box.getY(), box.getWidth(), box.getHeight(),
@@ -51,6 +51,39 @@ public abstract class Zone {
         this.force = force;
     }
 
+    /**
+     * Get the minimum X position of the area in which this zone can influence boxes.
+     * A zone which cannot bound its area is left unbounded and is checked against every box.
+     * @return The minimum X position of the area.
+     */
+    public float getMinX() {
+        return Float.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Get the minimum Y position of the area in which this zone can influence boxes.
+     * @return The minimum Y position of the area.
+     */
+    public float getMinY() {
+        return Float.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Get the maximum X position of the area in which this zone can influence boxes.
+     * @return The maximum X position of the area.
+     */
+    public float getMaxX() {
+        return Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Get the maximum Y position of the area in which this zone can influence boxes.
+     * @return The maximum Y position of the area.
+     */
+    public float getMaxY() {
+        return Float.POSITIVE_INFINITY;
+    }
+
     /**
      * Determine whether the specified physics box intersects with this zone of force.
      * @param box The physics box to check for intersection.
@@ -0,0 +1,82 @@
+package com.nbp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A step stats listener which commits a Java Flight Recorder event for every physics step.
+ * Nothing is recorded unless a recording with the event enabled is running. This class is built apart
+ * from the engine, and only on a JDK with Flight Recorder, so the engine itself does not need Flight Recorder support.
+ */
+public class JfrStepStatsListener implements StepStatsListener {
+    /**
+     * The Flight Recorder event recording a single physics step.
+     */
+    @Name("com.nbp.PhysicsStep")
+    @Label("Physics Step")
+    @Category("NBP Physics")
+    @Description("The timings and counts of a single physics step of an environment.")
+    static class PhysicsStepEvent extends Event {
+        @Label("Step Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long stepTime;
+        @Label("Deletion Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long deletionTime;
+        @Label("Bloom Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long bloomTime;
+        @Label("Zone Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long zoneTime;
+        @Label("Integration Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long integrationTime;
+        @Label("Collision Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long collisionTime;
+        @Label("Sensor Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long sensorTime;
+        @Label("Pending Add Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long pendingAddTime;
+        @Label("Callback Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long callbackTime;
+        @Label("Broadphase Pairs")
+        int broadphasePairCount;
+        @Label("Narrowphase Hits")
+        int narrowphaseHitCount;
+        @Label("Callbacks")
+        int callbackCount;
+        @Label("Awake Boxes")
+        int awakeBoxCount;
+    }
+
+    @Override
+    public void onStepCompleted(Environment environment, StepStats stats) {
+        PhysicsStepEvent event = new PhysicsStepEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.stepTime            = stats.getStepTime();
+        event.deletionTime        = stats.getPhaseTime(StepPhase.DELETION);
+        event.bloomTime           = stats.getPhaseTime(StepPhase.BLOOMS);
+        event.zoneTime            = stats.getPhaseTime(StepPhase.ZONES);
+        event.integrationTime     = stats.getPhaseTime(StepPhase.INTEGRATION);
+        event.collisionTime       = stats.getPhaseTime(StepPhase.COLLISION);
+        event.sensorTime          = stats.getPhaseTime(StepPhase.SENSORS);
+        event.pendingAddTime      = stats.getPhaseTime(StepPhase.PENDING_ADDS);
+        event.callbackTime        = stats.getPhaseTime(StepPhase.CALLBACKS);
+        event.broadphasePairCount = stats.getBroadphasePairCount();
+        event.narrowphaseHitCount = stats.getNarrowphaseHitCount();
+        event.callbackCount       = stats.getCallbackCount();
+        event.awakeBoxCount       = stats.getAwakeBoxCount();
+        event.commit();
+    }
+}
@@ -0,0 +1,67 @@
+package com.nbp;
+
+import java.util.Map;
+
+/**
+ * The management interface through which the step stats of an environment are exposed over JMX.
+ */
+public interface StepStatsMXBean {
+    /**
+     * Get the number of steps recorded.
+     * @return The number of steps recorded.
+     */
+    long getStepCount();
+
+    /**
+     * Get the time taken by the most recent step.
+     * @return The time taken by the most recent step, in nanoseconds.
+     */
+    long getLastStepTime();
+
+    /**
+     * Get the mean time taken by the recent steps.
+     * @return The mean step time, in nanoseconds.
+     */
+    long getMeanStepTime();
+
+    /**
+     * Get the 99th percentile of the time taken by the recent steps.
+     * @return The 99th percentile step time, in nanoseconds.
+     */
+    long getP99StepTime();
+
+    /**
+     * Get the longest time taken by any of the recent steps.
+     * @return The longest step time, in nanoseconds.
+     */
+    long getMaxStepTime();
+
+    /**
+     * Get the time spent in each phase of the most recent step, keyed by phase name.
+     * @return The phase times, in nanoseconds.
+     */
+    Map<String, Long> getLastPhaseTimes();
+
+    /**
+     * Get the number of candidate pairs found by the broadphase in the most recent step.
+     * @return The number of candidate pairs.
+     */
+    int getLastBroadphasePairCount();
+
+    /**
+     * Get the number of colliding pairs in the most recent step.
+     * @return The number of colliding pairs.
+     */
+    int getLastNarrowphaseHitCount();
+
+    /**
+     * Get the number of callbacks made in the most recent step.
+     * @return The number of callbacks.
+     */
+    int getLastCallbackCount();
+
+    /**
+     * Forget every recorded step.
+     */
+    void reset();
+}
@@ -0,0 +1,159 @@
+package com.nbp;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * A step stats listener which keeps a rolling window of recent step times, so that the mean,
+ * 99th percentile and longest step times can be read at any time, for example over JMX.
+ */
+public class StepStatsMonitor implements StepStatsListener, StepStatsMXBean {
+    /**
+     * The default number of recent steps that the percentiles are taken over.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 1024;
+    /**
+     * The phases of a step, kept so that a new array of them is not made for every step.
+     */
+    private static final StepPhase[] PHASES = StepPhase.values();
+    /**
+     * The times taken by the recent steps, written in a ring.
+     */
+    private final long[] stepTimes;
+    /**
+     * The reusable array that the step times are sorted in when taking percentiles.
+     */
+    private final long[] sortedStepTimes;
+    /**
+     * The number of steps recorded.
+     */
+    private long stepCount = 0L;
+    /**
+     * The time spent in each phase of the most recent step, indexed by phase ordinal.
+     */
+    private final long[] lastPhaseTimes = new long[PHASES.length];
+    /**
+     * The counts of the most recent step.
+     */
+    private int lastBroadphasePairCount = 0, lastNarrowphaseHitCount = 0, lastCallbackCount = 0;
+
+    /**
+     * Create a new instance of the StepStatsMonitor class.
+     * @param windowSize The number of recent steps that the percentiles are taken over.
+     */
+    public StepStatsMonitor(int windowSize) {
+        this.stepTimes       = new long[Math.max(1, windowSize)];
+        this.sortedStepTimes = new long[stepTimes.length];
+    }
+
+    /**
+     * Create a new instance of the StepStatsMonitor class with the default window size.
+     */
+    public StepStatsMonitor() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Register this monitor with the platform MBean server.
+     * @param name The object name to register this monitor under, such as "com.nbp:type=StepStats,name=level1".
+     * @throws JMException If the name is malformed or already registered.
+     */
+    public void register(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+    }
+
+    @Override
+    public synchronized void onStepCompleted(Environment environment, StepStats stats) {
+        stepTimes[(int) (stepCount++ % stepTimes.length)] = stats.getStepTime();
+        for (StepPhase phase : PHASES) {
+            lastPhaseTimes[phase.ordinal()] = stats.getPhaseTime(phase);
+        }
+        lastBroadphasePairCount = stats.getBroadphasePairCount();
+        lastNarrowphaseHitCount = stats.getNarrowphaseHitCount();
+        lastCallbackCount       = stats.getCallbackCount();
+    }
+
+    @Override
+    public synchronized long getStepCount() {
+        return stepCount;
+    }
+
+    @Override
+    public synchronized long getLastStepTime() {
+        return stepCount == 0 ? 0L : stepTimes[(int) ((stepCount - 1) % stepTimes.length)];
+    }
+
+    @Override
+    public synchronized long getMeanStepTime() {
+        int count = this.getWindowCount();
+        if (count == 0) {
+            return 0L;
+        }
+        long total = 0L;
+        for (int i = 0; i < count; i++) {
+            total += stepTimes[i];
+        }
+        return total / count;
+    }
+
+    @Override
+    public synchronized long getP99StepTime() {
+        int count = this.getWindowCount();
+        if (count == 0) {
+            return 0L;
+        }
+        System.arraycopy(stepTimes, 0, sortedStepTimes, 0, count);
+        Arrays.sort(sortedStepTimes, 0, count);
+        return sortedStepTimes[(int) Math.ceil(count * 0.99d) - 1];
+    }
+
+    @Override
+    public synchronized long getMaxStepTime() {
+        long max = 0L;
+        for (int i = 0; i < this.getWindowCount(); i++) {
+            max = Math.max(max, stepTimes[i]);
+        }
+        return max;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getLastPhaseTimes() {
+        Map<String, Long> phaseTimes = new LinkedHashMap<String, Long>();
+        for (StepPhase phase : PHASES) {
+            phaseTimes.put(phase.name(), lastPhaseTimes[phase.ordinal()]);
+        }
+        return phaseTimes;
+    }
+
+    @Override
+    public synchronized int getLastBroadphasePairCount() {
+        return lastBroadphasePairCount;
+    }
+
+    @Override
+    public synchronized int getLastNarrowphaseHitCount() {
+        return lastNarrowphaseHitCount;
+    }
+
+    @Override
+    public synchronized int getLastCallbackCount() {
+        return lastCallbackCount;
+    }
+
+    @Override
+    public synchronized void reset() {
+        stepCount = 0L;
+    }
+
+    /**
+     * Get the number of steps in the rolling window.
+     * @return The number of steps in the window.
+     */
+    private int getWindowCount() {
+        return (int) Math.min(stepCount, stepTimes.length);
+    }
+}